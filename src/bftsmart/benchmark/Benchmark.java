@@ -0,0 +1,55 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.benchmark;
+
+/**
+ * A microbenchmark of a single operation of the replication library, to be
+ * run by BenchmarkRunner.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares the state used by the operation. Invoked once, before the
+     * warmup rounds.
+     */
+    public void setup() throws Exception {
+    }
+
+    /**
+     * Releases the resources acquired by setup()
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Executes the measured operation once. The returned value must depend on
+     * the result of the operation (e.g., the size of the produced array), so
+     * that the JIT cannot discard it as dead code.
+     *
+     * @return a value derived from the result of the operation
+     */
+    public abstract long operation() throws Exception;
+}
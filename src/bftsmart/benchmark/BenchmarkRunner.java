@@ -0,0 +1,168 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs microbenchmarks: each one is executed in warmup rounds (to let the JIT
+ * compile the measured code) and then in measurement rounds of fixed duration,
+ * reporting the average time per operation and its standard deviation across
+ * rounds.
+ *
+ * Results can be saved to a file and used as the baseline of a later run, in
+ * which case benchmarks that got slower than the baseline by more than the
+ * given tolerance are reported as regressions.
+ */
+public class BenchmarkRunner {
+
+    private final int warmupRounds;
+    private final int rounds;
+    private final long roundTime; // in nanoseconds
+
+    private volatile long sink; // consumes the results of the operations
+
+    /**
+     * Creates a new instance of BenchmarkRunner
+     * @param warmupRounds number of rounds whose results are discarded
+     * @param rounds number of measured rounds
+     * @param roundTime duration of each round, in milliseconds
+     */
+    public BenchmarkRunner(int warmupRounds, int rounds, long roundTime) {
+        this.warmupRounds = warmupRounds;
+        this.rounds = rounds;
+        this.roundTime = roundTime * 1000000L;
+    }
+
+    /**
+     * Runs a set of benchmarks, printing the result of each one
+     * @param benchmarks the benchmarks to run
+     * @return the average time per operation of each benchmark, in nanoseconds
+     */
+    public Map<String, Double> run(List<Benchmark> benchmarks) throws Exception {
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+
+        for (Benchmark benchmark : benchmarks) {
+            benchmark.setup();
+            try {
+                for (int i = 0; i < warmupRounds; i++) {
+                    round(benchmark);
+                }
+
+                double[] times = new double[rounds];
+                double mean = 0;
+                for (int i = 0; i < rounds; i++) {
+                    times[i] = round(benchmark);
+                    mean += times[i];
+                }
+                mean /= rounds;
+
+                double variance = 0;
+                for (double t : times) {
+                    variance += (t - mean) * (t - mean);
+                }
+                double stddev = Math.sqrt(variance / rounds);
+
+                System.out.println(String.format("%-24s %14.1f ns/op  +- %5.1f%%  %14.1f ops/s",
+                        benchmark.getName(), mean, (mean > 0 ? 100 * stddev / mean : 0), 1e9 / mean));
+                results.put(benchmark.getName(), mean);
+            } finally {
+                benchmark.tearDown();
+            }
+        }
+        return results;
+    }
+
+    // runs the operation for roundTime, returning the average time per operation
+    private double round(Benchmark benchmark) throws Exception {
+        long ops = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long now;
+        do {
+            // check the clock only every few operations, to not measure it
+            for (int i = 0; i < 16; i++) {
+                result += benchmark.operation();
+            }
+            ops += 16;
+            now = System.nanoTime();
+        } while (now - start < roundTime);
+
+        sink += result;
+        return (double) (now - start) / ops;
+    }
+
+    /**
+     * Writes the results of a run to a file (one "name time" line per benchmark)
+     */
+    public static void save(Map<String, Double> results, String file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            for (Map.Entry<String, Double> result : results.entrySet()) {
+                out.println(result.getKey() + " " + result.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the results saved by a previous run
+     */
+    public static Map<String, Double> load(String file) throws IOException {
+        Map<String, Double> results = new HashMap<String, Double>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2) results.put(fields[0], Double.parseDouble(fields[1]));
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    /**
+     * Compares the results of a run with a baseline
+     * @param tolerance maximum slowdown accepted, as a fraction (e.g., 0.1 for 10%)
+     * @return the number of benchmarks that got slower than accepted
+     */
+    public static int compare(Map<String, Double> results, Map<String, Double> baseline, double tolerance) {
+        int regressions = 0;
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            Double base = baseline.get(result.getKey());
+            if (base == null) continue;
+
+            double change = (result.getValue() - base) / base;
+            if (change > tolerance) {
+                regressions++;
+                System.out.println(String.format("REGRESSION: %s is %.1f%% slower than the baseline (%.1f ns/op -> %.1f ns/op)",
+                        result.getKey(), 100 * change, base, result.getValue()));
+            }
+        }
+        return regressions;
+    }
+}
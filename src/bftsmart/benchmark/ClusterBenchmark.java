@@ -0,0 +1,241 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+
+/**
+ * End-to-end benchmark of a cluster running in a single JVM (see
+ * LocalCluster): starts the replicas and a number of closed-loop clients,
+ * runs the workload for a fixed duration, and reports the throughput of
+ * each second, the latency percentiles and, if a fault was injected, how
+ * long the clients were stalled by it and how long the faulty replica took
+ * to catch up after recovering.
+ *
+ * Usage: ClusterBenchmark [-n &lt;replicas&gt;] [-clients &lt;clients&gt;] [-duration &lt;s&gt;]
+ *                         [-size &lt;request size&gt;] [-reply &lt;reply size&gt;] [-state &lt;state size&gt;]
+ *                         [-readonly] [-delay &lt;link latency (ms)&gt;] [-bandwidth &lt;link bandwidth (bytes/s)&gt;]
+ *                         [-crash &lt;replica|leader&gt;] [-crashat &lt;s&gt;] [-recoverat &lt;s&gt;]
+ *
+ * Clients use the ids from 1001 on. Must be run from the directory that
+ * contains the config directory.
+ */
+public class ClusterBenchmark {
+
+    private static final int FIRST_CLIENT = 1001;
+
+    public static void main(String[] args) throws Exception {
+        int n = 4;
+        int clients = 10;
+        int duration = 30;
+        int size = 1024;
+        int replySize = 0;
+        int stateSize = 0;
+        boolean readOnly = false;
+        long delay = 0;
+        long bandwidth = 0;
+        String crash = null;
+        int crashAt = -1;
+        int recoverAt = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-readonly")) readOnly = true;
+            else if (i + 1 == args.length) usage(args[i]);
+            else if (args[i].equals("-n")) n = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-clients")) clients = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-duration")) duration = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-size")) size = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-reply")) replySize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-state")) stateSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-delay")) delay = Long.parseLong(args[++i]);
+            else if (args[i].equals("-bandwidth")) bandwidth = Long.parseLong(args[++i]);
+            else if (args[i].equals("-crash")) crash = args[++i];
+            else if (args[i].equals("-crashat")) crashAt = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-recoverat")) recoverAt = Integer.parseInt(args[++i]);
+            else usage(args[i]);
+        }
+        if (crash != null && crashAt < 0) crashAt = duration / 3;
+
+        final LocalCluster cluster = new LocalCluster(n, delay, bandwidth);
+        for (int i = 0; i < n; i++) {
+            EchoService service = new EchoService(replySize, stateSize);
+            cluster.startReplica(i, service, service);
+        }
+        cluster.awaitReplicas();
+
+        final ServiceProxy[] proxies = new ServiceProxy[clients];
+        for (int i = 0; i < clients; i++) {
+            proxies[i] = cluster.createProxy(FIRST_CLIENT + i);
+        }
+
+        System.out.println("Running " + clients + " clients against " + n + " replicas for " + duration + " s");
+
+        final Histogram latency = new Histogram("latency", "ns");
+        final AtomicLongArray completed = new AtomicLongArray(duration + 1);
+        final AtomicLong lastReply = new AtomicLong(0);
+        final AtomicLong stall = new AtomicLong(0);
+        final long start = System.nanoTime();
+        final long end = start + duration * 1000000000L;
+        final long faultTime = (crash != null ? start + crashAt * 1000000000L : Long.MAX_VALUE);
+        lastReply.set(start);
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final ServiceProxy proxy = proxies[i];
+            final byte[] request = new byte[size];
+            final boolean unordered = readOnly;
+            threads[i] = new Thread("Client " + (FIRST_CLIENT + i)) {
+                @Override
+                public void run() {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        byte[] reply = (unordered ? proxy.invokeUnordered(request) : proxy.invokeOrdered(request));
+                        long done = System.nanoTime();
+                        if (reply == null) continue;
+
+                        latency.record(done - now);
+                        int second = (int) ((done - start) / 1000000000L);
+                        if (second < completed.length()) completed.incrementAndGet(second);
+
+                        long previous = lastReply.getAndSet(done);
+                        if (done > faultTime) updateMax(stall, done - Math.max(previous, faultTime));
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        int faulty = -1;
+        long catchUp = -1;
+        if (crash != null) {
+            sleepUntil(faultTime);
+            faulty = (crash.equals("leader") ? cluster.getLeader() : Integer.parseInt(crash));
+            cluster.crash(faulty);
+
+            if (recoverAt >= 0) {
+                sleepUntil(start + recoverAt * 1000000000L);
+                int target = 0;
+                for (int i = 0; i < n; i++) {
+                    if (i != faulty) target = Math.max(target, cluster.getLastExec(i));
+                }
+                long recovered = System.nanoTime();
+                cluster.recover(faulty);
+                while (System.nanoTime() < end && cluster.getLastExec(faulty) < target) {
+                    Thread.sleep(10);
+                }
+                if (cluster.getLastExec(faulty) >= target) catchUp = System.nanoTime() - recovered;
+            }
+        }
+
+        for (Thread t : threads) {
+            t.join(Math.max(1, (end - System.nanoTime()) / 1000000) + 10000);
+        }
+        if (crash != null) updateMax(stall, end - Math.max(lastReply.get(), faultTime));
+
+        System.out.println();
+        System.out.println("Second\tOperations");
+        long total = 0;
+        for (int i = 0; i < duration; i++) {
+            System.out.println(i + "\t" + completed.get(i));
+            total += completed.get(i);
+        }
+        System.out.println();
+        System.out.println("Throughput: " + (total / duration) + " ops/s");
+        System.out.println("Latency (us): mean " + (long) latency.getMean() / 1000
+                + ", 50th " + latency.get50thPercentile() / 1000
+                + ", 99th " + latency.get99thPercentile() / 1000
+                + ", 99.9th " + latency.get999thPercentile() / 1000
+                + ", max " + latency.getMax() / 1000);
+        if (crash != null) {
+            System.out.println("Replica " + faulty + " crashed at " + crashAt + " s, longest stall afterwards: "
+                    + stall.get() / 1000000 + " ms");
+            if (recoverAt >= 0) {
+                System.out.println("Replica " + faulty + " recovered at " + recoverAt + " s, "
+                        + (catchUp >= 0 ? "caught up after " + catchUp / 1000000 + " ms" : "did not catch up"));
+            }
+        }
+
+        cluster.close();
+        System.exit(0);
+    }
+
+    private static void usage(String option) {
+        System.out.println("Invalid option " + option);
+        System.out.println("Usage: ClusterBenchmark [-n <replicas>] [-clients <clients>] [-duration <s>] "
+                + "[-size <request size>] [-reply <reply size>] [-state <state size>] [-readonly] "
+                + "[-delay <link latency (ms)>] [-bandwidth <link bandwidth (bytes/s)>] "
+                + "[-crash <replica|leader>] [-crashat <s>] [-recoverat <s>]");
+        System.exit(-1);
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException {
+        long wait = time - System.nanoTime();
+        if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Service that replies to every request with a fixed size reply, and
+     * whose state is an array of fixed size
+     */
+    static class EchoService extends DefaultRecoverable {
+
+        private final byte[] reply;
+        private byte[] state;
+
+        EchoService(int replySize, int stateSize) {
+            this.reply = new byte[replySize];
+            this.state = new byte[stateSize];
+        }
+
+        @Override
+        public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs) {
+            byte[][] replies = new byte[commands.length][];
+            for (int i = 0; i < commands.length; i++) {
+                replies[i] = reply;
+            }
+            return replies;
+        }
+
+        @Override
+        public byte[] executeUnordered(byte[] command, MessageContext msgCtx) {
+            return reply;
+        }
+
+        @Override
+        public void installSnapshot(byte[] state) {
+            this.state = state;
+        }
+
+        @Override
+        public byte[] getSnapshot() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.clientsmanagement.RequestList;
+import bftsmart.consensus.Round;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.server.defaultservices.DiskStateLog;
+import bftsmart.tom.server.defaultservices.OffHeapStateLog;
+import bftsmart.tom.server.defaultservices.StateLog;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.CryptoProvider;
+
+/**
+ * Microbenchmarks of the data paths every request goes through: batching,
+ * (de)serialization of requests and protocol messages, MACs and digests,
+ * selection of pending requests, vote counting and logging. They use the
+ * configuration in the config directory (as a replica with id 0 would), so
+ * they must be run from the directory that contains it.
+ *
+ * Usage: CoreBenchmarks [-filter &lt;regex&gt;] [-size &lt;request size&gt;] [-batch &lt;requests per batch&gt;]
+ *                       [-clients &lt;clients&gt;] [-rounds &lt;rounds&gt;] [-time &lt;ms per round&gt;]
+ *                       [-save &lt;file&gt;] [-baseline &lt;file&gt;] [-tolerance &lt;fraction&gt;]
+ *
+ * If a baseline is given, the exit status is the number of benchmarks that
+ * got slower than the baseline by more than the tolerance (10% by default).
+ */
+public class CoreBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        String filter = ".*";
+        int size = 1024;
+        int batch = 400;
+        int clients = 1000;
+        int rounds = 5;
+        long time = 1000;
+        String save = null;
+        String baseline = null;
+        double tolerance = 0.1;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-filter")) filter = args[i + 1];
+            else if (args[i].equals("-size")) size = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-batch")) batch = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-clients")) clients = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-rounds")) rounds = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-time")) time = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-save")) save = args[i + 1];
+            else if (args[i].equals("-baseline")) baseline = args[i + 1];
+            else if (args[i].equals("-tolerance")) tolerance = Double.parseDouble(args[i + 1]);
+            else {
+                System.out.println("Unknown option " + args[i]);
+                System.exit(-1);
+            }
+        }
+
+        ServerViewController controller = new ServerViewController(0);
+
+        List<Benchmark> all = new ArrayList<Benchmark>();
+        all.add(new MakeBatch(controller, size, batch));
+        all.add(new ReadBatch(controller, size, batch));
+        all.add(new WriteMessage(size));
+        all.add(new ReadMessage(size));
+        all.add(new SerializePropose(controller, size, batch));
+        all.add(new ComputeMac(controller));
+        all.add(new ComputeDigest(controller, size, batch));
+        all.add(new PendingRequests(controller, size, clients));
+        all.add(new CountVotes(controller));
+        all.add(new AppendStateLog(size, batch, false));
+        all.add(new AppendStateLog(size, batch, true));
+        all.add(new AppendDiskStateLog(size, batch));
+
+        List<Benchmark> selected = new ArrayList<Benchmark>();
+        for (Benchmark b : all) {
+            if (b.getName().matches(filter)) selected.add(b);
+        }
+
+        System.out.println("Request size: " + size + " bytes, batch: " + batch + " requests, clients: " + clients);
+        Map<String, Double> results = new BenchmarkRunner(rounds, rounds, time).run(selected);
+
+        if (save != null) BenchmarkRunner.save(results, save);
+        int regressions = 0;
+        if (baseline != null) {
+            regressions = BenchmarkRunner.compare(results, BenchmarkRunner.load(baseline), tolerance);
+        }
+        System.exit(regressions);
+    }
+
+    // creates requests from different clients, already serialized (as they are when received)
+    static TOMMessage[] createRequests(int count, int size, int firstClient) throws Exception {
+        TOMMessage[] requests = new TOMMessage[count];
+        for (int i = 0; i < count; i++) {
+            TOMMessage request = new TOMMessage(firstClient + i, 0, 0, new byte[size], 0, TOMMessageType.ORDERED_REQUEST);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(size + 32);
+            request.wExternal(new DataOutputStream(bos));
+            request.serializedMessage = bos.toByteArray();
+            requests[i] = request;
+        }
+        return requests;
+    }
+
+    static List<TOMMessage> asList(TOMMessage[] requests) {
+        List<TOMMessage> list = new ArrayList<TOMMessage>(requests.length);
+        for (TOMMessage request : requests) list.add(request);
+        return list;
+    }
+
+    /** BatchBuilder.makeBatch, as done by the leader for each propose */
+    static class MakeBatch extends Benchmark {
+        private final ServerViewController controller;
+        private final int size, batch;
+        private final BatchBuilder builder = new BatchBuilder();
+        private List<TOMMessage> requests;
+
+        MakeBatch(ServerViewController controller, int size, int batch) {
+            super("batch.make");
+            this.controller = controller;
+            this.size = size;
+            this.batch = batch;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            requests = asList(createRequests(batch, size, 1000));
+        }
+
+        @Override
+        public long operation() {
+            return builder.makeBatch(requests, 0, System.currentTimeMillis(), controller).length;
+        }
+    }
+
+    /** BatchReader.deserialiseRequests, as done by every replica for each propose */
+    static class ReadBatch extends Benchmark {
+        private final ServerViewController controller;
+        private final int size, batch;
+        private byte[] value;
+
+        ReadBatch(ServerViewController controller, int size, int batch) {
+            super("batch.read");
+            this.controller = controller;
+            this.size = size;
+            this.batch = batch;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            value = new BatchBuilder().makeBatch(asList(createRequests(batch, size, 1000)), 0,
+                    System.currentTimeMillis(), controller);
+        }
+
+        @Override
+        public long operation() {
+            return new BatchReader(value, controller.getStaticConf().getUseSignatures() == 1)
+                    .deserialiseRequests(controller).length;
+        }
+    }
+
+    /** TOMMessage.wExternal, as done by clients and for replies */
+    static class WriteMessage extends Benchmark {
+        private final int size;
+        private TOMMessage message;
+        private ByteArrayOutputStream bos;
+
+        WriteMessage(int size) {
+            super("message.write");
+            this.size = size;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            message = createRequests(1, size, 1000)[0];
+            bos = new ByteArrayOutputStream(size + 32);
+        }
+
+        @Override
+        public long operation() throws Exception {
+            bos.reset();
+            message.wExternal(new DataOutputStream(bos));
+            return bos.size();
+        }
+    }
+
+    /** TOMMessage.rExternal, as done for every request received */
+    static class ReadMessage extends Benchmark {
+        private final int size;
+        private byte[] data;
+
+        ReadMessage(int size) {
+            super("message.read");
+            this.size = size;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            data = createRequests(1, size, 1000)[0].serializedMessage;
+        }
+
+        @Override
+        public long operation() throws Exception {
+            TOMMessage message = new TOMMessage();
+            message.rExternal(new DataInputStream(new ByteArrayInputStream(data)));
+            return message.getContent().length;
+        }
+    }
+
+    /** Serialization of a PROPOSE, as done by ServersCommunicationLayer.send */
+    static class SerializePropose extends Benchmark {
+        private final ServerViewController controller;
+        private final int size, batch;
+        private PaxosMessage propose;
+
+        SerializePropose(ServerViewController controller, int size, int batch) {
+            super("propose.serialize");
+            this.controller = controller;
+            this.size = size;
+            this.batch = batch;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            byte[] value = new BatchBuilder().makeBatch(asList(createRequests(batch, size, 1000)), 0,
+                    System.currentTimeMillis(), controller);
+            propose = new PaxosMessage(MessageFactory.PROPOSE, 0, 0, 0, value);
+        }
+
+        @Override
+        public long operation() throws Exception {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+            new ObjectOutputStream(bOut).writeObject(propose);
+            return bOut.size();
+        }
+    }
+
+    /** MAC of an ACCEPT, as computed by the Acceptor and verified by the MessageHandler */
+    static class ComputeMac extends Benchmark {
+        private final ServerViewController controller;
+        private Mac mac;
+        private byte[] data;
+
+        ComputeMac(ServerViewController controller) {
+            super("crypto.mac");
+            this.controller = controller;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            CryptoProvider provider = controller.getStaticConf().getCryptoProvider();
+            mac = provider.newMac();
+            mac.init(new SecretKeySpec(new byte[32], provider.getMacAlgorithm()));
+
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+            new ObjectOutputStream(bOut).writeObject(new PaxosMessage(MessageFactory.ACCEPT, 0, 0, 0, new byte[32]));
+            data = bOut.toByteArray();
+        }
+
+        @Override
+        public long operation() {
+            return mac.doFinal(data).length;
+        }
+    }
+
+    /** Digest of a proposed batch, as computed by every replica for each propose */
+    static class ComputeDigest extends Benchmark {
+        private final ServerViewController controller;
+        private final int size, batch;
+        private CryptoProvider provider;
+        private byte[] value;
+
+        ComputeDigest(ServerViewController controller, int size, int batch) {
+            super("crypto.digest");
+            this.controller = controller;
+            this.size = size;
+            this.batch = batch;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            provider = controller.getStaticConf().getCryptoProvider();
+            value = new BatchBuilder().makeBatch(asList(createRequests(batch, size, 1000)), 0,
+                    System.currentTimeMillis(), controller);
+        }
+
+        @Override
+        public long operation() {
+            return provider.computeHash(value).length;
+        }
+    }
+
+    /** ClientsManager.getPendingRequests with one pending request per client */
+    static class PendingRequests extends Benchmark {
+        private final ServerViewController controller;
+        private final int size, clients;
+        private ClientsManager manager;
+        private TOMMessage[] requests;
+
+        PendingRequests(ServerViewController controller, int size, int clients) {
+            super("clients.pending");
+            this.controller = controller;
+            this.size = size;
+            this.clients = clients;
+        }
+
+        @Override
+        public void setup() throws Exception {
+            manager = new ClientsManager(controller, null);
+            requests = createRequests(clients, size, 1000);
+            for (TOMMessage request : requests) {
+                manager.requestReceived(request, false);
+            }
+        }
+
+        @Override
+        public long operation() {
+            RequestList batch = manager.getPendingRequests();
+            for (TOMMessage request : batch) {
+                request.alreadyProposed = false; // so that the next operation finds them again
+            }
+            return batch.size();
+        }
+    }
+
+    /** Setting and counting the WRITEs and ACCEPTs of a round */
+    static class CountVotes extends Benchmark {
+        private final ServerViewController controller;
+        private int[] processes;
+        private byte[] value;
+
+        CountVotes(ServerViewController controller) {
+            super("round.votes");
+            this.controller = controller;
+        }
+
+        @Override
+        public void setup() {
+            processes = controller.getCurrentViewProcesses();
+            value = new byte[32];
+        }
+
+        @Override
+        public long operation() {
+            Round round = new Round(controller, null, 0);
+            long count = 0;
+            for (int p : processes) {
+                round.setWrite(p, value);
+                count += round.countWrite(value);
+            }
+            for (int p : processes) {
+                round.setAccept(p, value);
+                count += round.countAccept(value);
+            }
+            return count;
+        }
+    }
+
+    /** Logging of a decided batch in memory (in the heap or off it), with a checkpoint every 1000 batches */
+    static class AppendStateLog extends Benchmark {
+        private static final int PERIOD = 1000;
+        private final int size, batch;
+        private final boolean offHeap;
+        private StateLog log;
+        private byte[][] commands;
+        private int eid;
+
+        AppendStateLog(int size, int batch, boolean offHeap) {
+            super(offHeap ? "offheapstatelog.append" : "statelog.append");
+            this.size = size;
+            this.batch = batch;
+            this.offHeap = offHeap;
+        }
+
+        @Override
+        public void setup() {
+            log = (offHeap ? new OffHeapStateLog(PERIOD, new byte[0], new byte[0])
+                    : new StateLog(PERIOD, new byte[0], new byte[0]));
+            commands = new byte[batch][size];
+            eid = 0;
+        }
+
+        @Override
+        public long operation() {
+            if (eid % PERIOD == PERIOD - 1) {
+                log.newCheckpoint(new byte[size], new byte[32], eid);
+            } else {
+                log.addMessageBatch(commands, 0, 0, eid);
+            }
+            return eid++;
+        }
+    }
+
+    /** Logging of a decided batch to disk, with a checkpoint every 1000 batches */
+    static class AppendDiskStateLog extends Benchmark {
+        private static final int PERIOD = 1000;
+        private static final int ID = 999; // not a replica id, to not mix its files with theirs
+        private final int size, batch;
+        private DiskStateLog log;
+        private byte[][] commands;
+        private int eid;
+
+        AppendDiskStateLog(int size, int batch) {
+            super("diskstatelog.append");
+            this.size = size;
+            this.batch = batch;
+        }
+
+        @Override
+        public void setup() {
+            new File(DiskStateLog.DEFAULT_DIR).mkdirs();
+            log = new DiskStateLog(ID, new byte[0], new byte[0], true, false, false);
+            commands = new byte[batch][size];
+            eid = 0;
+        }
+
+        @Override
+        public long operation() {
+            if (eid % PERIOD == PERIOD - 1) {
+                log.newCheckpoint(new byte[size], new byte[32], eid);
+            } else {
+                log.addMessageBatch(commands, 0, 0, eid);
+            }
+            return eid++;
+        }
+
+        @Override
+        public void tearDown() {
+            File[] files = new File(DiskStateLog.DEFAULT_DIR).listFiles();
+            if (files == null) return;
+            for (File f : files) {
+                if (f.getName().startsWith(ID + ".")) f.delete();
+            }
+        }
+    }
+}
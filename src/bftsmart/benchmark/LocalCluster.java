@@ -0,0 +1,168 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.benchmark;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import bftsmart.communication.server.NetworkEmulator;
+import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.util.ExecutorRegistry;
+import bftsmart.tom.server.Executable;
+import bftsmart.tom.server.Recoverable;
+
+/**
+ * A group of replicas (and their clients) running in the same JVM and
+ * talking over loopback, with the links between replicas emulated by a
+ * NetworkEmulator. The replicas use the configuration in the config
+ * directory, so hosts.config must list them with local addresses.
+ *
+ * Crashing a replica isolates it from the others (its messages are
+ * dropped), and recovering it reconnects it, after which it catches up
+ * through the state transfer protocol.
+ */
+public class LocalCluster {
+
+    private final ServiceReplica[] replicas;
+    private final NetworkEmulator network;
+    private final List<ServiceProxy> proxies = new LinkedList<ServiceProxy>();
+    private final List<Thread> starters = new LinkedList<Thread>();
+
+    /**
+     * Creates a new instance of LocalCluster
+     * @param n number of replicas
+     * @param delay latency of the links between replicas, in milliseconds
+     * @param bandwidth bandwidth of the links between replicas, in bytes per second (0 means unlimited)
+     */
+    public LocalCluster(int n, long delay, long bandwidth) {
+        this.replicas = new ServiceReplica[n];
+        this.network = new NetworkEmulator(delay, bandwidth);
+        NetworkEmulator.install(network);
+    }
+
+    /**
+     * Starts a replica of the cluster. Since a replica only finishes starting
+     * after talking to the others, it is started in a separate thread (see
+     * awaitReplicas()).
+     *
+     * @param id the replica id (from 0 to n-1)
+     * @param executor the service executed by the replica
+     * @param recoverer the state management of the service
+     */
+    public void startReplica(final int id, final Executable executor, final Recoverable recoverer) {
+        Thread starter = new Thread("Replica " + id + " starter") {
+            @Override
+            public void run() {
+                replicas[id] = new ServiceReplica(id, executor, recoverer);
+            }
+        };
+        starters.add(starter);
+        starter.start();
+    }
+
+    /**
+     * Waits until all replicas started are ready
+     */
+    public void awaitReplicas() throws InterruptedException {
+        for (Thread starter : starters) {
+            starter.join();
+        }
+        starters.clear();
+    }
+
+    /**
+     * Creates a client of the cluster, which is closed with it
+     * @param id the client id
+     * @return the client proxy
+     */
+    public ServiceProxy createProxy(int id) {
+        ServiceProxy proxy = new ServiceProxy(id);
+        synchronized (proxies) {
+            proxies.add(proxy);
+        }
+        return proxy;
+    }
+
+    public NetworkEmulator getNetwork() {
+        return network;
+    }
+
+    public int size() {
+        return replicas.length;
+    }
+
+    public ServiceReplica getReplica(int id) {
+        return replicas[id];
+    }
+
+    /**
+     * @return the leader, as seen by the first replica that is not crashed
+     * (-1 if there is none)
+     */
+    public int getLeader() {
+        for (int i = 0; i < replicas.length; i++) {
+            TOMLayer tomLayer = getTOMLayer(i);
+            if (tomLayer != null && !network.isIsolated(i)) return tomLayer.lm.getCurrentLeader();
+        }
+        return -1;
+    }
+
+    /**
+     * @param id the replica id
+     * @return the last consensus executed by the replica (-1 if none)
+     */
+    public int getLastExec(int id) {
+        TOMLayer tomLayer = getTOMLayer(id);
+        return (tomLayer != null ? tomLayer.getLastExec() : -1);
+    }
+
+    public void crash(int id) {
+        System.out.println("(LocalCluster.crash) replica " + id + " crashed");
+        network.isolate(id);
+    }
+
+    public void recover(int id) {
+        System.out.println("(LocalCluster.recover) replica " + id + " recovered");
+        network.heal(id);
+    }
+
+    /**
+     * Closes the clients and stops emulating the network. The replicas keep
+     * running until the JVM exits.
+     */
+    public void close() {
+        synchronized (proxies) {
+            for (ServiceProxy proxy : proxies) {
+                proxy.close();
+            }
+            proxies.clear();
+        }
+        NetworkEmulator.install(null);
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] != null) {
+                MetricsRegistry.getInstance(i).close();
+                ExecutorRegistry.getInstance(i).close();
+            }
+        }
+    }
+
+    private TOMLayer getTOMLayer(int id) {
+        return (replicas[id] != null ? replicas[id].getTOMLayer() : null);
+    }
+}
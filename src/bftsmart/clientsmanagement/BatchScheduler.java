@@ -0,0 +1,50 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.List;
+import java.util.Map;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Chooses which of the pending requests go in the next batch proposed by the
+ * leader. The scheduler is chosen with system.totalordermulticast.batchscheduler
+ * (see RoundRobinScheduler and DeficitRoundRobinScheduler).
+ */
+public interface BatchScheduler {
+
+    /**
+     * Invoked once, before any batch is scheduled
+     * @param conf the configuration of this replica
+     */
+    public void init(TOMConfiguration conf);
+
+    /**
+     * Chooses the requests of the next batch. The requests of each client
+     * must be taken in order (i.e., only the first requests of its list), and
+     * at least one request must be taken if there is any.
+     *
+     * @param pending the requests not proposed yet, for each client that has
+     * any, in the order they were received
+     * @param maxBatchSize maximum number of requests of the batch
+     * @param maxBatchBytes maximum size (in bytes of the serialized requests)
+     * of the batch, or 0 if there is no such limit
+     * @return the requests of the batch
+     */
+    public RequestList schedule(Map<Integer, List<TOMMessage>> pending, int maxBatchSize, int maxBatchBytes);
+}
@@ -57,7 +57,7 @@ public class ClientData {
         this.clientId = clientId;
         if(publicKey != null) {
             try {
-                signatureVerificator = Signature.getInstance("SHA1withRSA");
+                signatureVerificator = Signature.getInstance(TOMUtil.getCryptoProvider().getSignatureAlgorithm());
                 signatureVerificator.initVerify(publicKey);
                 Logger.println("Signature verifier initialized for client "+clientId);
             } catch (Exception ex) {
@@ -149,7 +149,7 @@ public class ClientData {
     public TOMMessage getReply(int reqSequence) {
         TOMMessage request = orderedRequests.getBySequence(reqSequence);
         if(request != null) {
-            return request.reply;
+            return (request.fullReply != null ? request.fullReply : request.reply);
         } else {
             return null;
         }
@@ -15,16 +15,24 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.timer.RequestsTimer;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
 import bftsmart.tom.util.Logger;
 
 
@@ -38,10 +46,27 @@ public class ClientsManager {
     private RequestsTimer timer;
     private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
     private ReentrantLock clientsLock = new ReentrantLock();
+    private AtomicInteger notProposed = new AtomicInteger(0); // pending requests not proposed yet
+    private Histogram orderingLatency; // from the reception of a request until it is ordered
+    private Histogram verifyTime;
+    private BatchScheduler scheduler; // chooses the requests of each batch
 
     public ClientsManager(ServerViewController controller, RequestsTimer timer) {
         this.controller = controller;
         this.timer = timer;
+
+        try {
+            this.scheduler = (BatchScheduler) Class.forName(controller.getStaticConf().getBatchScheduler()).newInstance();
+        } catch (Exception ex) {
+            System.out.println("Could not create batch scheduler " + controller.getStaticConf().getBatchScheduler()
+                    + " (" + ex + "), using round robin");
+            this.scheduler = new RoundRobinScheduler();
+        }
+        this.scheduler.init(controller.getStaticConf());
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance(controller.getStaticConf().getProcessId());
+        this.orderingLatency = metrics.histogram("request.ordering", "ns");
+        this.verifyTime = metrics.histogram("crypto.verify", "ns");
     }
 
     /**
@@ -76,61 +101,67 @@ public class ClientsManager {
     }
 
     /**
-     * Get pending requests in a fair way (one request from each client
-     * queue until the max number of requests is obtained).
+     * Get pending requests in a fair way, as decided by the batch scheduler
+     * (by default, one request from each client queue until the max number
+     * of requests is obtained).
      *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
-        RequestList allReq = new RequestList();
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize(),
+                controller.getStaticConf().getMaxBatchBytes());
+    }
 
+    /**
+     * Same as getPendingRequests(), but with explicit bounds for the batch.
+     *
+     * @param maxBatchSize maximum number of requests to be returned
+     * @param maxBatchBytes maximum size (in bytes of the serialized requests)
+     * of the requests to be returned, or 0 if there is no such limit. At least
+     * one request is always returned if there is one pending.
+     * @return the set of all pending requests of this system
+     */
+    public RequestList getPendingRequests(int maxBatchSize, int maxBatchBytes) {
         clientsLock.lock();
         /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        Set<Entry<Integer, ClientData>> clientsEntrySet = clientsData.entrySet();
-        
-        for (int i = 0; true; i++) {
-            Iterator<Entry<Integer, ClientData>> it = clientsEntrySet.iterator();
-            int noMoreMessages = 0;
 
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntrySet.size()) {
+        // the requests not proposed yet (at most a batch of each client)
+        Map<Integer, List<TOMMessage>> pending = new LinkedHashMap<Integer, List<TOMMessage>>();
+        for (Entry<Integer, ClientData> e : clientsData.entrySet()) {
+            ClientData clientData = e.getValue();
+            List<TOMMessage> requests = null;
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
-
-                clientData.clientLock.lock();
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            for (TOMMessage request : clientData.getPendingRequests()) {
+                if (request.alreadyProposed) continue;
+                if (requests == null) requests = new ArrayList<TOMMessage>(4);
+                requests.add(request);
+                if (requests.size() >= maxBatchSize) break;
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            if (requests != null) pending.put(e.getKey(), requests);
+        }
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
-                    }
-                } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
-                }
-            }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntrySet.size()) {
-                
-                break;
-            }
+        RequestList allReq = (pending.isEmpty() ? new RequestList()
+                : scheduler.schedule(pending, maxBatchSize, maxBatchBytes));
+        for (TOMMessage request : allReq) {
+            request.alreadyProposed = true;
         }
-        
+        notProposed.addAndGet(-allReq.size());
+
         /******* END CLIENTS CRITICAL SECTION ******/
         clientsLock.unlock();
         return allReq;
     }
 
+    // size of a request, as accounted in the batches
+    static int sizeOf(TOMMessage request) {
+        return (request.serializedMessage != null ? request.serializedMessage.length : 0);
+    }
+
     /**
      * We've implemented some protection for individual client
      * data, but the clients table can change during the operation.
@@ -166,6 +197,18 @@ public class ClientsManager {
         return havePending;
     }
 
+    /**
+     * Counts the requests that are pending and were not proposed yet. The
+     * count is kept as the requests are received, proposed and ordered, so
+     * no lock is taken.
+     *
+     * @param limit the maximum number of requests to be returned
+     * @return the number of requests not proposed yet, up to limit
+     */
+    public int countPendingRequests(int limit) {
+        return Math.max(0, Math.min(limit, notProposed.get()));
+    }
+
     /**
      * Verifies if some reqId is pending.
      *
@@ -214,10 +257,7 @@ public class ClientsManager {
      */
     public boolean requestReceived(TOMMessage request, boolean fromClient, ServerCommunicationSystem cs) {
         
-        request.receptionTime = System.nanoTime();
-
         int clientId = request.getSender();
-        boolean accounted = false;
 
         //Logger.println("(ClientsManager.requestReceived) getting info about client "+clientId);
         ClientData clientData = getClientData(clientId);
@@ -227,6 +267,69 @@ public class ClientsManager {
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
         //Logger.println("(ClientsManager.requestReceived) lock for client "+clientData.getClientId()+" acquired");
 
+        boolean accounted = accountRequest(clientData, request, fromClient, cs);
+
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return accounted;
+    }
+
+    /**
+     * Notifies the ClientsManager that several requests arrived at once (e.g.,
+     * forwarded by another replica). The requests of each client are accounted
+     * in sequence order, holding the lock of the client only once.
+     *
+     * @param requests the received requests
+     * @param fromClient the messages were received from the client or not?
+     * @param cs server com. system to be able to send replies to already processed requests
+     *
+     * @return the requests that were not accounted (empty if all are ok)
+     */
+    public List<TOMMessage> requestsReceived(List<TOMMessage> requests, boolean fromClient, ServerCommunicationSystem cs) {
+        Map<Integer, List<TOMMessage>> perClient = new LinkedHashMap<Integer, List<TOMMessage>>();
+        for (TOMMessage request : requests) {
+            List<TOMMessage> list = perClient.get(request.getSender());
+            if (list == null) {
+                list = new ArrayList<TOMMessage>(4);
+                perClient.put(request.getSender(), list);
+            }
+            list.add(request);
+        }
+
+        List<TOMMessage> discarded = new ArrayList<TOMMessage>(0);
+        for (Entry<Integer, List<TOMMessage>> e : perClient.entrySet()) {
+            List<TOMMessage> list = e.getValue();
+            if (list.size() > 1) Collections.sort(list, BY_SEQUENCE);
+
+            ClientData clientData = getClientData(e.getKey());
+
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            for (TOMMessage request : list) {
+                if (!accountRequest(clientData, request, fromClient, cs)) discarded.add(request);
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+        }
+        return discarded;
+    }
+
+    private static final Comparator<TOMMessage> BY_SEQUENCE = new Comparator<TOMMessage>() {
+        @Override
+        public int compare(TOMMessage m1, TOMMessage m2) {
+            return (m1.getSequence() < m2.getSequence() ? -1 : (m1.getSequence() == m2.getSequence() ? 0 : 1));
+        }
+    };
+
+    // accounts a request of a client, whose lock must be held by the caller
+    private boolean accountRequest(ClientData clientData, TOMMessage request, boolean fromClient,
+            ServerCommunicationSystem cs) {
+
+        request.receptionTime = System.nanoTime();
+
+        boolean accounted = false;
+
         /* ################################################ */
         //pjsousa: simple flow control mechanism to avoid out of memory exception
         if (fromClient && (controller.getStaticConf().getUseControlFlow() != 0)) {
@@ -237,7 +340,6 @@ public class ClientsManager {
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
-                clientData.clientLock.unlock();
                 return false;
             }
         }
@@ -248,7 +350,7 @@ public class ClientsManager {
             clientData.setSession(request.getSession());
             clientData.setLastMessageReceived(-1);
             clientData.getOrderedRequests().clear();
-            clientData.getPendingRequests().clear();
+            discardPending(clientData);
         }
 
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
@@ -256,15 +358,22 @@ public class ClientsManager {
                 ((request.getSequence() > clientData.getLastMessageReceived()) && !fromClient)) {
 
             //it is a new message and I have to verify it's signature
-            if (!request.signed
-                    || clientData.verifySignature(request.serializedMessage,
-                    request.serializedMessageSignature)) {
+            boolean valid = true;
+            if (request.signed) {
+                long start = System.nanoTime();
+                valid = clientData.verifySignature(request.serializedMessage,
+                        request.serializedMessageSignature);
+                verifyTime.recordSince(start);
+            }
+
+            if (valid) {
 
                 //I don't have the message but it is valid, I will
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
                 clientData.getPendingRequests().add(request); 
+                notProposed.incrementAndGet();
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -303,12 +412,19 @@ public class ClientsManager {
             }
         }
 
-        /******* END CLIENTDATA CRITICAL SECTION ******/
-        clientData.clientLock.unlock();
-
         return accounted;
     }
 
+    // discards the pending requests of a client, whose lock must be held by the caller
+    private void discardPending(ClientData clientData) {
+        int discarded = 0;
+        for (TOMMessage request : clientData.getPendingRequests()) {
+            if (!request.alreadyProposed) discarded++;
+        }
+        clientData.getPendingRequests().clear();
+        notProposed.addAndGet(-discarded);
+    }
+
     /**
      * Notifies the ClientsManager that these requests were already executed.
      * 
@@ -338,7 +454,14 @@ public class ClientsManager {
 
         clientData.clientLock.lock();
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-        if (!clientData.removeOrderedRequest(request)) {
+        TOMMessage pending = clientData.getPendingRequests().getById(request.getId());
+        if (pending != null && pending.receptionTime != 0) {
+            orderingLatency.recordSince(pending.receptionTime);
+        }
+
+        if (clientData.removeOrderedRequest(request)) {
+            if (pending != null && !pending.alreadyProposed) notProposed.decrementAndGet();
+        } else {
             Logger.println("(ClientsManager.requestOrdered) Request "
                     + request + " does not exist in pending requests");
         }
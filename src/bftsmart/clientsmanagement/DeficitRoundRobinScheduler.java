@@ -0,0 +1,169 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Batch scheduler that shares the batches among the clients by deficit round
+ * robin: in each round, every client with pending requests earns a quantum
+ * of bytes (system.totalordermulticast.schedulerquantum) times its weight
+ * (system.totalordermulticast.clientweights), and its requests are taken
+ * while their size fits in what it earned. What a client did not spend is
+ * kept for the next round (and for the next batch), unless it runs out of
+ * requests. A client that keeps many requests pending thus gets its share
+ * of each batch, not one request per round more than the others, and the
+ * requests of the remaining clients do not wait behind its whole backlog.
+ *
+ * Reconfiguration requests go in a separate lane, ahead of all the others.
+ */
+public class DeficitRoundRobinScheduler implements BatchScheduler {
+
+    private TOMConfiguration conf;
+    private int quantum;
+
+    private final Map<Integer, Long> deficits = new HashMap<Integer, Long>();
+    private int resume = -1; // client where the last batch stopped, the next one starts there
+    private boolean resumeCharged = false; // if that client already earned its quantum for the round
+
+    @Override
+    public void init(TOMConfiguration conf) {
+        this.conf = conf;
+        this.quantum = conf.getSchedulerQuantum();
+    }
+
+    @Override
+    public RequestList schedule(Map<Integer, List<TOMMessage>> pending, int maxBatchSize, int maxBatchBytes) {
+        RequestList batch = new RequestList();
+        int batchBytes = 0;
+
+        int n = pending.size();
+        int[] ids = new int[n];
+        List<List<TOMMessage>> queues = new ArrayList<List<TOMMessage>>(n);
+        int[] next = new int[n]; // first request of each client not taken yet
+        int start = 0;
+        for (Map.Entry<Integer, List<TOMMessage>> e : pending.entrySet()) {
+            if (e.getKey() == resume) start = queues.size();
+            ids[queues.size()] = e.getKey();
+            queues.add(e.getValue());
+        }
+        boolean charged = resumeCharged && n > 0 && ids[start] == resume;
+
+        // the clients that have nothing pending start from scratch
+        deficits.keySet().retainAll(pending.keySet());
+
+        // reconfiguration lane
+        for (int c = 0; c < n; c++) {
+            List<TOMMessage> queue = queues.get(c);
+            while (next[c] < queue.size() && queue.get(next[c]).getReqType() == TOMMessageType.RECONFIG) {
+                TOMMessage request = queue.get(next[c]);
+                int size = ClientsManager.sizeOf(request);
+                if (batch.size() >= maxBatchSize
+                        || (maxBatchBytes > 0 && !batch.isEmpty() && batchBytes + size > maxBatchBytes)) {
+                    return batch;
+                }
+                batch.addLast(request);
+                batchBytes += size;
+                next[c]++;
+            }
+        }
+
+        while (true) {
+            boolean remaining = false;
+            boolean progress = false;
+
+            for (int k = 0; k < n; k++) {
+                int c = (start + k) % n;
+                List<TOMMessage> queue = queues.get(c);
+                if (next[c] == queue.size()) continue;
+
+                Long d = deficits.get(ids[c]);
+                long deficit = (d != null ? d : 0);
+                if (k > 0 || !charged) deficit += share(ids[c]);
+
+                while (next[c] < queue.size()) {
+                    TOMMessage request = queue.get(next[c]);
+                    int size = ClientsManager.sizeOf(request);
+                    if (costOf(size) > deficit) break;
+
+                    if (batch.size() >= maxBatchSize
+                            || (maxBatchBytes > 0 && !batch.isEmpty() && batchBytes + size > maxBatchBytes)) {
+                        // the batch is full, the next one continues with this client
+                        deficits.put(ids[c], deficit);
+                        resume = ids[c];
+                        resumeCharged = true;
+                        return batch;
+                    }
+
+                    batch.addLast(request);
+                    batchBytes += size;
+                    deficit -= costOf(size);
+                    next[c]++;
+                    progress = true;
+                }
+
+                if (next[c] == queue.size()) {
+                    deficits.remove(ids[c]);
+                } else {
+                    deficits.put(ids[c], deficit);
+                    remaining = true;
+                }
+            }
+            charged = false;
+
+            if (!remaining) {
+                resume = -1;
+                resumeCharged = false;
+                return batch;
+            }
+            if (!progress) skipRounds(ids, queues, next);
+        }
+    }
+
+    // when no client could send in a round (their next requests are larger
+    // than a quantum), gives them at once the rounds until one of them can
+    private void skipRounds(int[] ids, List<List<TOMMessage>> queues, int[] next) {
+        long rounds = Long.MAX_VALUE;
+        for (int c = 0; c < ids.length; c++) {
+            if (next[c] == queues.get(c).size()) continue;
+            long missing = costOf(ClientsManager.sizeOf(queues.get(c).get(next[c]))) - deficits.get(ids[c]);
+            long share = share(ids[c]);
+            rounds = Math.min(rounds, (missing + share - 1) / share);
+        }
+        if (rounds <= 1) return;
+
+        for (int c = 0; c < ids.length; c++) {
+            if (next[c] == queues.get(c).size()) continue;
+            deficits.put(ids[c], deficits.get(ids[c]) + (rounds - 1) * share(ids[c]));
+        }
+    }
+
+    private long share(int client) {
+        return (long) quantum * conf.getClientWeight(client);
+    }
+
+    // requests without a known size still cost something
+    private static long costOf(int size) {
+        return Math.max(1, size);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.List;
+import java.util.Map;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * The default batch scheduler: takes one request from each client, in turn,
+ * until the batch is full.
+ */
+public class RoundRobinScheduler implements BatchScheduler {
+
+    @Override
+    public void init(TOMConfiguration conf) {
+    }
+
+    @Override
+    public RequestList schedule(Map<Integer, List<TOMMessage>> pending, int maxBatchSize, int maxBatchBytes) {
+        RequestList batch = new RequestList();
+        int batchBytes = 0;
+
+        for (int i = 0; true; i++) {
+            int noMoreMessages = 0;
+
+            for (List<TOMMessage> requests : pending.values()) {
+                if (batch.size() >= maxBatchSize) return batch;
+
+                if (requests.size() <= i) {
+                    //this client don't have more pending requests
+                    noMoreMessages++;
+                    continue;
+                }
+
+                TOMMessage request = requests.get(i);
+                if (maxBatchBytes > 0) {
+                    int size = ClientsManager.sizeOf(request);
+                    if (!batch.isEmpty() && batchBytes + size > maxBatchBytes) {
+                        //no room for this request, it goes in the next batch
+                        return batch;
+                    }
+                    batchBytes += size;
+                }
+                batch.addLast(request);
+            }
+
+            if (noMoreMessages == pending.size()) return batch;
+        }
+    }
+}
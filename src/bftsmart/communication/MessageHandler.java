@@ -15,22 +15,22 @@ limitations under the License.
 */
 package bftsmart.communication;
 
-import bftsmart.communication.server.ServerConnection;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.consensus.roles.ProposalRelay;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
-import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.timer.ForwardedMessage;
 import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
 import javax.crypto.Mac;
@@ -43,24 +43,28 @@ import javax.crypto.SecretKey;
 public class MessageHandler {
 
     private Acceptor acceptor;
+    private ProposalRelay relay;
     private TOMLayer tomLayer;
     //private Cipher cipher;
     private Mac mac;
+    private Histogram macTime;
     
     public MessageHandler() {
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
+        //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
+        this.mac = TOMUtil.getCryptoProvider().newMac();
     }
     public void setAcceptor(Acceptor acceptor) {
         this.acceptor = acceptor;
     }
 
+    public void setProposalRelay(ProposalRelay relay) {
+        this.relay = relay;
+    }
+
     public void setTOMLayer(TOMLayer tomLayer) {
         this.tomLayer = tomLayer;
+        this.macTime = MetricsRegistry.getInstance(tomLayer.controller.getStaticConf().getProcessId())
+                .histogram("crypto.mac", "ns");
     }
 
     @SuppressWarnings("unchecked")
@@ -71,7 +75,12 @@ public class MessageHandler {
             
             PaxosMessage paxosMsg = (PaxosMessage) sm;
 
-            if (paxosMsg.authenticated || paxosMsg.getSender() == myId) acceptor.deliver(paxosMsg);
+            if ((paxosMsg.getPaxosType() == MessageFactory.PROPOSE_DIGEST || paxosMsg.getPaxosType() == MessageFactory.RELAY)
+                    && paxosMsg.authenticated && relay != null) {
+                // the PROPOSE of the leader is only delivered once its value matches the digest
+                PaxosMessage propose = relay.received(paxosMsg);
+                if (propose != null) acceptor.deliver(propose);
+            } else if (paxosMsg.authenticated || paxosMsg.getSender() == myId) acceptor.deliver(paxosMsg);
             else if (paxosMsg.getPaxosType() == MessageFactory.ACCEPT && paxosMsg.getProof() != null) {
                                         
                 //We are going to verify the MAC vector at the algorithm level
@@ -100,8 +109,10 @@ public class MessageHandler {
                 
                 SecretKey key = tomLayer.getCommunication().getServersConn().getSecretKey(paxosMsg.getSender());
                 try {
+                    long start = System.nanoTime();
                     this.mac.init(key);                   
                     myMAC = this.mac.doFinal(data);
+                    macTime.recordSince(start);
                 } catch (/*IllegalBlockSizeException | BadPaddingException |*/ InvalidKeyException ex) {
                     ex.printStackTrace();
                 }
@@ -146,8 +157,7 @@ public class MessageHandler {
 	            /**************************************************************/
 	
 	            } else if (sm instanceof ForwardedMessage) {
-	                TOMMessage request = ((ForwardedMessage) sm).getRequest();
-	                tomLayer.requestReceived(request);
+	                tomLayer.requestsReceived(((ForwardedMessage) sm).getRequests());
 	
 	            /** This is Joao's code, to handle state transfer */
 	            } else if (sm instanceof SMMessage) {
@@ -15,20 +15,27 @@ limitations under the License.
 */
 package bftsmart.communication;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.communication.server.ServersCommunicationLayer;
+import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.consensus.roles.ProposalRelay;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.Logger;
+import bftsmart.tom.metrics.Gauge;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.trace.TraceEvent;
+import bftsmart.tom.trace.Tracer;
+import bftsmart.tom.util.RingBuffer;
 
 /**
  *
@@ -37,7 +44,8 @@ import bftsmart.tom.util.Logger;
 public class ServerCommunicationSystem extends Thread {
 
     public final long MESSAGE_WAIT_TIME = 100;
-    private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
+    private static final int BATCH_SIZE = 64; // maximum messages taken from the in queue at once
+    private RingBuffer<SystemMessage> inQueue = null;
     protected MessageHandler messageHandler = new MessageHandler();
     private ServersCommunicationLayer serversConn;
     private CommunicationSystemServerSide clientsConn;
@@ -51,7 +59,15 @@ public class ServerCommunicationSystem extends Thread {
 
         this.controller = controller;
 
-        inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
+        inQueue = new RingBuffer<SystemMessage>(controller.getStaticConf().getInQueueSize(),
+                controller.getStaticConf().getWaitStrategy());
+
+        MetricsRegistry.getInstance(controller.getStaticConf().getProcessId()).gauge("queue.in", new Gauge() {
+            @Override
+            public long getValue() {
+                return inQueue.size();
+            }
+        });
 
         //create a new conf, with updated port number for servers
         //TOMConfiguration serversConf = new TOMConfiguration(conf.getProcessId(),
@@ -87,6 +103,10 @@ public class ServerCommunicationSystem extends Thread {
         messageHandler.setAcceptor(acceptor);
     }
 
+    public void setProposalRelay(ProposalRelay relay) {
+        messageHandler.setProposalRelay(relay);
+    }
+
     public void setTOMLayer(TOMLayer tomLayer) {
         messageHandler.setTOMLayer(tomLayer);
     }
@@ -100,28 +120,40 @@ public class ServerCommunicationSystem extends Thread {
 
     /**
      * Thread method responsible for receiving messages sent by other servers.
+     * The messages already in the in queue are taken at once, and only when
+     * there are none does the thread wait for more.
      */
     @Override
     public void run() {
         
         long count = 0;
+        ArrayList<SystemMessage> batch = new ArrayList<SystemMessage>(BATCH_SIZE);
         while (true) {
             try {
-                if (count % 1000 == 0 && count > 0) {
-                    Logger.println("(ServerCommunicationSystem.run) After " + count + " messages, inQueue size=" + inQueue.size());
+                if (inQueue.drainTo(batch, BATCH_SIZE) == 0) {
+                    SystemMessage sm = inQueue.poll(MESSAGE_WAIT_TIME, TimeUnit.MILLISECONDS);
+                    if (sm == null) {
+                        messageHandler.verifyPending();
+                        continue;
+                    }
+                    batch.add(sm);
                 }
 
-                SystemMessage sm = inQueue.poll(MESSAGE_WAIT_TIME, TimeUnit.MILLISECONDS);
-
-                if (sm != null) {
-                    Logger.println("<-------receiving---------- " + sm);
+                for (int i = 0; i < batch.size(); i++) {
+                    SystemMessage sm = batch.get(i);
+                    if (Tracer.isEnabled(TraceEvent.COMMUNICATION)) {
+                        Tracer.trace(TraceEvent.MESSAGE_RECEIVED, sm.getSender(), typeOf(sm), idOf(sm));
+                    }
                     messageHandler.processData(sm);
                     count++;
-                } else {                
-                    messageHandler.verifyPending();               
+                    if (count % 1000 == 0) {
+                        Tracer.trace(TraceEvent.IN_QUEUE_SIZE, count, inQueue.size());
+                    }
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace(System.err);
+            } finally {
+                batch.clear();
             }
         }
     }
@@ -138,11 +170,30 @@ public class ServerCommunicationSystem extends Thread {
         if (sm instanceof TOMMessage) {
             clientsConn.send(targets, (TOMMessage) sm, false);
         } else {
-            Logger.println("--------sending----------> " + sm);
+            if (Tracer.isEnabled(TraceEvent.COMMUNICATION)) {
+                Tracer.trace(TraceEvent.MESSAGE_SENT, targets.length, typeOf(sm), idOf(sm));
+            }
             serversConn.send(targets, sm, true);
         }
     }
 
+    // type of a message, as traced: the paxos type for consensus messages and
+    // the TOMUtil type for leader change and state transfer messages
+    private static int typeOf(SystemMessage sm) {
+        if (sm instanceof PaxosMessage) return ((PaxosMessage) sm).getPaxosType();
+        if (sm instanceof LCMessage) return ((LCMessage) sm).getType();
+        if (sm instanceof SMMessage) return ((SMMessage) sm).getType();
+        return -1;
+    }
+
+    // consensus (or regency, for leader change messages) a message refers to
+    private static int idOf(SystemMessage sm) {
+        if (sm instanceof PaxosMessage) return ((PaxosMessage) sm).getNumber();
+        if (sm instanceof LCMessage) return ((LCMessage) sm).getReg();
+        if (sm instanceof SMMessage) return ((SMMessage) sm).getEid();
+        return -1;
+    }
+
     public ServersCommunicationLayer getServersConn() {
         return serversConn;
     }
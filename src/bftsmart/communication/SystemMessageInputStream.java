@@ -0,0 +1,46 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/**
+ * Stream from which a replica reads the messages sent by the other replicas.
+ * It carries the limits of the replica that reads them, so that a message
+ * (see ForwardedMessage.readExternal()) can check what it is about to read
+ * against the configuration of its reader, even if several replicas run in
+ * the same JVM.
+ */
+public class SystemMessageInputStream extends ObjectInputStream {
+
+    private final int maxRequests;
+
+    /**
+     * Creates a new instance of SystemMessageInputStream
+     * @param in the stream with the serialized message
+     * @param maxRequests maximum number of client requests in a message (e.g., the maximum batch size)
+     */
+    public SystemMessageInputStream(InputStream in, int maxRequests) throws IOException {
+        super(in);
+        this.maxRequests = Math.max(1, maxRequests);
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+}
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.communication.client;
 
+import java.util.List;
+
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
@@ -24,5 +26,10 @@ import bftsmart.tom.core.messages.TOMMessage;
  */
 public interface CommunicationSystemServerSide {   
    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders);
+   /**
+    * Sends several messages to the same client, in order, with a single
+    * write to its connection
+    */
+   public void send(int target, List<TOMMessage> messages);
    public void setRequestReceiver(RequestReceiver requestReceiver);
 }
@@ -400,7 +400,7 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 		//long startTime = System.nanoTime();
 		try {
 			if (signatureEngine == null) {
-				signatureEngine = Signature.getInstance("SHA1withRSA");
+				signatureEngine = Signature.getInstance(controller.getStaticConf().getCryptoProvider().getSignatureAlgorithm());
 			}
 			byte[] result = null;
 
@@ -16,7 +16,7 @@ limitations under the License.
 package bftsmart.communication.client.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.Channel;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
@@ -28,18 +28,16 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.Mac;
@@ -48,8 +46,11 @@ import org.slf4j.LoggerFactory;
 
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.RequestReceiver;
+import bftsmart.communication.server.NetworkEmulator;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.metrics.Counter;
+import bftsmart.tom.metrics.MetricsRegistry;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
@@ -61,18 +62,23 @@ import bftsmart.tom.util.TOMUtil;
 public class NettyClientServerCommunicationSystemServerSide extends SimpleChannelInboundHandler<TOMMessage> implements CommunicationSystemServerSide {
 
 	private RequestReceiver requestReceiver;
-	private HashMap sessionTable;
+	private Map sessionTable;
 	private ReentrantReadWriteLock rl;
 	private ServerViewController controller;
-	private ReentrantLock sendLock = new ReentrantLock();
 	private NettyServerPipelineFactory serverPipelineFactory;
+	private Counter clientBytesReceived;
+	private Counter clientBytesSent;
     private org.slf4j.Logger logger = LoggerFactory.getLogger(NettyClientServerCommunicationSystemServerSide.class);
 
 	public NettyClientServerCommunicationSystemServerSide(ServerViewController controller) {
 		try {
 
 			this.controller = controller;
-			sessionTable = new HashMap();
+			sessionTable = new ConcurrentHashMap();
+
+			MetricsRegistry metrics = MetricsRegistry.getInstance(controller.getStaticConf().getProcessId());
+			clientBytesReceived = metrics.counter("net.client.bytesReceived");
+			clientBytesSent = metrics.counter("net.client.bytesSent");
 			rl = new ReentrantReadWriteLock();
 
 			//Configure the server.
@@ -93,7 +99,8 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 					ch.pipeline().addLast(serverPipelineFactory.getEncoder());
 					ch.pipeline().addLast(serverPipelineFactory.getHandler());
 				}
-			})	.childOption(ChannelOption.SO_KEEPALIVE, true).childOption(ChannelOption.TCP_NODELAY, true);
+			})	.childOption(ChannelOption.SO_KEEPALIVE, true).childOption(ChannelOption.TCP_NODELAY, true)
+				.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
 
 			// Bind and start to accept incoming connections.
 			ChannelFuture f = b.bind(new InetSocketAddress(controller.getStaticConf().getHost(
@@ -131,6 +138,8 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	@Override
 	protected void channelRead0(ChannelHandlerContext arg0, TOMMessage sm) throws Exception {
 		//delivers message to TOMLayer
+		if (sm.serializedMessage != null) clientBytesReceived.add(sm.serializedMessage.length);
+		if (isolated()) return;
 		if (requestReceiver == null)
 			System.out.println("RECEIVER NULO!!!!!!!!!!!!");
 		else requestReceiver.requestReceived(sm);
@@ -175,56 +184,49 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 
 	@Override
 	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
+		if (isolated()) return;
 
-		//serialize message
-		DataOutputStream dos = null;
+		//replies are not signed in the current JBP version; the encoder
+		//serializes them straight into the frame of each target
+		sm.signed = false;
+		int size = sm.getSerializedSize();
 
-		byte[] data = null;
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			dos = new DataOutputStream(baos);
-			sm.wExternal(dos);
-			dos.flush();
-			data = baos.toByteArray();
-			sm.serializedMessage = data;
-		} catch (IOException ex) {
-			Logger.println("Error enconding message.");
-		} finally {
-			try {
-				dos.close();
-			} catch (IOException ex) {
-				System.out.println("Exception closing DataOutputStream: " + ex.getMessage());
+		if (targets.length == 1) sm.destination = targets[0];
+
+		// each channel is written by its own event loop, so no lock is needed
+		// here (the encoder takes the MAC key from the channel's session)
+		for (int i = 0; i < targets.length; i++) {
+			NettyClientServerSession ncss = (NettyClientServerSession) sessionTable.get(targets[i]);
+			if (ncss != null) {
+				ncss.write(sm);
+				clientBytesSent.add(size);
+			} else {
+				System.out.println("!!!!!!!!NettyClientServerSession NULL !!!!!! sequence: " + sm.getSequence() + ", ID; " + targets[i]);
 			}
 		}
+	}
 
-		//replies are not signed in the current JBP version
-		sm.signed = false;
-		//produce signature if necessary (never in the current version)
-		if (sm.signed) {
-			//******* EDUARDO BEGIN **************//
-			byte[] data2 = TOMUtil.signMessage(controller.getStaticConf().getRSAPrivateKey(), data);
-			//******* EDUARDO END **************//
-			sm.serializedMessageSignature = data2;
+	@Override
+	public void send(int target, List<TOMMessage> messages) {
+		if (isolated()) return;
+		NettyClientServerSession ncss = (NettyClientServerSession) sessionTable.get(target);
+		if (ncss == null) {
+			System.out.println("!!!!!!!!NettyClientServerSession NULL !!!!!! " + messages.size() + " messages, ID; " + target);
+			return;
 		}
 
-		for (int i = 0; i < targets.length; i++) {
-			rl.readLock().lock();
-			sendLock.lock();
-			try {       
-				NettyClientServerSession ncss = (NettyClientServerSession) sessionTable.get(targets[i]);
-				if (ncss != null) {
-					Channel session = ncss.getChannel();
-					sm.destination = targets[i];
-					//send message
-					session.writeAndFlush(sm); // This used to invoke "await". Removed to avoid blockage and race condition.
-				} else {
-					System.out.println("!!!!!!!!NettyClientServerSession NULL !!!!!! sequence: " + sm.getSequence() + ", ID; " + targets[i]);
-				}
-			} finally {
-				sendLock.unlock();
-				rl.readLock().unlock();
-			}
+		for (TOMMessage sm : messages) {
+			sm.signed = false;
+			clientBytesSent.add(sm.getSerializedSize());
+			sm.destination = target;
 		}
+		ncss.writeAll(messages);
+	}
+
+	// an emulated crash (see NetworkEmulator) also cuts this replica from its clients
+	private boolean isolated() {
+		NetworkEmulator emulator = NetworkEmulator.getInstance();
+		return emulator != null && emulator.isIsolated(controller.getStaticConf().getProcessId());
 	}
 
 }
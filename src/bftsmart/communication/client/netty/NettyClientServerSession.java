@@ -16,7 +16,12 @@ limitations under the License.
 package bftsmart.communication.client.netty;
 
 import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
 
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -28,12 +33,29 @@ import javax.crypto.Mac;
  * @author Paulo Sousa
  */
 public class NettyClientServerSession {
+
+    /** Attribute through which the channel of a client (at a replica) knows its session */
+    public static final AttributeKey<NettyClientServerSession> SESSION = AttributeKey.valueOf("bftsmart.session");
+
     private Channel channel;
     private Mac macSend;
     private Mac macReceive;
     private int replicaId;
     private Lock lock;
     private int lastMsgReceived;
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            Object msg;
+            while ((msg = pending.poll()) != null) {
+                channel.write(msg);
+            }
+            channel.flush();
+        }
+    };
 
     public NettyClientServerSession(Channel channel, Mac macSend, Mac macReceive, int replicaId) {
         this.channel = channel;
@@ -75,4 +97,28 @@ public class NettyClientServerSession {
         this.lastMsgReceived = lastMsgReceived_;
     }
 
+    /**
+     * Writes a message to the channel of this session, from any thread and
+     * without locking. The message is written by the event loop of the
+     * channel, together with the other messages queued until then, which
+     * are all flushed at once.
+     */
+    public void write(Object msg) {
+        pending.offer(msg);
+        if (flushScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(flushTask);
+        }
+    }
+
+    /**
+     * Writes several messages to the channel of this session (see write()),
+     * all of them flushed at once
+     */
+    public void writeAll(List<?> msgs) {
+        pending.addAll(msgs);
+        if (flushScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(flushTask);
+        }
+    }
+
 }
@@ -19,7 +19,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.MessageToByteEncoder;
 
-import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -27,13 +27,13 @@ import bftsmart.reconfiguration.ServerViewController;
 public class NettyServerPipelineFactory{
 
     NettyClientServerCommunicationSystemServerSide ncs;
-    HashMap sessionTable;
+    Map sessionTable;
     int macLength;
     int signatureLength;
     ServerViewController controller;
     ReentrantReadWriteLock rl;
 
-    public NettyServerPipelineFactory(NettyClientServerCommunicationSystemServerSide ncs, HashMap sessionTable, int macLength, ServerViewController controller, ReentrantReadWriteLock rl, int signatureLength) {
+    public NettyServerPipelineFactory(NettyClientServerCommunicationSystemServerSide ncs, Map sessionTable, int macLength, ServerViewController controller, ReentrantReadWriteLock rl, int signatureLength) {
         this.ncs = ncs;
         this.sessionTable = sessionTable;
         this.macLength = macLength;
@@ -187,6 +187,7 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
                     Mac macReceive = Mac.getInstance(controller.getStaticConf().getHmacAlgorithm());
                     macReceive.init(authKey);
                     NettyClientServerSession cs = new NettyClientServerSession(context.channel(), macSend, macReceive, sm.getSender());
+                    context.channel().attr(NettyClientServerSession.SESSION).set(cs);
                                        
                     rl.writeLock().lock();
 //                    logger.info("PUT INTO SESSIONTABLE - [client id]:"+sm.getSender()+" [channel]: "+cs.getChannel());
@@ -17,6 +17,7 @@ package bftsmart.communication.client.netty;
 
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
@@ -49,6 +50,11 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
 
     @Override
 	protected void encode(ChannelHandlerContext context, TOMMessage sm, ByteBuf buffer) throws Exception {
+        if (sm.serializedMessage == null) {
+            encodeReply(context, sm, buffer);
+            return;
+        }
+
         byte[] msgData;
         byte[] macData = null;
         byte[] signatureData = null;
@@ -62,7 +68,7 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         }
         
         if (useMAC) {
-            macData = produceMAC(sm.destination, msgData, sm.getSender());
+            macData = produceMAC(context, sm.destination, msgData);
             if(macData == null) {
             	System.out.println("uses MAC and the MAC returned is null. Won't write to channel");
             	return;
@@ -85,18 +91,56 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         /* signature */
         if (signatureData != null)
         	buffer.writeBytes(signatureData);
+    }
+
+    // A reply (at a replica) is not serialized beforehand: it is written
+    // straight into the frame, and the MAC is computed over the frame itself.
+    // Replies are never signed.
+    private void encodeReply(ChannelHandlerContext context, TOMMessage sm, ByteBuf buffer) throws Exception {
+        Mac macSend = null;
+        if (useMAC) {
+            macSend = getMacSend(context, sm.destination);
+            if (macSend == null) {
+                System.out.println("uses MAC and the MAC returned is null. Won't write to channel");
+                return;
+            }
+        }
+
+        int msgLength = sm.getSerializedSize();
+        buffer.writeInt(1 + msgLength + (macSend == null ? 0 : macSend.getMacLength()));
+        buffer.writeByte((byte) 0);
+        int start = buffer.writerIndex();
+        sm.wExternal(new ByteBufOutputStream(buffer));
+        if (macSend != null) {
+            macSend.update(buffer.nioBuffer(start, msgLength));
+            buffer.writeBytes(macSend.doFinal());
+        }
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext context, TOMMessage sm, boolean preferDirect) throws Exception {
+        // the exact size of the frame, so the buffer never has to grow
+        int size = 5 + (sm.serializedMessage != null ? sm.serializedMessage.length : sm.getSerializedSize()) +
+                (useMAC ? macLength : 0) +
+                (sm.signed && sm.serializedMessageSignature != null ? sm.serializedMessageSignature.length : 0);
+        return (preferDirect ? context.alloc().ioBuffer(size) : context.alloc().heapBuffer(size));
+    }
 
-        context.flush();
+    byte[] produceMAC(ChannelHandlerContext context, int id, byte[] data) {
+        Mac macSend = getMacSend(context, id);
+        return (macSend == null ? null : macSend.doFinal(data));
     }
 
-    byte[] produceMAC(int id, byte[] data, int me) {
-        NettyClientServerSession session = (NettyClientServerSession)sessionTable.get(id);
+    private Mac getMacSend(ChannelHandlerContext context, int id) {
+        // the same message may be written to several clients at once, so at a
+        // replica the session comes from the channel instead of the destination
+        NettyClientServerSession session = context.channel().attr(NettyClientServerSession.SESSION).get();
+        if (session == null) session = (NettyClientServerSession)sessionTable.get(id);
         if(session == null) {
         	System.out.println("NettyTOMMessageEncoder.produceMAC(). session for client " + id + " is null");
         	return null;
         }
-        Mac macSend = session.getMacSend();
-        return macSend.doFinal(data);
+        return session.getMacSend();
     }
 
 }
@@ -0,0 +1,179 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import bftsmart.tom.util.Logger;
+
+/**
+ * Secrets of the links of a replica with the other replicas, kept on disk so
+ * that a link can be re-established (also after the replica restarts) by
+ * proving the possession of the secret, instead of repeating the
+ * Diffie-Hellman exchange and the signatures that authenticate it.
+ *
+ * A secret is replaced by a new exchange after its lifetime expires, or when
+ * the cache is explicitly cleared (see rotate()).
+ */
+public class LinkKeyCache {
+
+    public final static String DEFAULT_DIR = "files" + File.separator;
+
+    private final File file;
+    private final long lifetime; // in milliseconds, 0 means no expiration
+    private final Map<Integer, Entry> secrets = new HashMap<Integer, Entry>();
+
+    /**
+     * Creates a new instance of LinkKeyCache, loading the secrets stored by
+     * the previous executions of the replica
+     *
+     * @param id id of the replica
+     * @param lifetime number of seconds a secret can be used (0 means forever)
+     */
+    public LinkKeyCache(int id, int lifetime) {
+        this.file = new File(DEFAULT_DIR + "linkkeys." + id);
+        this.lifetime = lifetime * 1000L;
+        load();
+    }
+
+    /**
+     * @param remoteId the replica at the other end of the link
+     * @return the secret of the link, or null if there is none or it expired
+     */
+    public synchronized byte[] get(int remoteId) {
+        Entry entry = secrets.get(remoteId);
+        if (entry == null) return null;
+
+        if (lifetime > 0 && System.currentTimeMillis() - entry.created > lifetime) {
+            Logger.println("(LinkKeyCache.get) Secret of the link with " + remoteId + " expired");
+            secrets.remove(remoteId);
+            store();
+            return null;
+        }
+        return entry.secret;
+    }
+
+    /**
+     * Stores the secret just established with a replica
+     */
+    public synchronized void put(int remoteId, byte[] secret) {
+        secrets.put(remoteId, new Entry(System.currentTimeMillis(), secret));
+        store();
+    }
+
+    /**
+     * Discards the secret of a link (e.g., because the other replica no
+     * longer has it)
+     */
+    public synchronized void remove(int remoteId) {
+        if (secrets.remove(remoteId) != null) store();
+    }
+
+    /**
+     * Discards all secrets, so that the next connection with each replica
+     * establishes a new one
+     */
+    public synchronized void rotate() {
+        secrets.clear();
+        store();
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int remoteId = in.readInt();
+                long created = in.readLong();
+                byte[] secret = new byte[in.readInt()];
+                in.readFully(secret);
+                secrets.put(remoteId, new Entry(created, secret));
+            }
+        } catch (IOException ex) {
+            // a damaged cache only means new Diffie-Hellman exchanges
+            System.out.println("Could not read the link keys from " + file + ": " + ex.getMessage());
+            secrets.clear();
+        } finally {
+            close(in);
+        }
+    }
+
+    private void store() {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+
+        // written aside and then renamed, so a crash never leaves a partial cache
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(false, false);
+            tmp.setWritable(true, true);
+
+            out.writeInt(secrets.size());
+            for (Map.Entry<Integer, Entry> e : secrets.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeLong(e.getValue().created);
+                out.writeInt(e.getValue().secret.length);
+                out.write(e.getValue().secret);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) throw new FileNotFoundException(file.getPath());
+            }
+        } catch (IOException ex) {
+            System.out.println("Could not store the link keys in " + file + ": " + ex.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    private static class Entry {
+
+        final long created;
+        final byte[] secret;
+
+        Entry(long created, byte[] secret) {
+            this.created = created;
+            this.secret = secret;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emulates the links between replicas running in the same JVM (e.g., in
+ * the in-process cluster of bftsmart.benchmark), by delaying the messages
+ * sent by the ServerConnections according to the latency and bandwidth of
+ * each link, and by dropping the messages to and from isolated replicas
+ * (which, for the other replicas, is the same as the replica crashing).
+ *
+ * Messages of the same link are delivered in the order they were sent. The
+ * links between clients and replicas are not emulated, but an isolated
+ * replica neither receives requests from nor sends replies to its clients.
+ *
+ * No emulator is installed by default, in which case messages are sent as
+ * usual.
+ */
+public class NetworkEmulator {
+
+    private static volatile NetworkEmulator instance = null;
+
+    private final long defaultDelay; // in nanoseconds
+    private final long defaultBandwidth; // in bytes per second, 0 means unlimited
+    private final Map<Long, Link> links = new HashMap<Long, Link>();
+    private final Set<Integer> isolated = new HashSet<Integer>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates a new instance of NetworkEmulator
+     * @param delay latency of every link, in milliseconds
+     * @param bandwidth bandwidth of every link, in bytes per second (0 means unlimited)
+     */
+    public NetworkEmulator(long delay, long bandwidth) {
+        this.defaultDelay = delay * 1000000L;
+        this.defaultBandwidth = bandwidth;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Network emulator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the installed emulator, or null if there is none
+     */
+    public static NetworkEmulator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Makes the connections of all replicas in this JVM go through an emulator
+     * @param emulator the emulator to be used (null to stop emulating)
+     */
+    public static void install(NetworkEmulator emulator) {
+        NetworkEmulator previous = instance;
+        instance = emulator;
+        if (previous != null && previous != emulator) previous.close();
+    }
+
+    /**
+     * Changes the latency and bandwidth of the link from a replica to another
+     * @param from the sender
+     * @param to the receiver
+     * @param delay latency of the link, in milliseconds
+     * @param bandwidth bandwidth of the link, in bytes per second (0 means unlimited)
+     */
+    public void setLink(int from, int to, long delay, long bandwidth) {
+        Link link = getLink(from, to);
+        synchronized (link) {
+            link.delay = delay * 1000000L;
+            link.bandwidth = bandwidth;
+        }
+    }
+
+    /**
+     * Drops all messages from and to a replica, until it is healed
+     * @param id the replica
+     */
+    public synchronized void isolate(int id) {
+        isolated.add(id);
+    }
+
+    public synchronized void heal(int id) {
+        isolated.remove(id);
+    }
+
+    public synchronized boolean isIsolated(int id) {
+        return isolated.contains(id);
+    }
+
+    /**
+     * Invoked by a connection for each message it is about to send
+     *
+     * @param from the sender
+     * @param to the receiver
+     * @param size the size of the message, in bytes
+     * @param delivery sends the message, if the emulator takes it
+     * @return false if the message should be sent right away, true if it
+     * was taken by the emulator (to be sent later through the delivery
+     * task, or dropped)
+     */
+    public boolean emulate(int from, int to, int size, Runnable delivery) {
+        synchronized (this) {
+            if (isolated.contains(from) || isolated.contains(to)) return true;
+        }
+
+        Link link = getLink(from, to);
+        long due;
+        synchronized (link) {
+            if (link.delay == 0 && link.bandwidth == 0) return false;
+
+            long now = System.nanoTime();
+            long start = Math.max(now, link.free);
+            link.free = start + (link.bandwidth > 0 ? (size * 1000000000L) / link.bandwidth : 0);
+
+            // keeps the order of the link even if its latency decreased
+            due = Math.max(link.free + link.delay, link.lastDue);
+            link.lastDue = due;
+
+            // schedules while holding the lock, so tasks with the same due
+            // time are queued in the order they were sent
+            try {
+                timer.schedule(delivery, due - now, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                return false; // closed in the meantime
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops delivering delayed messages
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private synchronized Link getLink(int from, int to) {
+        Long key = ((long) from << 32) | (to & 0xFFFFFFFFL);
+        Link link = links.get(key);
+        if (link == null) {
+            link = new Link(defaultDelay, defaultBandwidth);
+            links.put(key, link);
+        }
+        return link;
+    }
+
+    private static class Link {
+        long delay;
+        long bandwidth;
+        long free = Long.MIN_VALUE; // when the link finishes transmitting what was sent before
+        long lastDue = Long.MIN_VALUE;
+
+        Link(long delay, long bandwidth) {
+            this.delay = delay;
+            this.bandwidth = bandwidth;
+        }
+    }
+}
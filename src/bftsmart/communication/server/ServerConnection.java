@@ -16,33 +16,41 @@ limitations under the License.
 package bftsmart.communication.server;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageInputStream;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.metrics.Counter;
+import bftsmart.tom.metrics.Gauge;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.util.CryptoProvider;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.RingBuffer;
 import bftsmart.tom.util.TOMUtil;
 import java.math.BigInteger;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
@@ -54,8 +62,13 @@ import java.util.HashSet;
  */
 public class ServerConnection {
 
-    public static final String MAC_ALGORITHM = "HmacMD5";
     private static final long POOL_TIME = 5000;
+    private static final long MIN_BACKOFF = 10; // delays between attempts to (re)connect, in milliseconds
+    private static final long MAX_BACKOFF = 500;
+    private static final int NONCE_SIZE = 16;
+    private static final SecureRandom random = new SecureRandom();
+    private static final int SEND_BATCH = 32; // maximum messages written to the socket at once
+    private static final int SEND_BATCH_BYTES = 64 * 1024; // stop adding messages to a write after this size
     //private static final int SEND_QUEUE_SIZE = 50;
     private ServerViewController controller;
     private Socket socket;
@@ -63,76 +76,97 @@ public class ServerConnection {
     private DataInputStream socketInStream = null;
     private int remoteId;
     private boolean useSenderThread;
-    protected LinkedBlockingQueue<byte[]> outQueue;// = new LinkedBlockingQueue<byte[]>(SEND_QUEUE_SIZE);
+    protected RingBuffer<byte[]> outQueue;
     private HashSet<Integer> noMACs = null; // this is used to keep track of data to be sent without a MAC.
                                             // It uses the reference id for that same data
-    private LinkedBlockingQueue<SystemMessage> inQueue;
+    private RingBuffer<SystemMessage> inQueue;
     private SecretKey authKey = null;
-    private Mac macSend;
-    private Mac macReceive;
-    private int macSize;
+    private CryptoProvider cryptoProvider;
+    private int rekeyInterval;
+    private volatile Link link = null; // set once the connection is authenticated
     private Lock connectLock = new ReentrantLock();
+    private Condition connected = connectLock.newCondition();
+    private long backoff = 0; // delay before the next attempt to connect
+    private LinkKeyCache keyCache;
     /** Only used when there is no sender Thread */
     private Lock sendLock;
+    private ByteArrayOutputStream frames = new ByteArrayOutputStream(); // only used by the thread that sends (under sendLock if there is no sender thread)
+    private Counter bytesSent;
+    private Counter messagesSent;
+    private Counter bytesReceived;
+    private Counter messagesReceived;
+    private Histogram macTime;
     private boolean doWork = true;
 
     public ServerConnection(ServerViewController controller, Socket socket, int remoteId,
-            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) {
+            RingBuffer<SystemMessage> inQueue, ServiceReplica replica) {
+        this(controller, socket, remoteId, inQueue, replica, null);
+    }
 
-        this.controller = controller;
+    /**
+     * Creates the connection with a remote server. The connection itself is
+     * established by the threads of this object (or, if the remote server is
+     * the one that connects, when its socket is passed to reconnect()), so
+     * the connections with several servers are established concurrently.
+     *
+     * @param socket socket accepted from the remote server, or null
+     * @param keyCache secrets of the links established previously (null if they are not kept)
+     */
+    public ServerConnection(ServerViewController controller, Socket socket, int remoteId,
+            RingBuffer<SystemMessage> inQueue, ServiceReplica replica, LinkKeyCache keyCache) {
 
-        this.socket = socket;
+        this.controller = controller;
 
         this.remoteId = remoteId;
 
+        this.keyCache = keyCache;
+
         this.inQueue = inQueue;
 
-        this.outQueue = new LinkedBlockingQueue<byte[]>(this.controller.getStaticConf().getOutQueueSize());
+        this.outQueue = new RingBuffer<byte[]>(this.controller.getStaticConf().getOutQueueSize(),
+                this.controller.getStaticConf().getWaitStrategy());
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance(this.controller.getStaticConf().getProcessId());
+        this.bytesSent = metrics.counter("net.bytesSent");
+        this.messagesSent = metrics.counter("net.messagesSent");
+        this.bytesReceived = metrics.counter("net.bytesReceived");
+        this.messagesReceived = metrics.counter("net.messagesReceived");
+        this.macTime = metrics.histogram("crypto.mac", "ns");
+        metrics.gauge("queue.out." + remoteId, new Gauge() {
+            @Override
+            public long getValue() {
+                return outQueue.size();
+            }
+        });
 
         this.noMACs = new HashSet<Integer>();
-        // Connect to the remote process or just wait for the connection?
-        if (isToConnect()) {
-            //I have to connect to the remote server
-            try {
-                this.socket = new Socket(this.controller.getStaticConf().getHost(remoteId),
-                        this.controller.getStaticConf().getServerToServerPort(remoteId));
-                ServersCommunicationLayer.setSocketOptions(this.socket);
-                new DataOutputStream(this.socket.getOutputStream()).writeInt(this.controller.getStaticConf().getProcessId());
 
-            } catch (UnknownHostException ex) {
-                ex.printStackTrace();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-        //else I have to wait a connection from the remote server
+        this.cryptoProvider = this.controller.getStaticConf().getCryptoProvider();
+        this.rekeyInterval = this.controller.getStaticConf().getRekeyInterval();
 
-        if (this.socket != null) {
-            try {
-                socketOutStream = new DataOutputStream(this.socket.getOutputStream());
-                socketInStream = new DataInputStream(this.socket.getInputStream());
-            } catch (IOException ex) {
-                Logger.println("Error creating connection to "+remoteId);
-                ex.printStackTrace();
-            }
+        if (socket != null) {
+            reconnect(socket);
         }
-               
+        //else either this server connects to the remote one (in the first attempt to
+        //send or receive), or it waits for the connection from the remote server
+
+        ExecutorRegistry executors = ExecutorRegistry.getInstance(this.controller.getStaticConf().getProcessId());
+
        //******* EDUARDO BEGIN **************//
         this.useSenderThread = this.controller.getStaticConf().isUseSenderThread();
 
         if (useSenderThread && (this.controller.getStaticConf().getTTPId() != remoteId)) {
-            new SenderThread().start();
+            executors.start("Sender for " + remoteId, new SenderThread());
         } else {
             sendLock = new ReentrantLock();
         }
-        authenticateAndEstablishAuthKey();
-        
+
         if (!this.controller.getStaticConf().isTheTTP()) {
             if (this.controller.getStaticConf().getTTPId() == remoteId) {
                 //Uma thread "diferente" para as msgs recebidas da TTP
-                new TTPReceiverThread(replica).start();
+                executors.start("TTPReceiver for " + remoteId, new TTPReceiverThread(replica));
             } else {
-                new ReceiverThread().start();
+                executors.start("Receiver for " + remoteId, new ReceiverThread());
             }
         }
         //******* EDUARDO END **************//
@@ -141,7 +175,26 @@ public class ServerConnection {
     public SecretKey getSecretKey() {
         return authKey;
     }
-    
+
+    /**
+     * Waits until the link with the remote server is authenticated
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return the key used for MAC vectors, or null if the link is still not authenticated
+     */
+    public SecretKey waitSecretKey(long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        connectLock.lock();
+        try {
+            while (authKey == null && doWork && remaining > 0) {
+                remaining = connected.awaitNanos(remaining);
+            }
+            return authKey;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
     /**
      * Stop message sending and reception.
      */
@@ -150,12 +203,30 @@ public class ServerConnection {
         
         doWork = false;
         closeSocket();
+
+        connectLock.lock();
+        connected.signalAll();
+        connectLock.unlock();
     }
 
     /**
      * Used to send packets to the remote server.
      */
-    public final void send(byte[] data, boolean useMAC) throws InterruptedException {
+    public final void send(final byte[] data, final boolean useMAC) throws InterruptedException {
+        NetworkEmulator emulator = NetworkEmulator.getInstance();
+        if (emulator != null && emulator.emulate(this.controller.getStaticConf().getProcessId(), remoteId, data.length,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        doSend(data, useMAC);
+                    }
+                })) {
+            return;
+        }
+        doSend(data, useMAC);
+    }
+
+    private void doSend(byte[] data, boolean useMAC) {
         if (useSenderThread) {
             //only enqueue messages if there queue is not full
             if (!useMAC) {
@@ -177,42 +248,68 @@ public class ServerConnection {
      * try to send a message through the socket
      * if some problem is detected, a reconnection is done
      */
-    private final void sendBytes(byte[] messageData, boolean useMAC) {       
+    private final void sendBytes(byte[] messageData, boolean useMAC) {
+        sendBytes(new byte[][] {messageData}, new boolean[] {useMAC}, 1);
+    }
+
+    /**
+     * try to send several messages through the socket, with a single write
+     * if some problem is detected, a reconnection is done
+     */
+    private final void sendBytes(byte[][] messages, boolean[] useMACs, int count) {
         boolean abort = false;
         do {
             if (abort) return; // if there is a need to reconnect, abort this method
-            if (socket != null && socketOutStream != null) {
+            Link current = link;
+            if (current != null) {
                 try {
-                    //do an extra copy of the data to be sent, but on a single out stream write
-                    byte[] mac = (useMAC && this.controller.getStaticConf().getUseMACs() == 1)?macSend.doFinal(messageData):null;
-                    byte[] data = new byte[5 +messageData.length+((mac!=null)?mac.length:0)];
-                    int value = messageData.length;
-
-                    System.arraycopy(new byte[]{(byte)(value >>> 24),(byte)(value >>> 16),(byte)(value >>> 8),(byte)value},0,data,0,4);
-                    System.arraycopy(messageData,0,data,4,messageData.length);
-                    if(mac != null) {
-                        //System.arraycopy(mac,0,data,4+messageData.length,mac.length);
-                        System.arraycopy(new byte[]{ (byte) 1},0,data,4+messageData.length,1);
-                        System.arraycopy(mac,0,data,5+messageData.length,mac.length);
-                    } else {
-                        System.arraycopy(new byte[]{(byte) 0},0,data,4+messageData.length,1);                        
+                    // framed again on each attempt, with the keys of the connection written to
+                    frames.reset();
+                    for (int i = 0; i < count; i++) {
+                        frame(messages[i], useMACs[i], current.send);
                     }
 
-                    socketOutStream.write(data);
+                    frames.writeTo(current.out);
+                    bytesSent.add(frames.size());
+                    messagesSent.add(count);
+                    if (frames.size() > 16 * SEND_BATCH_BYTES) {
+                        frames = new ByteArrayOutputStream(); // do not keep the space used by a large message
+                    }
 
+                    return;
+                } catch (InvalidKeyException ex) {
+                    ex.printStackTrace();
                     return;
                 } catch (IOException ex) {
-                    closeSocket();
+                    closeSocket(current);
                     waitAndConnect();
-                    abort = true;
+                    abort = (socket == null); // the messages are still sent if the connection was re-established
                 }
             } else {
                 waitAndConnect();
-                abort = true;
+                abort = (socket == null);
             }
         } while (doWork);
     }
 
+    // appends a message to frames: length, data, MAC flag and MAC (if any)
+    private void frame(byte[] messageData, boolean useMAC, LinkKey key) throws InvalidKeyException {
+        byte[] mac = (useMAC && this.controller.getStaticConf().getUseMACs() == 1)?key.compute(messageData):null;
+        int value = messageData.length;
+
+        frames.write(value >>> 24);
+        frames.write(value >>> 16);
+        frames.write(value >>> 8);
+        frames.write(value);
+        frames.write(messageData, 0, messageData.length);
+        if (mac != null) {
+            frames.write(1);
+            frames.write(mac, 0, mac.length);
+        } else {
+            frames.write(0);
+        }
+    }
+
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
     private boolean isToConnect() {
@@ -273,7 +370,15 @@ public class ServerConnection {
         
         connectLock.lock();
 
-        if (socket == null || !socket.isConnected()) {
+        if (socket != null && newSocket != null) {
+            // the remote server reconnected before this one noticed the old connection was lost;
+            // it tries again shortly, by which time the old connection is closed
+            Logger.println("Connection from " + remoteId + " refused, as the previous one is still open");
+            try {
+                newSocket.close();
+            } catch (IOException ex) {
+            }
+        } else if (socket == null || !socket.isConnected()) {
 
             try {
 
@@ -293,7 +398,7 @@ public class ServerConnection {
                 ex.printStackTrace();
             } catch (IOException ex) {
                 
-                System.out.println("Impossible to reconnect to replica " + remoteId);
+                Logger.println("Impossible to reconnect to replica " + remoteId);
                 //ex.printStackTrace();
             }
 
@@ -301,11 +406,16 @@ public class ServerConnection {
                 try {
                     socketOutStream = new DataOutputStream(socket.getOutputStream());
                     socketInStream = new DataInputStream(socket.getInputStream());
-                    
-                    authKey = null;
-                    authenticateAndEstablishAuthKey();
+
+                    if (authenticateAndEstablishAuthKey()) {
+                        backoff = 0;
+                        connected.signalAll();
+                    } else {
+                        closeSocket();
+                    }
                 } catch (IOException ex) {
                     ex.printStackTrace();
+                    closeSocket();
                 }
             }
         }
@@ -313,99 +423,264 @@ public class ServerConnection {
         connectLock.unlock();
     }
 
-    //TODO!
-    public void authenticateAndEstablishAuthKey() {
-        if (authKey != null || socketOutStream == null || socketInStream == null) {
-            return;
+    /**
+     * Authenticates the remote server and establishes the keys of the link.
+     *
+     * Both servers send a fresh nonce, and say whether they still have the
+     * secret of their link from a previous connection. If both do, each one
+     * proves it has the secret with a MAC over both nonces. Otherwise (or if
+     * a proof fails), they perform a Diffie-Hellman exchange authenticated
+     * with their RSA keys, and derive a new secret from it. The keys of the
+     * connection are derived from the secret and the nonces, so they are
+     * different in every connection. If the protocol fails, the keys of the
+     * previous connection are kept (e.g., for the MAC vectors) until a new
+     * connection is authenticated.
+     *
+     * @return true if the link was authenticated, false otherwise
+     */
+    public boolean authenticateAndEstablishAuthKey() {
+        if (socketOutStream == null || socketInStream == null) {
+            return false;
         }
 
         try {
-            //if (conf.getProcessId() > remoteId) {
-            // I asked for the connection, so I'm first on the auth protocol
-            //DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            //} else {
-            // I received a connection request, so I'm second on the auth protocol
-            //DataInputStream dis = new DataInputStream(socket.getInputStream());
-            //}
-            
-            //Derive DH private key from replica's own RSA private key
-            
-            PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
-            BigInteger DHPrivKey =
-                    new BigInteger(RSAprivKey.getEncoded());
-            
-            //Create DH public key
-            BigInteger myDHPubKey =
-                    controller.getStaticConf().getDHG().modPow(DHPrivKey, controller.getStaticConf().getDHP());
-            
-            //turn it into a byte array
-            byte[] bytes = myDHPubKey.toByteArray();
-            
-            byte[] signature = TOMUtil.signMessage(RSAprivKey, bytes);
-            
-            //send my DH public key and signature
-            socketOutStream.writeInt(bytes.length);
-            socketOutStream.write(bytes);
-            
-            socketOutStream.writeInt(signature.length);
-            socketOutStream.write(signature);
-            
-            //receive remote DH public key and signature
-            int dataLength = socketInStream.readInt();
-            bytes = new byte[dataLength];
-            int read = 0;
-            do {
-                read += socketInStream.read(bytes, read, dataLength - read);
-                
-            } while (read < dataLength);
-            
-            byte[] remote_Bytes = bytes;
+            // the remote server might have stopped in the middle of the protocol
+            socket.setSoTimeout((int) POOL_TIME);
+
+            int me = controller.getStaticConf().getProcessId();
+            byte[] myNonce = new byte[NONCE_SIZE];
+            random.nextBytes(myNonce);
+            byte[] linkSecret = (keyCache != null ? keyCache.get(remoteId) : null);
+
+            socketOutStream.write(myNonce);
+            socketOutStream.writeBoolean(linkSecret != null);
+            socketOutStream.flush();
+
+            byte[] remoteNonce = new byte[NONCE_SIZE];
+            socketInStream.readFully(remoteNonce);
+            boolean remoteHasSecret = socketInStream.readBoolean();
+
+            // the proofs are only exchanged if both servers have the secret
+            if (linkSecret != null && (!remoteHasSecret || !proveLinkSecret(linkSecret, myNonce, remoteNonce))) {
+                keyCache.remove(remoteId);
+                linkSecret = null;
+            }
 
-            dataLength = socketInStream.readInt();
-            bytes = new byte[dataLength];
-            read = 0;
-            do {
-                read += socketInStream.read(bytes, read, dataLength - read);
-                
-            } while (read < dataLength);
-            
-            byte[] remote_Signature = bytes;
-            
-            //verify signature
-            PublicKey remoteRSAPubkey = controller.getStaticConf().getRSAPublicKey(remoteId);
-            
-            if (!TOMUtil.verifySignature(remoteRSAPubkey, remote_Bytes, remote_Signature)) {
-                
-                System.out.println(remoteId + " sent an invalid signature!");
-                shutdown();
-                return;
+            // the nonce of the server with the lowest id comes first
+            ByteArrayOutputStream nonces = new ByteArrayOutputStream(2 * NONCE_SIZE);
+            nonces.write(me < remoteId ? myNonce : remoteNonce);
+            nonces.write(me < remoteId ? remoteNonce : myNonce);
+
+            if (linkSecret == null) {
+                byte[] sharedSecret = exchangeDHKeys();
+                if (sharedSecret == null) {
+                    return false;
+                }
+                linkSecret = cryptoProvider.deriveKey(concat(sharedSecret, nonces.toByteArray()), "link secret").getEncoded();
+                if (keyCache != null) {
+                    keyCache.put(remoteId, linkSecret);
+                }
+                System.out.println("#Diffie-Hellman complete with " + remoteId);
+            } else {
+                System.out.println("#Link with " + remoteId + " authenticated with the cached secret");
             }
-            
-            BigInteger remoteDHPubKey = new BigInteger(remote_Bytes);
 
-            //Create secret key
-            BigInteger secretKey =
-                    remoteDHPubKey.modPow(DHPrivKey, controller.getStaticConf().getDHP());
-            
-           System.out.println("#Diffie-Hellman complete with " + remoteId);
-            
-            SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            PBEKeySpec spec = new PBEKeySpec(secretKey.toString().toCharArray());
-            
-            //PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
-            authKey = fac.generateSecret(spec);
-
-            macSend = Mac.getInstance(MAC_ALGORITHM);
-            macSend.init(authKey);
-            macReceive = Mac.getInstance(MAC_ALGORITHM);
-            macReceive.init(authKey);
-            macSize = macSend.getMacLength();
+            socket.setSoTimeout(0);
+            byte[] material = concat(linkSecret, nonces.toByteArray());
+
+            // the key used for MAC vectors is shared by both replicas, while each
+            // direction of the link has its own key, replaced every rekeyInterval messages
+            authKey = cryptoProvider.deriveKey(material, "auth");
+            link = new Link(socketOutStream, socketInStream,
+                    new LinkKey(cryptoProvider.deriveKey(material, "link " + me + " " + remoteId)),
+                    new LinkKey(cryptoProvider.deriveKey(material, "link " + remoteId + " " + me)));
+            return true;
         } catch (Exception ex) {
-            ex.printStackTrace();
+            System.out.println("Could not authenticate the connection with " + remoteId + ": " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * Both servers prove they have the secret of the link, using a MAC over
+     * the nonces of the connection (so proofs cannot be replayed), and tell
+     * each other whether the proof they received is valid.
+     *
+     * @return true if both servers proved to have the secret
+     */
+    private boolean proveLinkSecret(byte[] linkSecret, byte[] myNonce, byte[] remoteNonce) throws IOException {
+        int me = controller.getStaticConf().getProcessId();
+        SecretKey proofKey = cryptoProvider.deriveKey(linkSecret, "proof");
+
+        byte[] proof = cryptoProvider.computeMac(proofKey, proofData(me, remoteId, myNonce, remoteNonce));
+        socketOutStream.writeInt(proof.length);
+        socketOutStream.write(proof);
+        socketOutStream.flush();
+
+        // the proof is a MAC, so it has the same length as this server's
+        int proofLength = socketInStream.readInt();
+        if (proofLength != proof.length) {
+            throw new IOException("Invalid proof length " + proofLength + " from " + remoteId);
+        }
+        byte[] remoteProof = new byte[proofLength];
+        socketInStream.readFully(remoteProof);
+
+        boolean valid = MessageDigest.isEqual(remoteProof,
+                cryptoProvider.computeMac(proofKey, proofData(remoteId, me, remoteNonce, myNonce)));
+        socketOutStream.writeBoolean(valid);
+        socketOutStream.flush();
+
+        boolean accepted = socketInStream.readBoolean();
+        if (!(valid && accepted)) {
+            Logger.println("Cached secret of the link with " + remoteId + " not accepted, using Diffie-Hellman");
+        }
+        return valid && accepted;
+    }
+
+    private static byte[] proofData(int from, int to, byte[] fromNonce, byte[] toNonce) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(8 + 2 * NONCE_SIZE);
+        DataOutputStream out = new DataOutputStream(bOut);
+        out.writeInt(from);
+        out.writeInt(to);
+        out.write(fromNonce);
+        out.write(toNonce);
+        out.flush();
+        return bOut.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Diffie-Hellman exchange, authenticated with the RSA keys of the servers
+     *
+     * @return the shared secret, or null if the remote server could not be authenticated
+     */
+    private byte[] exchangeDHKeys() throws Exception {
+        //Derive DH private key from replica's own RSA private key
+
+        PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
+        BigInteger DHPrivKey =
+                new BigInteger(RSAprivKey.getEncoded());
+
+        //Create DH public key
+        BigInteger myDHPubKey =
+                controller.getStaticConf().getDHG().modPow(DHPrivKey, controller.getStaticConf().getDHP());
+
+        //turn it into a byte array
+        byte[] bytes = myDHPubKey.toByteArray();
+
+        byte[] signature = TOMUtil.signMessage(RSAprivKey, bytes);
+
+        //send my DH public key and signature
+        socketOutStream.writeInt(bytes.length);
+        socketOutStream.write(bytes);
+
+        socketOutStream.writeInt(signature.length);
+        socketOutStream.write(signature);
+        socketOutStream.flush();
+
+        //receive remote DH public key and signature
+        byte[] remote_Bytes = new byte[socketInStream.readInt()];
+        socketInStream.readFully(remote_Bytes);
+
+        byte[] remote_Signature = new byte[socketInStream.readInt()];
+        socketInStream.readFully(remote_Signature);
+
+        //verify signature
+        PublicKey remoteRSAPubkey = controller.getStaticConf().getRSAPublicKey(remoteId);
+
+        if (!TOMUtil.verifySignature(remoteRSAPubkey, remote_Bytes, remote_Signature)) {
+
+            System.out.println(remoteId + " sent an invalid signature!");
+            shutdown();
+            return null;
+        }
+
+        BigInteger remoteDHPubKey = new BigInteger(remote_Bytes);
+
+        //Create secret key
+        BigInteger secretKey =
+                remoteDHPubKey.modPow(DHPrivKey, controller.getStaticConf().getDHP());
+
+        return secretKey.toByteArray();
+    }
+
+    /**
+     * The streams of an authenticated connection, with the MAC keys of each
+     * direction. It is replaced as a whole when the connection is
+     * re-established, so a message is always MACed (and counted for rekeying)
+     * with the keys of the connection it is written to or read from.
+     */
+    private static final class Link {
+
+        final DataOutputStream out;
+        final DataInputStream in;
+        final LinkKey send;    // only used by the thread that writes to the socket
+        final LinkKey receive; // only used by the thread that reads from the socket
+
+        Link(DataOutputStream out, DataInputStream in, LinkKey send, LinkKey receive) {
+            this.out = out;
+            this.in = in;
+            this.send = send;
+            this.receive = receive;
+        }
+    }
+
+    /**
+     * MAC key of one direction of a connection, replaced after rekeyInterval
+     * messages. Both replicas replace it at the same message, as the sender
+     * counts the MACs it computes and the receiver the MACs it verifies.
+     */
+    private final class LinkKey {
+
+        private final Mac mac;
+        private SecretKey key;
+        private int count = 0; // MACs computed with the current key
+
+        LinkKey(SecretKey key) throws InvalidKeyException {
+            this.key = key;
+            this.mac = cryptoProvider.newMac();
+            this.mac.init(key);
+        }
+
+        int length() {
+            return mac.getMacLength();
+        }
+
+        byte[] compute(byte[] data) throws InvalidKeyException {
+            long start = System.nanoTime();
+            byte[] result = mac.doFinal(data);
+            macTime.recordSince(start);
+            if (rekeyInterval > 0 && ++count >= rekeyInterval) {
+                key = cryptoProvider.deriveKey(key.getEncoded(), "rekey");
+                mac.init(key);
+                count = 0;
+            }
+            return result;
+        }
+
+        boolean verify(byte[] data, byte[] receivedMac) throws InvalidKeyException {
+            return MessageDigest.isEqual(compute(data), receivedMac);
+        }
+    }
+
+    // closes the connection after an error, unless it was already replaced by a new one
+    private void closeSocket(Link failed) {
+        connectLock.lock();
+        try {
+            if (link == failed) closeSocket();
+        } finally {
+            connectLock.unlock();
         }
     }
 
     private void closeSocket() {
+        link = null;
         if (socket != null) {
             try {
                 socketOutStream.flush();
@@ -422,44 +697,81 @@ public class ServerConnection {
         }
     }
 
+    /**
+     * Waits until the connection is re-established. If this server is the one
+     * that connects, it tries again after a delay that starts at zero and
+     * doubles (up to MAX_BACKOFF) with each failed attempt; otherwise it waits
+     * until the connection from the remote server is handed to reconnect().
+     * The messages waiting to be sent are discarded if the connection is
+     * still down afterwards.
+     */
     private void waitAndConnect() {
         if (doWork) {
+            connectLock.lock();
             try {
-                Thread.sleep(POOL_TIME);
+                if (socket != null) {
+                    return; // re-established by another thread in the meantime
+                }
+                if (isToConnect()) {
+                    if (backoff > 0) {
+                        connected.await(backoff, TimeUnit.MILLISECONDS);
+                    }
+                    if (socket == null && doWork) {
+                        reconnect(null);
+                    }
+                    if (socket == null) {
+                        backoff = Math.min(Math.max(2 * backoff, MIN_BACKOFF), MAX_BACKOFF);
+                    }
+                } else {
+                    connected.await(POOL_TIME, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException ie) {
+            } finally {
+                if (socket == null) {
+                    outQueue.clear();
+                }
+                connectLock.unlock();
             }
-
-            outQueue.clear();
-            reconnect(null);
         }
     }
 
     /**
-     * Thread used to send packets to the remote server.
+     * Loop used to send packets to the remote server, run by its own thread
+     * (see ExecutorRegistry.start()).
      */
-    private class SenderThread extends Thread {
-
-        public SenderThread() {
-            super("Sender for " + remoteId);
-        }
+    private class SenderThread implements Runnable {
 
         @Override
         public void run() {
-            byte[] data = null;
+            byte[][] batch = new byte[SEND_BATCH][];
+            boolean[] macs = new boolean[SEND_BATCH];
 
             while (doWork) {
-                //get a message to be sent
+                //get the messages to be sent: waits for the first one, and
+                //takes the ones that are already queued after it
+                byte[] data = null;
                 try {
                     data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
                 } catch (InterruptedException ex) {
                 }
 
-                if (data != null) {
-                    //sendBytes(data, noMACs.contains(System.identityHashCode(data)));
+                int count = 0;
+                int bytes = 0;
+                while (data != null) {
                     int ref = System.identityHashCode(data);
                     boolean sendMAC = !noMACs.remove(ref);
                     Logger.println("(ServerConnection.run) " + (sendMAC ? "Sending" : "Not sending") + " MAC for data " + ref);
-                    sendBytes(data, sendMAC);
+                    batch[count] = data;
+                    macs[count] = sendMAC;
+                    count++;
+                    bytes += data.length;
+
+                    data = (count < SEND_BATCH && bytes < SEND_BATCH_BYTES ? outQueue.poll() : null);
+                }
+
+                if (count > 0) {
+                    sendBytes(batch, macs, count);
+                    Arrays.fill(batch, 0, count, null);
                 }
             }
 
@@ -468,51 +780,56 @@ public class ServerConnection {
     }
 
     /**
-     * Thread used to receive packets from the remote server.
+     * Loop used to receive packets from the remote server, run by its own thread.
      */
-    protected class ReceiverThread extends Thread {
-
-        public ReceiverThread() {
-            super("Receiver for " + remoteId);
-        }
+    protected class ReceiverThread implements Runnable {
 
         @Override
         public void run() {
             byte[] receivedMac = null;
-            try {
-                receivedMac = new byte[Mac.getInstance(MAC_ALGORITHM).getMacLength()];
-            } catch (NoSuchAlgorithmException ex) {
-                ex.printStackTrace();
-            }
 
             while (doWork) {
-                if (socket != null && socketInStream != null) {
+                Link current = link;
+                if (current != null) {
+                    DataInputStream in = current.in;
                     try {
                         //read data length
-                        int dataLength = socketInStream.readInt();
+                        int dataLength = in.readInt();
+                        int maxLength = controller.getStaticConf().getMaxMessageSize();
+                        if (dataLength < 0 || (maxLength > 0 && dataLength > maxLength)) {
+                            System.out.println("(ReceiverThread.run) Invalid message length " + dataLength + " from " + remoteId);
+                            throw new IOException("Invalid message length " + dataLength);
+                        }
                         byte[] data = new byte[dataLength];
 
                         //read data
                         int read = 0;
                         do {
-                            read += socketInStream.read(data, read, dataLength - read);
+                            read += in.read(data, read, dataLength - read);
                         } while (read < dataLength);
 
                         //read mac
                         boolean result = true;
                         
-                        byte hasMAC = socketInStream.readByte();
+                        byte hasMAC = in.readByte();
                         if (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1) {
+                            int macSize = current.receive.length();
+                            if (receivedMac == null || receivedMac.length != macSize) {
+                                receivedMac = new byte[macSize];
+                            }
                             read = 0;
                             do {
-                                read += socketInStream.read(receivedMac, read, macSize - read);
+                                read += in.read(receivedMac, read, macSize - read);
                             } while (read < macSize);
 
-                            result = Arrays.equals(macReceive.doFinal(data), receivedMac);
+                            result = current.receive.verify(data, receivedMac);
                         }
+                        bytesReceived.add(5 + dataLength + (hasMAC == 1 ? current.receive.length() : 0));
+                        messagesReceived.inc();
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = (SystemMessage) (new SystemMessageInputStream(new ByteArrayInputStream(data),
+                                    controller.getStaticConf().getMaxBatchSize()).readObject());
                             sm.authenticated = (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1);
                             
                             if (sm.getSender() == remoteId) {
@@ -527,10 +844,12 @@ public class ServerConnection {
                         }
                     } catch (ClassNotFoundException ex) {
                         //invalid message sent, just ignore;
+                    } catch (InvalidKeyException ex) {
+                        ex.printStackTrace();
                     } catch (IOException ex) {
                         if (doWork) {
                             Logger.println("Closing socket and reconnecting");
-                            closeSocket();
+                            closeSocket(current);
                             waitAndConnect();
                         }
                     }
@@ -549,54 +868,60 @@ public class ServerConnection {
     /**
      * Thread used to receive packets from the remote server.
      */
-    protected class TTPReceiverThread extends Thread {
+    protected class TTPReceiverThread implements Runnable {
 
         private ServiceReplica replica;
 
         public TTPReceiverThread(ServiceReplica replica) {
-            super("TTPReceiver for " + remoteId);
             this.replica = replica;
         }
 
         @Override
         public void run() {
             byte[] receivedMac = null;
-            try {
-                receivedMac = new byte[Mac.getInstance(MAC_ALGORITHM).getMacLength()];
-            } catch (NoSuchAlgorithmException ex) {
-            }
 
             while (doWork) {
-                if (socket != null && socketInStream != null) {
+                Link current = link;
+                if (current != null) {
+                    DataInputStream in = current.in;
                     try {
                         //read data length
-                        int dataLength = socketInStream.readInt();
-
+                        int dataLength = in.readInt();
+                        int maxLength = controller.getStaticConf().getMaxMessageSize();
+                        if (dataLength < 0 || (maxLength > 0 && dataLength > maxLength)) {
+                            System.out.println("(TTPReceiverThread.run) Invalid message length " + dataLength + " from " + remoteId);
+                            throw new IOException("Invalid message length " + dataLength);
+                        }
                         byte[] data = new byte[dataLength];
 
                         //read data
                         int read = 0;
                         do {
-                            read += socketInStream.read(data, read, dataLength - read);
+                            read += in.read(data, read, dataLength - read);
                         } while (read < dataLength);
 
                         //read mac
                         boolean result = true;
                         
-                        byte hasMAC = socketInStream.readByte();
+                        byte hasMAC = in.readByte();
                         if (controller.getStaticConf().getUseMACs() == 1 && hasMAC == 1) {
                             
                             System.out.println("TTP CON USEMAC");
+                            int macSize = current.receive.length();
+                            if (receivedMac == null || receivedMac.length != macSize) {
+                                receivedMac = new byte[macSize];
+                            }
                             read = 0;
                             do {
-                                read += socketInStream.read(receivedMac, read, macSize - read);
+                                read += in.read(receivedMac, read, macSize - read);
                             } while (read < macSize);
 
-                            result = Arrays.equals(macReceive.doFinal(data), receivedMac);
+                            result = current.receive.verify(data, receivedMac);
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = (SystemMessage) (new SystemMessageInputStream(new ByteArrayInputStream(data),
+                                    controller.getStaticConf().getMaxBatchSize()).readObject());
 
                             if (sm.getSender() == remoteId) {
                                 //System.out.println("Mensagem recebia de: "+remoteId);
@@ -612,10 +937,12 @@ public class ServerConnection {
                         }
                     } catch (ClassNotFoundException ex) {
                         ex.printStackTrace();
+                    } catch (InvalidKeyException ex) {
+                        ex.printStackTrace();
                     } catch (IOException ex) {
                         //ex.printStackTrace();
                         if (doWork) {
-                            closeSocket();
+                            closeSocket(current);
                             waitAndConnect();
                         }
                     }
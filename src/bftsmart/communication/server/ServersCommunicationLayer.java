@@ -27,7 +27,9 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -36,9 +38,9 @@ import java.util.logging.Logger;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.ExecutorRegistry;
+import bftsmart.tom.util.RingBuffer;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
 
 /**
@@ -48,7 +50,7 @@ import javax.crypto.spec.PBEKeySpec;
 public class ServersCommunicationLayer extends Thread {
 
     private ServerViewController controller;
-    private LinkedBlockingQueue<SystemMessage> inQueue;
+    private RingBuffer<SystemMessage> inQueue;
     private Hashtable<Integer, ServerConnection> connections = new Hashtable<Integer, ServerConnection>();
     private ServerSocket serverSocket;
     private int me;
@@ -59,37 +61,58 @@ public class ServersCommunicationLayer extends Thread {
     private List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
     private ServiceReplica replica;
     private SecretKey selfPwd;
+    private LinkKeyCache keyCache = null;
+    private ExecutorService handshakes; // authenticates the accepted connections (bounded, see ExecutorRegistry)
     private static final String PASSWORD = "commsyst";
 
     public ServersCommunicationLayer(ServerViewController controller,
-            LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) throws Exception {
+            RingBuffer<SystemMessage> inQueue, ServiceReplica replica) throws Exception {
 
         this.controller = controller;
         this.inQueue = inQueue;
         this.me = controller.getStaticConf().getProcessId();
         this.replica = replica;
 
-        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
-        if (controller.isInCurrentView()) {
-            int[] initialV = controller.getCurrentViewAcceptors();
-            for (int i = 0; i < initialV.length; i++) {
-                if (initialV[i] != me) {
-                    getConnection(initialV[i]);
-                }
+        if (controller.getStaticConf().isLinkKeyCache()) {
+            keyCache = new LinkKeyCache(me, controller.getStaticConf().getLinkKeyLifetime());
+
+            int rotation = controller.getStaticConf().getLinkKeyRotation();
+            if (rotation > 0) {
+                ExecutorRegistry.getInstance(me).timer().scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        bftsmart.tom.util.Logger.println("(ServersCommunicationLayer) Rotating the cached link secrets");
+                        rotateLinkKeys();
+                    }
+                }, rotation, rotation, TimeUnit.SECONDS);
             }
         }
 
+        handshakes = ExecutorRegistry.getInstance(me).pool(ExecutorRegistry.HANDSHAKES);
+
+        // accept connections before connecting, so the servers that connect to
+        // this one while it is starting do not have to try again
         serverSocket = new ServerSocket(controller.getStaticConf().getServerToServerPort(
                 controller.getStaticConf().getProcessId()));
 
-        SecretKeyFactory fac = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-        PBEKeySpec spec = new PBEKeySpec(PASSWORD.toCharArray());
-        selfPwd = fac.generateSecret(spec);
+        selfPwd = controller.getStaticConf().getCryptoProvider().deriveKey(PASSWORD.getBytes(), "auth");
 
         serverSocket.setSoTimeout(10000);
         serverSocket.setReuseAddress(true);
 
         start();
+
+        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        //(each connection is established by its own threads, so this does not block)
+        if (controller.isInCurrentView()) {
+            int[] initialV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < initialV.length; i++) {
+                if (initialV[i] != me) {
+                    getConnection(initialV[i]);
+                }
+            }
+        }
     }
 
     public SecretKey getSecretKey(int id) {
@@ -97,6 +120,28 @@ public class ServersCommunicationLayer extends Thread {
         else return connections.get(id).getSecretKey();
     }
 
+    /**
+     * Waits until the link with a replica is authenticated
+     *
+     * @param id the replica
+     * @param timeout maximum time to wait, in milliseconds
+     * @return the key shared with the replica, or null if the link is still not authenticated
+     */
+    public SecretKey waitSecretKey(int id, long timeout) throws InterruptedException {
+        if (id == controller.getStaticConf().getProcessId()) return selfPwd;
+        else return getConnection(id).waitSecretKey(timeout);
+    }
+
+    /**
+     * Discards the cached secrets of the links with the other replicas, so
+     * that each link performs a new Diffie-Hellman exchange the next time it
+     * is established (the connections already open keep their keys). Called
+     * every system.crypto.linkKeyRotation seconds, if set.
+     */
+    public void rotateLinkKeys() {
+        if (keyCache != null) keyCache.rotate();
+    }
+
     //******* EDUARDO BEGIN **************//
     public void updateConnections() {
         connectionsLock.lock();
@@ -136,7 +181,7 @@ public class ServersCommunicationLayer extends Thread {
         connectionsLock.lock();
         ServerConnection ret = this.connections.get(remoteId);
         if (ret == null) {
-            ret = new ServerConnection(controller, null, remoteId, this.inQueue, this.replica);
+            ret = new ServerConnection(controller, null, remoteId, this.inQueue, this.replica, keyCache);
             this.connections.put(remoteId, ret);
         }
         connectionsLock.unlock();
@@ -248,19 +293,23 @@ public class ServersCommunicationLayer extends Thread {
     }
 
     //******* EDUARDO BEGIN **************//
-    private void establishConnection(Socket newSocket, int remoteId) throws IOException {
+    private void establishConnection(final Socket newSocket, int remoteId) throws IOException {
         if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
-            connectionsLock.lock();
-            //System.out.println("Vai se conectar com: "+remoteId);
-            if (this.connections.get(remoteId) == null) { //This must never happen!!!
-                //first time that this connection is being established
-                //System.out.println("THIS DOES NOT HAPPEN....."+remoteId);
-                this.connections.put(remoteId, new ServerConnection(controller, newSocket, remoteId, inQueue, replica));
-            } else {
-                //reconnection
-                this.connections.get(remoteId).reconnect(newSocket);
+            //the connection is authenticated by another thread, so that the connections
+            //from several servers are authenticated concurrently (and without holding
+            //connectionsLock, which is needed to send messages)
+            final ServerConnection conn = getConnection(remoteId);
+            try {
+                handshakes.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.reconnect(newSocket);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                //too many connections being authenticated, the remote server tries again later
+                newSocket.close();
             }
-            connectionsLock.unlock();
 
         } else {
             //System.out.println("Closing connection of: "+remoteId);
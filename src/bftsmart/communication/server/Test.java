@@ -15,11 +15,11 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.util.concurrent.LinkedBlockingQueue;
 
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.RingBuffer;
 import bftsmart.tom.util.Storage;
 
 public class Test {
@@ -31,7 +31,8 @@ public class Test {
 
         //******* EDUARDO BEGIN **************//
         ServerViewController controller = new ServerViewController(Integer.parseInt(args[0]));
-        LinkedBlockingQueue<SystemMessage> inQueue = new LinkedBlockingQueue<SystemMessage>();
+        RingBuffer<SystemMessage> inQueue = new RingBuffer<SystemMessage>(controller.getStaticConf().getInQueueSize(),
+                controller.getStaticConf().getWaitStrategy());
         ServersCommunicationLayer scl = new ServersCommunicationLayer(controller, inQueue,null);
 
         int id = controller.getStaticConf().getProcessId();
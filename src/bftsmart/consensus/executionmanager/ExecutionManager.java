@@ -17,22 +17,20 @@ package bftsmart.consensus.executionmanager;
 
 import bftsmart.consensus.Round;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
-import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 
-import bftsmart.consensus.Consensus;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.trace.TraceEvent;
+import bftsmart.tom.trace.Tracer;
 import bftsmart.tom.util.Logger;
 
 
@@ -52,13 +50,9 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Execution> executions = new TreeMap<Integer, Execution>(); // Executions
-    private ReentrantLock executionsLock = new ReentrantLock(); //lock for executions table
-    // Paxos messages that were out of context (that didn't belong to the execution that was/is is progress
-    private Map<Integer, List<PaxosMessage>> outOfContext = new HashMap<Integer, List<PaxosMessage>>();
-    // Proposes that were out of context (that belonged to future executions, and not the one running at the time)
-    private Map<Integer, PaxosMessage> outOfContextProposes = new HashMap<Integer, PaxosMessage>();
-    private ReentrantLock outOfContextLock = new ReentrantLock(); //lock for out of context
+    private ExecutionTable executions; // Executions
+    // Paxos messages (and proposes) that were out of context (that didn't belong to the execution that was/is is progress
+    private OutOfContextStore outOfContext;
     private boolean stopped = false; // Is the execution manager stopped?
     // When the execution manager is stopped, incoming paxos messages are stored here
     private Queue<PaxosMessage> stoppedMsgs = new LinkedList<PaxosMessage>();
@@ -94,6 +88,10 @@ public final class ExecutionManager {
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
         /******************************************************************/
+        // twice the high mark, so that the executions being run never leave the window of the table
+        this.executions = new ExecutionTable(this, 2 * paxosHighMark);
+        this.outOfContext = new OutOfContextStore(paxosHighMark,
+                this.controller.getStaticConf().getOutOfContextMemory() * 1024L * 1024L);
         //******* EDUARDO END **************//
     }
 
@@ -180,23 +178,27 @@ public final class ExecutionManager {
      * @return true in case the message can be executed, false otherwise
      */
     public final boolean checkLimits(PaxosMessage msg) {
-        outOfContextLock.lock();
+        // holding the lock of this execution's slot ensures the message is not
+        // stored after the out of context messages of the execution were processed
+        // (storing it never waits for the lock of another slot while this one is held)
+        outOfContext.lock(msg.getNumber());
         
         int lastConsId = tomLayer.getLastExec();
         
         int inExec = tomLayer.getInExec();
         
-        Logger.println("(ExecutionManager.checkLimits) Received message  " + msg);
-        Logger.println("(ExecutionManager.checkLimits) I'm at execution " + 
-                inExec + " and my last execution is " + lastConsId);
-        
         boolean isRetrievingState = tomLayer.isRetrievingState();
 
         if (isRetrievingState) {
-            Logger.println("(ExecutionManager.checkLimits) I'm waiting for a state");
+            Tracer.trace(TraceEvent.WAITING_STATE, msg.getNumber(), msg.getSender());
         }
 
         boolean canProcessTheMessage = false;
+        boolean fetchState = false;
+
+        // too many messages are buffered already: this replica is too late, and
+        // should fetch the state instead of storing more
+        boolean overflow = outOfContext.isFull() && msg.getNumber() > (lastConsId + 1);
 
         /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
         // This serves to re-direct the messages to the out of context
@@ -204,12 +206,13 @@ public final class ExecutionManager {
         if (isRetrievingState || // Is this replica retrieving a state?
                 (!(lastConsId == -1 && msg.getNumber() >= (lastConsId + revivalHighMark)) && //not a recovered replica
                 (msg.getNumber() > lastConsId && (msg.getNumber() < (lastConsId + paxosHighMark))) && // not an ahead of time message
-                !(stopped && msg.getNumber() >= (lastConsId + timeoutHighMark)))) { // not a timed-out replica which needs to fetch the state
+                !(stopped && msg.getNumber() >= (lastConsId + timeoutHighMark)) && // not a timed-out replica which needs to fetch the state
+                !overflow)) { // not a replica that buffered too many messages
 
             if (stopped) {//just an optimization to avoid calling the lock in normal case
                 stoppedMsgsLock.lock();
                 if (stopped) {
-                    Logger.println("(ExecutionManager.checkLimits) adding message for execution " + msg.getNumber() + " to stoopped");
+                    Tracer.trace(TraceEvent.STOPPED, msg.getNumber(), msg.getSender());
                     //the execution manager was stopped, the messages should be stored
                     //for later processing (when the execution is restarted)
                     stoppedMsgs.add(msg);
@@ -220,8 +223,7 @@ public final class ExecutionManager {
                         msg.getNumber() > (lastConsId + 1) || 
                         (inExec != -1 && inExec < msg.getNumber()) || 
                         (inExec == -1 && msg.getPaxosType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
-                    Logger.println("(ExecutionManager.checkLimits) Message for execution " + 
-                            msg.getNumber() + " is out of context, adding it to out of context set");
+                    Tracer.trace(TraceEvent.OUT_OF_CONTEXT, msg.getNumber(), msg.getSender(), lastConsId);
                     
 
                     //System.out.println("(ExecutionManager.checkLimits) Message for execution " + 
@@ -230,8 +232,7 @@ public final class ExecutionManager {
                     
                     addOutOfContextMessage(msg);
                 } else { //can process!
-                    Logger.println("(ExecutionManager.checkLimits) message for execution " + 
-                            msg.getNumber() + " can be processed");
+                    Tracer.trace(TraceEvent.IN_CONTEXT, msg.getNumber(), msg.getSender(), lastConsId);
             
                     //Logger.debug = false;
                     canProcessTheMessage = true;
@@ -239,17 +240,17 @@ public final class ExecutionManager {
             }
         } else if ((lastConsId == -1 && msg.getNumber() >= (lastConsId + revivalHighMark)) || //recovered...
                 (msg.getNumber() >= (lastConsId + paxosHighMark)) ||  //or too late replica...
-                (stopped && msg.getNumber() >= (lastConsId + timeoutHighMark))) { // or a timed-out replica which needs to fetch the state
+                (stopped && msg.getNumber() >= (lastConsId + timeoutHighMark)) || // or a timed-out replica which needs to fetch the state
+                overflow) { // or a replica that buffered too many messages
 
             //Start state transfer
             /** THIS IS JOAO'S CODE, FOR HANLDING THE STATE TRANSFER */
-            Logger.println("(ExecutionManager.checkLimits) Message for execution "
-                    + msg.getNumber() + " is beyond the paxos highmark, adding it to out of context set");
+            Tracer.trace(TraceEvent.BEYOND_HIGH_MARK, msg.getNumber(), msg.getSender(), lastConsId);
             addOutOfContextMessage(msg);
 
             if (controller.getStaticConf().isStateTransferEnabled()) {
                 //Logger.debug = true;
-                tomLayer.getStateManager().analyzeState(msg.getNumber());
+                fetchState = true;
             }
             else {
                 System.out.println("##################################################################################");
@@ -262,7 +263,9 @@ public final class ExecutionManager {
             /******************************************************************/
         }
         
-        outOfContextLock.unlock();
+        outOfContext.unlock(msg.getNumber());
+
+        if (fetchState) tomLayer.getStateManager().analyzeState(msg.getNumber());
 
         return canProcessTheMessage;
     }
@@ -273,13 +276,7 @@ public final class ExecutionManager {
      * @return True if there are still messages to be processed, false otherwise
      */
     public boolean receivedOutOfContextPropose(int eid) {
-        outOfContextLock.lock();
-        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        boolean result = outOfContextProposes.get(eid) != null;
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
-
-        return result;
+        return outOfContext.hasPropose(eid);
     }
 
     /**
@@ -288,47 +285,16 @@ public final class ExecutionManager {
      * @return The consensus's execution that was removed
      */
     public Execution removeExecution(int id) {
-        executionsLock.lock();
-        /******* BEGIN EXECUTIONS CRITICAL SECTION *******/
         Execution execution = executions.remove(id);
 
-        /******* END EXECUTIONS CRITICAL SECTION *******/
-        executionsLock.unlock();
-
-        outOfContextLock.lock();
-        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextProposes.remove(id);
         outOfContext.remove(id);
 
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
-
         return execution;
     }
 
     /** THIS IS JOAO'S CODE, FOR HANDLING THE STATE TRANSFER */
     public void removeOutOfContexts(int id) {
-
-        outOfContextLock.lock();
-        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        Integer[] keys = new Integer[outOfContextProposes.keySet().size()];
-        outOfContextProposes.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContextProposes.remove(keys[i]);
-            }
-        }
-
-        keys = new Integer[outOfContext.keySet().size()];
-        outOfContext.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContext.remove(keys[i]);
-            }
-        }
-
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        outOfContext.removeUpTo(id);
     }
 
     /********************************************************/
@@ -339,34 +305,16 @@ public final class ExecutionManager {
      * @return The consensus execution specified
      */
     public Execution getExecution(int eid) {
-        executionsLock.lock();
-        /******* BEGIN EXECUTIONS CRITICAL SECTION *******/
-        
-        Execution execution = executions.get(eid);
-
-        if (execution == null) {//there is no execution created with the given eid
-            //let's create one...
-            Consensus cons = new Consensus(eid);
-
-            execution = new Execution(this, cons);
-
-            //...and add it to the executions table
-            executions.put(eid, execution);
-        }
-
-        /******* END EXECUTIONS CRITICAL SECTION *******/
-        executionsLock.unlock();
-
-        return execution;
+        return executions.get(eid);
     }
     
     public boolean isDecidable(int eid) {
-        if (receivedOutOfContextPropose(eid)) {
+        PaxosMessage prop = outOfContext.getPropose(eid);
+        if (prop != null) {
             Execution exec = getExecution(eid);
-            PaxosMessage prop = outOfContextProposes.get(exec.getId());
             Round round = exec.getRound(prop.getRound(), controller);
             byte[] propHash = tomLayer.computeHash(prop.getValue());
-            List<PaxosMessage> msgs = outOfContext.get(eid);
+            List<PaxosMessage> msgs = outOfContext.getMessages(eid);
             int countWrites = 0;
             int countAccepts = 0;
             if (msgs != null) {
@@ -391,10 +339,10 @@ public final class ExecutionManager {
         return false;
     }
     public void processOutOfContextPropose(Execution execution) {
-        outOfContextLock.lock();
+        outOfContext.lock(execution.getId());
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         
-        PaxosMessage prop = outOfContextProposes.remove(execution.getId());
+        PaxosMessage prop = outOfContext.removePropose(execution.getId());
         if (prop != null) {
             Logger.println("(ExecutionManager.createExecution) (" + execution.getId()
                     + ") Processing out of context propose");
@@ -402,15 +350,15 @@ public final class ExecutionManager {
         }
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        outOfContext.unlock(execution.getId());
     }
 
     public void processOutOfContext(Execution execution) {
-        outOfContextLock.lock();
+        outOfContext.lock(execution.getId());
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         
         //then we have to put the pending paxos messages
-        List<PaxosMessage> messages = outOfContext.remove(execution.getId());
+        List<PaxosMessage> messages = outOfContext.removeMessages(execution.getId());
         if (messages != null) {
             Logger.println("(createExecution) (" + execution.getId()
                     + ") Processing other " + messages.size()
@@ -429,7 +377,7 @@ public final class ExecutionManager {
         }
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        outOfContext.unlock(execution.getId());
     }
 
     /**
@@ -439,24 +387,7 @@ public final class ExecutionManager {
      * @param m Out of context message to be stored
      */
     public void addOutOfContextMessage(PaxosMessage m) {
-        outOfContextLock.lock();
-        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        if (m.getPaxosType() == MessageFactory.PROPOSE) {
-            Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
-            outOfContextProposes.put(m.getNumber(), m);
-        } else {
-            List<PaxosMessage> messages = outOfContext.get(m.getNumber());
-            if (messages == null) {
-                messages = new LinkedList<PaxosMessage>();
-                outOfContext.put(m.getNumber(), messages);
-            }
-            Logger.println("(ExecutionManager.addOutOfContextMessage) adding " + m);
-            messages.add(m);
-
-        }
-
-        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
-        outOfContextLock.unlock();
+        outOfContext.add(m);
     }
 
     @Override
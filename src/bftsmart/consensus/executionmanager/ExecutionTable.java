@@ -0,0 +1,134 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.executionmanager;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bftsmart.consensus.Consensus;
+
+/**
+ * Table of the consensus executions known by the execution manager.
+ *
+ * The executions inside the window that starts after the last removed
+ * (stable) execution are kept in a ring indexed by EID, whose slots are
+ * claimed with compare-and-set, so looking up and creating them takes no
+ * locks. Since the ring is larger than the window, two executions inside the
+ * window never share a slot. Executions outside of it (e.g., created while
+ * this replica is far behind the others) are kept in a separate map until
+ * the window reaches them.
+ */
+public class ExecutionTable {
+
+    private final ExecutionManager manager;
+    private final AtomicReferenceArray<Execution> ring;
+    private final int mask;
+    private final AtomicInteger base = new AtomicInteger(-1); // last removed execution
+    private final ConcurrentHashMap<Integer, Execution> outOfWindow = new ConcurrentHashMap<Integer, Execution>();
+
+    /**
+     * Creates a new instance of ExecutionTable
+     * @param manager execution manager to which the executions belong
+     * @param window minimum number of executions that can be in the ring at the same time
+     */
+    public ExecutionTable(ExecutionManager manager, int window) {
+        int size = 16;
+        while (size < window) size <<= 1;
+
+        this.manager = manager;
+        this.ring = new AtomicReferenceArray<Execution>(size);
+        this.mask = size - 1;
+    }
+
+    private boolean inWindow(int eid, int b) {
+        return eid > b && eid - b <= ring.length();
+    }
+
+    /**
+     * Returns the specified execution, creating it if it does not exist
+     * @param eid ID of the consensus execution
+     * @return The consensus execution specified
+     */
+    public Execution get(int eid) {
+        int i = eid & mask;
+
+        Execution execution = ring.get(i);
+        if (execution != null && execution.getId() == eid) return execution;
+
+        if (!inWindow(eid, base.get())) return getOutOfWindow(eid);
+
+        while (true) {
+            // it might have been created before the window reached it
+            Execution candidate = (outOfWindow.isEmpty() ? null : outOfWindow.get(eid));
+            if (candidate == null) candidate = new Execution(manager, new Consensus(eid));
+
+            // an execution in the window can only share its slot with stale ones
+            if (ring.compareAndSet(i, execution, candidate)) {
+                if (!outOfWindow.isEmpty()) outOfWindow.remove(eid, candidate);
+                return candidate;
+            }
+
+            execution = ring.get(i);
+            if (execution != null && execution.getId() == eid) return execution;
+        }
+    }
+
+    private Execution getOutOfWindow(int eid) {
+        Execution execution = outOfWindow.get(eid);
+        if (execution == null) {
+            execution = new Execution(manager, new Consensus(eid));
+            Execution previous = outOfWindow.putIfAbsent(eid, execution);
+            if (previous != null) execution = previous;
+        }
+
+        // the window may have moved in the meantime, in which case the ring
+        // is the one that must have the execution
+        if (inWindow(eid, base.get())) return get(eid);
+
+        return execution;
+    }
+
+    /**
+     * Removes an execution, moving the window past it
+     * @param eid ID of the consensus execution to be removed
+     * @return The execution that was removed, or null if it did not exist
+     */
+    public Execution remove(int eid) {
+        int b = base.get();
+        while (eid > b && !base.compareAndSet(b, eid)) {
+            b = base.get();
+        }
+
+        int i = eid & mask;
+        Execution execution = ring.get(i);
+        if (execution != null && execution.getId() == eid && ring.compareAndSet(i, execution, null)) {
+            return execution;
+        }
+
+        execution = outOfWindow.remove(eid);
+
+        // discard executions the window already passed by
+        if (!outOfWindow.isEmpty()) {
+            int limit = base.get();
+            for (Iterator<Integer> it = outOfWindow.keySet().iterator(); it.hasNext();) {
+                if (it.next() <= limit) it.remove();
+            }
+        }
+        return execution;
+    }
+}
@@ -0,0 +1,286 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.executionmanager;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.tom.util.Logger;
+
+/**
+ * Stores the paxos messages that arrived before the execution they belong to.
+ *
+ * Messages are kept in a ring of slots indexed by the EID, each slot with its
+ * own lock, so messages of different executions never contend. A slot holds
+ * the messages of a single EID: if two live EIDs map to the same slot (i.e.,
+ * they are more than the ring size apart), the lower one is kept, since it is
+ * closer to the current execution.
+ *
+ * The memory used by the buffered messages is accounted for. When it goes
+ * above the configured limit the store reports itself as full, and the
+ * proposes of the executions furthest ahead are evicted to make room for the
+ * ones closer to the current execution, which are needed first (the others
+ * will have to be obtained through state transfer anyway).
+ *
+ * A caller may hold the lock of the slot of the message it stores (see
+ * lock()), so the eviction never waits for the lock of another slot: slots
+ * locked by other threads are skipped, and storing a message never blocks on
+ * a slot while holding another one.
+ */
+public class OutOfContextStore {
+
+    private static final int MESSAGE_OVERHEAD = 64; // rough size of a paxos message without its value
+
+    private final Slot[] slots;
+    private final int mask;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong(0);
+    private volatile int floor = -1; // highest EID already discarded
+    private final AtomicInteger highest = new AtomicInteger(-1); // highest EID stored
+
+    /**
+     * Creates a new instance of OutOfContextStore
+     * @param capacity minimum number of executions that can be buffered at the same time
+     * @param maxBytes maximum amount of memory used by the buffered messages
+     */
+    public OutOfContextStore(int capacity, long maxBytes) {
+        int size = 16;
+        while (size < capacity) size <<= 1;
+
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.maxBytes = maxBytes;
+
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Locks the slot of a given execution. While the lock is held, no message
+     * of this execution can be stored or processed by other threads.
+     * @param eid the execution
+     */
+    public void lock(int eid) {
+        slots[eid & mask].lock.lock();
+    }
+
+    public void unlock(int eid) {
+        slots[eid & mask].lock.unlock();
+    }
+
+    /**
+     * @return true if the memory used by the buffered messages reached the limit
+     */
+    public boolean isFull() {
+        return bytes.get() >= maxBytes;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Stores an out of context message
+     * @param m the message
+     * @return false if the message was discarded
+     */
+    public boolean add(PaxosMessage m) {
+        int eid = m.getNumber();
+        if (eid <= floor) return false;
+
+        boolean propose = m.getPaxosType() == MessageFactory.PROPOSE;
+        if (propose && isFull() && !evictAfter(eid)) {
+            Logger.println("(OutOfContextStore.add) memory limit reached, discarding " + m);
+            return false;
+        }
+
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        try {
+            if (slot.eid != eid) {
+                if (slot.eid > floor && slot.eid < eid) {
+                    Logger.println("(OutOfContextStore.add) slot taken by execution " + slot.eid + ", discarding " + m);
+                    return false;
+                }
+                clear(slot);
+                slot.eid = eid;
+            }
+
+            long size = sizeOf(m);
+            if (propose) {
+                if (slot.propose != null) size -= sizeOf(slot.propose);
+                slot.propose = m;
+            } else {
+                if (slot.messages == null) slot.messages = new LinkedList<PaxosMessage>();
+                slot.messages.add(m);
+            }
+            slot.bytes += size;
+            bytes.addAndGet(size);
+
+            int h = highest.get();
+            while (eid > h && !highest.compareAndSet(h, eid)) {
+                h = highest.get();
+            }
+            return true;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    public boolean hasPropose(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        boolean result = slot.eid == eid && slot.propose != null;
+        slot.lock.unlock();
+        return result;
+    }
+
+    public PaxosMessage getPropose(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        PaxosMessage result = (slot.eid == eid ? slot.propose : null);
+        slot.lock.unlock();
+        return result;
+    }
+
+    /**
+     * @return a copy of the messages (other than the propose) stored for an
+     * execution, or null if there are none
+     */
+    public List<PaxosMessage> getMessages(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        List<PaxosMessage> result = (slot.eid == eid && slot.messages != null ?
+                new LinkedList<PaxosMessage>(slot.messages) : null);
+        slot.lock.unlock();
+        return result;
+    }
+
+    public PaxosMessage removePropose(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        PaxosMessage result = null;
+        if (slot.eid == eid && slot.propose != null) {
+            result = slot.propose;
+            slot.propose = null;
+            release(slot, sizeOf(result));
+        }
+        slot.lock.unlock();
+        return result;
+    }
+
+    public List<PaxosMessage> removeMessages(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        List<PaxosMessage> result = null;
+        if (slot.eid == eid && slot.messages != null) {
+            result = slot.messages;
+            slot.messages = null;
+            long size = 0;
+            for (PaxosMessage m : result) size += sizeOf(m);
+            release(slot, size);
+        }
+        slot.lock.unlock();
+        return result;
+    }
+
+    /**
+     * Discards all messages of an execution
+     */
+    public void remove(int eid) {
+        Slot slot = slots[eid & mask];
+        slot.lock.lock();
+        if (slot.eid == eid) clear(slot);
+        slot.lock.unlock();
+    }
+
+    /**
+     * Discards all messages of the executions up to (and including) a given one
+     */
+    public void removeUpTo(int eid) {
+        int from = floor + 1;
+        if (eid < from) return;
+        floor = eid;
+
+        if (eid - from >= slots.length) {
+            for (Slot slot : slots) {
+                slot.lock.lock();
+                if (slot.eid <= eid) clear(slot);
+                slot.lock.unlock();
+            }
+        } else {
+            for (int i = from; i <= eid; i++) {
+                remove(i);
+            }
+        }
+    }
+
+    // drop the proposes of the executions after a given one, starting from
+    // the furthest ahead, until there is room again; returns false if there
+    // is still no room (i.e., the given execution is the furthest ahead).
+    // Slots locked by other threads are skipped rather than waited for.
+    private boolean evictAfter(int eid) {
+        int from = Math.min(highest.get(), floor + slots.length);
+        for (int i = from; i > eid && isFull(); i--) {
+            Slot slot = slots[i & mask];
+            if (!slot.lock.tryLock()) continue;
+            try {
+                if (slot.eid == i && slot.propose != null) {
+                    Logger.println("(OutOfContextStore.evictAfter) memory limit reached, evicting " + slot.propose);
+                    PaxosMessage m = slot.propose;
+                    slot.propose = null;
+                    release(slot, sizeOf(m));
+                }
+            } finally {
+                slot.lock.unlock();
+            }
+        }
+        return !isFull();
+    }
+
+    private void clear(Slot slot) {
+        bytes.addAndGet(-slot.bytes);
+        slot.eid = -1;
+        slot.propose = null;
+        slot.messages = null;
+        slot.bytes = 0;
+    }
+
+    private void release(Slot slot, long size) {
+        slot.bytes -= size;
+        bytes.addAndGet(-size);
+        if (slot.propose == null && slot.messages == null) slot.eid = -1;
+    }
+
+    private static long sizeOf(PaxosMessage m) {
+        byte[] value = m.getValue();
+        return MESSAGE_OVERHEAD + (value != null ? value.length : 0);
+    }
+
+    private static class Slot {
+        final ReentrantLock lock = new ReentrantLock();
+        int eid = -1;
+        PaxosMessage propose;
+        LinkedList<PaxosMessage> messages;
+        long bytes;
+    }
+}
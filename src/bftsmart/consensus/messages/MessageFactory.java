@@ -24,6 +24,8 @@ public class MessageFactory{
     public static final int PROPOSE = 44781;
     public static final int WRITE    = 44782;
     public static final int ACCEPT  = 44783;
+    public static final int PROPOSE_DIGEST = 44784;
+    public static final int RELAY = 44785;
     public static final int COLLECT = 44786;
 
     private int from; // Replica ID of the process which sent this message
@@ -52,6 +54,33 @@ public class MessageFactory{
 
     }
 
+    /**
+     * Creates a PROPOSE_DIGEST message to be sent by this process, announcing
+     * a proposal whose value is disseminated by relays
+     * @param id Consensus's execution ID
+     * @param round Round number
+     * @param hash Hash of the proposed value
+     * @return A paxos message of the PROPOSE_DIGEST type, with the specified id, round, and hash
+     */
+    public PaxosMessage createProposeDigest(int id, int round, byte[] hash) {
+
+        return new PaxosMessage(PROPOSE_DIGEST, id, round, from, hash);
+
+    }
+
+    /**
+     * Creates a RELAY message to be sent by this process
+     * @param id Consensus's execution ID
+     * @param round Round number
+     * @param value Proposed value being relayed, or null to ask for it
+     * @return A paxos message of the RELAY type, with the specified id, round, and value
+     */
+    public PaxosMessage createRelay(int id, int round, byte[] value) {
+
+        return new PaxosMessage(RELAY, id, round, from, value);
+
+    }
+
     /**
      * Creates a WRITE message to be sent by this process
      * @param id Consensus's execution ID
@@ -204,6 +204,10 @@ public class PaxosMessage extends SystemMessage {
             return "ACCEPT";
         else if (paxosType==MessageFactory.WRITE)
             return "WRITE";
+        else if (paxosType==MessageFactory.PROPOSE_DIGEST)
+            return "PROPOSE_DIGEST";
+        else if (paxosType==MessageFactory.RELAY)
+            return "RELAY";
         else
             return "";
     }
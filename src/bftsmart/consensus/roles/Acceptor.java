@@ -17,11 +17,9 @@ package bftsmart.consensus.roles;
 
 
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import bftsmart.communication.ServerCommunicationSystem;
-import bftsmart.communication.server.ServerConnection;
 import bftsmart.consensus.executionmanager.Execution;
 import bftsmart.consensus.executionmanager.ExecutionManager;
 import bftsmart.consensus.executionmanager.LeaderModule;
@@ -32,7 +30,10 @@ import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
-import bftsmart.tom.util.Logger;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.trace.TraceEvent;
+import bftsmart.tom.trace.Tracer;
 import bftsmart.tom.util.TOMUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -60,6 +61,8 @@ public final class Acceptor {
     private ServerViewController controller;
     //private Cipher cipher;
     private Mac mac;
+    private Histogram macTime;
+    private Histogram signTime;
 
     /**
      * Creates a new instance of Acceptor.
@@ -75,13 +78,12 @@ public final class Acceptor {
         this.factory = factory;
         this.leaderModule = lm;
         this.controller = controller;
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            //this.cipher = Cipher.getInstance(ServerConnection.MAC_ALGORITHM);
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
+        //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
+        this.mac = controller.getStaticConf().getCryptoProvider().newMac();
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance(me);
+        this.macTime = metrics.histogram("crypto.mac", "ns");
+        this.signTime = metrics.histogram("crypto.sign", "ns");
     }
 
     public MessageFactory getFactory() {
@@ -113,10 +115,8 @@ public final class Acceptor {
      */
     public final void deliver(PaxosMessage msg) {
         if (executionManager.checkLimits(msg)) {
-            Logger.println("processing paxos msg with id " + msg.getNumber());
             processMessage(msg);
         } else {
-            Logger.println("out of context msg with id " + msg.getNumber());
             tomLayer.processOutOfContext();
         }
     }
@@ -154,11 +154,11 @@ public final class Acceptor {
      */
     public void proposeReceived(Round round, PaxosMessage msg) {
         int eid = round.getExecution().getId();
-    	Logger.println("(Acceptor.proposeReceived) PROPOSE for consensus " + eid);
     	if (msg.getSender() == leaderModule.getCurrentLeader()) {
+    		Tracer.trace(TraceEvent.PROPOSE_RECEIVED, eid, round.getNumber(), msg.getSender());
     		executePropose(round, msg.getValue());
     	} else {
-    		Logger.println("Propose received is not from the expected leader");
+    		Tracer.trace(TraceEvent.PROPOSE_REJECTED, eid, msg.getSender(), leaderModule.getCurrentLeader());
     	}
     }
 
@@ -170,7 +170,6 @@ public final class Acceptor {
      */
     private void executePropose(Round round, byte[] value) {
         int eid = round.getExecution().getId();
-        Logger.println("(Acceptor.executePropose) executing propose for " + eid + "," + round.getNumber());
 
         long consensusStartTime = System.nanoTime();
 
@@ -200,20 +199,17 @@ public final class Acceptor {
                 round.getExecution().getLearner().firstMessageProposed.proposeReceivedTime = System.nanoTime();
                 
                 if(controller.getStaticConf().isBFT()){
-                    Logger.println("(Acceptor.executePropose) sending WRITE for " + eid);
+                    Tracer.trace(TraceEvent.WRITE_SENT, eid, round.getNumber());
 
                     round.setWrite(me, round.propValueHash);
                     round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
                     communication.send(this.controller.getCurrentViewOtherAcceptors(),
                             factory.createWrite(eid, round.getNumber(), round.propValueHash));
 
-                    Logger.println("(Acceptor.executePropose) WRITE sent for " + eid);
-                
                     computeWrite(eid, round, round.propValueHash);
                 
-                    Logger.println("(Acceptor.executePropose) WRITE computed for " + eid);
-                
                 } else {
+                    Tracer.trace(TraceEvent.ACCEPT_SENT, eid, round.getNumber());
                  	round.setAccept(me, round.propValueHash);
                  	round.getExecution().getLearner().firstMessageProposed.writeSentTime = System.nanoTime();
                         round.getExecution().getLearner().firstMessageProposed.acceptSentTime = System.nanoTime();
@@ -240,7 +236,7 @@ public final class Acceptor {
      */
     private void writeReceived(Round round, int a, byte[] value) {
         int eid = round.getExecution().getId();
-        Logger.println("(Acceptor.writeAcceptReceived) WRITE from " + a + " for consensus " + eid);
+        Tracer.trace(TraceEvent.WRITE_RECEIVED, eid, round.getNumber(), a);
         round.setWrite(a, value);
 
         computeWrite(eid, round, value);
@@ -256,15 +252,12 @@ public final class Acceptor {
      */
     private void computeWrite(int eid, Round round, byte[] value) {
         int writeAccepted = round.countWrite(value);
-        
-        Logger.println("(Acceptor.computeWrite) I have " + writeAccepted +
-                " WRITEs for " + eid + "," + round.getNumber());
 
         if (writeAccepted > controller.getQuorumAccept() && Arrays.equals(value, round.propValueHash)) {
                         
             if (!round.isAcceptSetted(me)) {
                 
-                Logger.println("(Acceptor.computeWrite) sending WRITE for " + eid);
+                Tracer.trace(TraceEvent.ACCEPT_SENT, eid, round.getNumber());
 
                 /**** LEADER CHANGE CODE! ******/
                 round.getExecution().setQuorumWrites(value);
@@ -308,7 +301,9 @@ public final class Acceptor {
                     
                     PrivateKey RSAprivKey = controller.getStaticConf().getRSAPrivateKey();
                     
+                    long start = System.nanoTime();
                     byte[] signature = TOMUtil.signMessage(RSAprivKey, data);
+                    signTime.recordSince(start);
                                        
                     pm.setProof(signature);
                 
@@ -325,7 +320,7 @@ public final class Acceptor {
                                 key = communication.getServersConn().getSecretKey(id);
                                 if (key == null) {
                                     System.out.println("I don't have yet a secret key with " + id + ". Retrying.");
-                                    Thread.sleep(1000);
+                                    communication.getServersConn().waitSecretKey(id, 1000);
                                 }
 
                             } while (key == null); // JCS: This loop is to solve a race condition where a
@@ -333,8 +328,10 @@ public final class Acceptor {
                                                    // recovered after a crash, but it still did not concluded
                                                    // the diffie helman protocol. Not an elegant solution,
                                                    // but for now it will do
+                            long start = System.nanoTime();
                             this.mac.init(key);
                           macVector.put(id, this.mac.doFinal(data));
+                            macTime.recordSince(start);
                         } catch (InterruptedException ex) {
                             ex.printStackTrace();
                         } catch (InvalidKeyException ex) {
@@ -367,7 +364,7 @@ public final class Acceptor {
      */
     private void acceptReceived(Round round, PaxosMessage msg) {
         int eid = round.getExecution().getId();
-        Logger.println("(Acceptor.acceptReceived) ACCEPT from " + msg.getSender() + " for consensus " + eid);
+        Tracer.trace(TraceEvent.ACCEPT_RECEIVED, eid, round.getNumber(), msg.getSender());
         round.setAccept(msg.getSender(), msg.getValue());
         round.addToProof(msg);
 
@@ -381,11 +378,8 @@ public final class Acceptor {
      * @param value Value sent in the message
      */
     private void computeAccept(int eid, Round round, byte[] value) {
-        Logger.println("(Acceptor.computeAccept) I have " + round.countAccept(value) +
-                " ACCEPTs for " + eid + "," + round.getNumber());
-
         if (round.countAccept(value) > controller.getQuorumAccept() && !round.getExecution().isDecided()) {
-            Logger.println("(Acceptor.computeAccept) Deciding " + eid);
+            Tracer.trace(TraceEvent.DECIDED, eid, round.getNumber());
             decide(round, value);
         }
     }
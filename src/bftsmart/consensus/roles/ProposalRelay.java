@@ -0,0 +1,321 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.roles;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.consensus.executionmanager.LeaderModule;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.consensus.messages.PaxosMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.metrics.Counter;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.util.ExecutorRegistry;
+import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Disseminates the proposals of the leader along a tree of replicas, so that
+ * the leader does not have to send the (possibly large) proposed value to
+ * every other replica by itself.
+ *
+ * The leader sends a PROPOSE_DIGEST, with the hash of the value, to all other
+ * replicas, and the value itself (in a RELAY message) only to its children in
+ * the tree. Each replica relays the value to its own children once it matches
+ * the digest of the leader, and only then takes it as the PROPOSE of the
+ * leader. A replica that got the digest but not the value after a short while
+ * (e.g., because its parent is faulty) asks the leader for it, with a RELAY
+ * message without value. From then on, it asks the leader as soon as each
+ * digest arrives, until its parent relays a value again. Values are only
+ * taken from the parent of this replica or from the leader, so that other
+ * replicas can not make it keep values that nobody proposed.
+ *
+ * The tree is made of the other replicas of the current view, in order: the
+ * children of the leader are the first fanout replicas, and the children of
+ * the i-th replica are the ones from fanout * (i + 1) on.
+ */
+public class ProposalRelay {
+
+    private static final long PULL_DELAY = 100; // in milliseconds
+
+    private final int me;
+    private final ServerCommunicationSystem communication;
+    private final MessageFactory factory;
+    private final LeaderModule lm;
+    private final ServerViewController controller;
+    private final int fanout;
+    private TOMLayer tomLayer;
+
+    // proposals of the consensus not yet decided here, by eid
+    private final TreeMap<Integer, Pending> pending = new TreeMap<Integer, Pending>();
+
+    // leader this replica asks for the values right away, since its parent did not relay them
+    private int orphanOf = -1;
+
+    private final Counter relayed;
+    private final Counter pulls;
+
+    /**
+     * Creates a new instance of ProposalRelay
+     *
+     * @param communication Replicas communication system
+     * @param factory Factory for PaW messages
+     * @param lm Manager for information about leaders
+     * @param controller View controller of this replica
+     */
+    public ProposalRelay(ServerCommunicationSystem communication, MessageFactory factory,
+            LeaderModule lm, ServerViewController controller) {
+        this.me = controller.getStaticConf().getProcessId();
+        this.communication = communication;
+        this.factory = factory;
+        this.lm = lm;
+        this.controller = controller;
+        this.fanout = controller.getStaticConf().getRelayFanout();
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance(me);
+        this.relayed = metrics.counter("relay.relayed");
+        this.pulls = metrics.counter("relay.pulls");
+    }
+
+    /**
+     * Sets the TOM layer, used to know which consensus were already decided
+     * @param tomLayer TOM layer of this replica
+     */
+    public void setTOMLayer(TOMLayer tomLayer) {
+        this.tomLayer = tomLayer;
+    }
+
+    /**
+     * Sends a proposal of this replica (the leader) to all replicas of the
+     * current view: the value itself to this replica and to its children in
+     * the tree, and its hash to the others. If the tree has a single level,
+     * the PROPOSE is just sent to everybody.
+     *
+     * @param eid ID of the consensus instance
+     * @param value Value to be proposed
+     */
+    public void disseminate(int eid, byte[] value) {
+        int[] acceptors = controller.getCurrentViewAcceptors();
+        int[] others = othersThan(acceptors, me);
+
+        if (others.length <= fanout) {
+            communication.send(acceptors, factory.createPropose(eid, 0, value));
+            return;
+        }
+
+        byte[] digest = TOMUtil.computeHash(value);
+        synchronized (this) {
+            prune();
+            Pending p = new Pending(me, digest);
+            p.value = value;
+            p.delivered = true;
+            pending.put(eid, p);
+        }
+
+        // the digest goes first, so that the children can check the value right away
+        communication.send(others, factory.createProposeDigest(eid, 0, digest));
+        communication.send(new int[] { me }, factory.createPropose(eid, 0, value));
+        communication.send(childrenOf(others, -1), factory.createRelay(eid, 0, value));
+    }
+
+    /**
+     * Processes a PROPOSE_DIGEST or RELAY message received from another
+     * replica. It must be invoked by the thread that delivers the consensus
+     * messages.
+     *
+     * @param msg the (authenticated) message received
+     * @return the PROPOSE of the leader, if it became complete with this
+     *         message and must be delivered to the acceptor, or null
+     */
+    public PaxosMessage received(PaxosMessage msg) {
+        int eid = msg.getNumber();
+        int sender = msg.getSender();
+        byte[] reply = null;
+        byte[] toRelay = null;
+        boolean pull = false;
+        int leader;
+        PaxosMessage propose = null;
+
+        synchronized (this) {
+            prune();
+            if (eid <= lastExec() || eid > lastExec() + controller.getStaticConf().getPaxosHighMark()) {
+                return null;
+            }
+
+            Pending p = pending.get(eid);
+            if (msg.getPaxosType() == MessageFactory.PROPOSE_DIGEST) {
+                if (sender != lm.getCurrentLeader() || msg.getValue() == null) {
+                    Logger.println("(ProposalRelay.received) Discarding digest of " + eid + " from " + sender + ", which is not the leader");
+                    return null;
+                }
+                // a new leader may be proposing for the same consensus
+                if (p == null || p.leader != sender) {
+                    Pending previous = p;
+                    p = new Pending(sender, msg.getValue());
+                    if (previous != null) p.candidates.putAll(previous.candidates);
+                    pending.put(eid, p);
+                    if (!p.match()) {
+                        if (orphanOf == sender) pull = true;
+                        else schedulePull(eid, p);
+                    }
+                }
+            } else if (msg.getValue() == null) {
+                // somebody that did not get the value from its parent is asking for it
+                if (p != null && p.delivered) reply = p.value;
+            } else {
+                int current = lm.getCurrentLeader();
+                if (sender != current && sender != parentOf(othersThan(controller.getCurrentViewAcceptors(), current), me)) {
+                    Logger.println("(ProposalRelay.received) Discarding value of " + eid + " from " + sender + ", which is neither the leader nor the parent of this replica");
+                    return null;
+                }
+                if (p == null) {
+                    p = new Pending(-1, null);
+                    pending.put(eid, p);
+                }
+                if (!p.delivered) {
+                    if (sender != current) orphanOf = -1; // the parent is relaying again
+                    p.candidates.put(sender, msg.getValue());
+                    // once the digest is known, a value that does not match it is of no use
+                    if (!p.match() && p.digest != null) p.candidates.remove(sender);
+                }
+            }
+
+            if (p == null || p.delivered || p.value == null) {
+                leader = -1;
+            } else {
+                p.delivered = true;
+                leader = p.leader;
+                toRelay = p.value;
+                propose = new PaxosMessage(MessageFactory.PROPOSE, eid, 0, leader, p.value);
+                propose.authenticated = true;
+            }
+        }
+
+        if (pull) {
+            pulls.inc();
+            communication.send(new int[] { sender }, factory.createRelay(eid, 0, null));
+        }
+        if (reply != null) {
+            communication.send(new int[] { sender }, factory.createRelay(eid, 0, reply));
+        }
+        if (toRelay != null) {
+            int[] children = childrenOf(othersThan(controller.getCurrentViewAcceptors(), leader), me);
+            if (children.length > 0) {
+                communication.send(children, factory.createRelay(eid, 0, toRelay));
+                relayed.inc();
+            }
+        }
+        return propose;
+    }
+
+    // asks the leader for the value, if it did not arrive in the meantime
+    private void schedulePull(final int eid, final Pending p) {
+        ExecutorRegistry.getInstance(me).timer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (ProposalRelay.this) {
+                    if (p.delivered || pending.get(eid) != p) return;
+                    orphanOf = p.leader;
+                }
+                Logger.println("(ProposalRelay.schedulePull) Asking leader " + p.leader + " for the value of " + eid);
+                pulls.inc();
+                communication.send(new int[] { p.leader }, factory.createRelay(eid, 0, null));
+            }
+        }, PULL_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private int lastExec() {
+        return (tomLayer != null ? tomLayer.getLastExec() : -1);
+    }
+
+    // forgets the proposals of the consensus already decided
+    private void prune() {
+        int last = lastExec();
+        while (!pending.isEmpty() && pending.firstKey() <= last) {
+            pending.pollFirstEntry();
+        }
+    }
+
+    private static int[] othersThan(int[] acceptors, int leader) {
+        int[] others = new int[acceptors.length];
+        int count = 0;
+        for (int id : acceptors) {
+            if (id != leader) others[count++] = id;
+        }
+        return Arrays.copyOf(others, count);
+    }
+
+    // children of a replica in the tree made of the other replicas (-1 is the leader)
+    private int[] childrenOf(int[] others, int id) {
+        int position = -1;
+        if (id != -1) {
+            for (int i = 0; i < others.length; i++) {
+                if (others[i] == id) position = i;
+            }
+            if (position == -1) return new int[0];
+        }
+
+        int first = fanout * (position + 1);
+        if (first >= others.length) return new int[0];
+        return Arrays.copyOfRange(others, first, Math.min(others.length, first + fanout));
+    }
+
+    // parent of a replica in the tree made of the other replicas (-1 if it is the leader)
+    private int parentOf(int[] others, int id) {
+        for (int i = 0; i < others.length; i++) {
+            if (others[i] == id) return (i < fanout ? -1 : others[i / fanout - 1]);
+        }
+        return -1;
+    }
+
+    /**
+     * The proposal of a consensus, as known by this replica
+     */
+    private static class Pending {
+
+        final int leader; // -1 while the digest is not known
+        final byte[] digest;
+        final Map<Integer, byte[]> candidates = new HashMap<Integer, byte[]>(); // values received, by sender
+        byte[] value; // value that matches the digest
+        boolean delivered;
+
+        Pending(int leader, byte[] digest) {
+            this.leader = leader;
+            this.digest = digest;
+        }
+
+        // looks for a value that matches the digest of the leader
+        boolean match() {
+            if (value != null) return true;
+            if (digest == null) return false;
+            for (byte[] candidate : candidates.values()) {
+                if (Arrays.equals(TOMUtil.computeHash(candidate), digest)) {
+                    value = candidate;
+                    candidates.clear();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -27,6 +27,7 @@ public class Proposer {
     private MessageFactory factory; // Factory for PaW messages
     private ServerCommunicationSystem communication; // Replicas comunication system
     private ServerViewController controller;
+    private ProposalRelay relay; // disseminates the proposals along a tree, if enabled
 
     /**
      * Creates a new instance of Proposer
@@ -43,6 +44,16 @@ public class Proposer {
         this.controller = controller;
     }
 
+    /**
+     * Sets the relay used to disseminate the proposals when
+     * system.totalordermulticast.proposalrelay is enabled
+     *
+     * @param relay Relay of the proposals of this replica
+     */
+    public void setProposalRelay(ProposalRelay relay) {
+        this.relay = relay;
+    }
+
     /**
      * This method is called by the TOMLayer (or any other)
      * to start the execution of one instance of the Paxos protocol.
@@ -51,6 +62,10 @@ public class Proposer {
      * @param value Value to be proposed
      */
     public void startExecution(int eid, byte[] value) {
+        if (relay != null && controller.getStaticConf().isProposalRelay()) {
+            relay.disseminate(eid, value);
+            return;
+        }
         //******* EDUARDO BEGIN **************//
         communication.send(this.controller.getCurrentViewAcceptors(),
                 factory.createPropose(eid, 0, value));
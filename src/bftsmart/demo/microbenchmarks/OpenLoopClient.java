@@ -0,0 +1,212 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import bftsmart.communication.client.ReplyListener;
+import bftsmart.tom.AsynchServiceProxy;
+import bftsmart.tom.RequestContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.metrics.Histogram;
+
+/**
+ * Open-loop load generator: requests are issued at a target rate, on a
+ * fixed schedule, without waiting for the replies of the previous ones.
+ * Latency is measured from the time each request was supposed to be sent,
+ * so the time a request spends waiting for the generator to catch up (when
+ * the clients or the replicas are overloaded) is not omitted from it.
+ * Requests still without a reply when the measurement ends are recorded
+ * with the latency they had at that point, besides being reported as lost.
+ *
+ * Several rates can be given, in which case they are measured one after
+ * the other, producing a throughput-vs-latency curve.
+ *
+ * To be used with ThroughputLatencyServer (or any server that accepts
+ * arbitrary requests).
+ */
+public class OpenLoopClient {
+
+    private static final long DRAIN_TIME = 5000000000L; // how long to wait for the last replies (ns)
+    private static final long SPIN_THRESHOLD = 50000; // below this, busy wait instead of parking (ns)
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.out.println("Usage: java ...OpenLoopClient <initial client id> <number of clients> <request size> "
+                    + "<read only?> <duration per rate (s)> <rate (req/s)>[,<rate>...]");
+            System.exit(-1);
+        }
+
+        int initId = Integer.parseInt(args[0]);
+        int numberOfClients = Integer.parseInt(args[1]);
+        int requestSize = Integer.parseInt(args[2]);
+        boolean readOnly = Boolean.parseBoolean(args[3]);
+        int duration = Integer.parseInt(args[4]);
+        String[] rates = args[5].split(",");
+
+        TOMMessageType reqType = (readOnly) ? TOMMessageType.UNORDERED_REQUEST : TOMMessageType.ORDERED_REQUEST;
+        byte[] request = new byte[requestSize];
+
+        AsynchServiceProxy[] proxies = new AsynchServiceProxy[numberOfClients];
+        for (int i = 0; i < numberOfClients; i++) {
+            proxies[i] = new AsynchServiceProxy(initId + i);
+        }
+
+        System.out.println("Target (req/s)\tThroughput (req/s)\tLost\t50th (us)\t90th (us)\t99th (us)\t99.9th (us)\tMax (us)");
+        for (String rate : rates) {
+            Result r = run(proxies, request, reqType, Integer.parseInt(rate.trim()), duration);
+            System.out.println(rate.trim() + "\t" + r.throughput + "\t" + r.lost
+                    + "\t" + r.latency.getPercentile(50) / 1000
+                    + "\t" + r.latency.getPercentile(90) / 1000
+                    + "\t" + r.latency.getPercentile(99) / 1000
+                    + "\t" + r.latency.getPercentile(99.9) / 1000
+                    + "\t" + r.latency.getMax() / 1000);
+        }
+
+        for (AsynchServiceProxy proxy : proxies) {
+            proxy.close();
+        }
+        System.exit(0);
+    }
+
+    private static Result run(AsynchServiceProxy[] proxies, byte[] request, TOMMessageType reqType,
+            int rate, int duration) {
+
+        final Histogram latency = new Histogram("latency", "ns");
+        final AtomicLong completed = new AtomicLong(0);
+        final AtomicLong lastCompletion = new AtomicLong(0);
+
+        double interval = 1000000000.0 / rate;
+        long count = (long) rate * duration;
+        Outstanding[] requests = new Outstanding[(int) count];
+
+        long start = System.nanoTime() + 100000000L; // leaves time to get ready
+        for (long k = 0; k < count; k++) {
+            long intended = start + (long) (k * interval);
+            waitUntil(intended);
+
+            AsynchServiceProxy proxy = proxies[(int) (k % proxies.length)];
+            Outstanding o = new Outstanding(proxy, intended, latency, completed, lastCompletion);
+            requests[(int) k] = o;
+            o.reqId = proxy.invokeAsynchRequest(request, o, reqType);
+        }
+        long end = start + (long) (count * interval);
+
+        // waits for the replies of the last requests
+        long deadline = System.nanoTime() + DRAIN_TIME;
+        while (completed.get() < count && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1000000);
+        }
+
+        Result result = new Result();
+        long now = System.nanoTime();
+        for (Outstanding o : requests) {
+            if (o.finish()) {
+                latency.record(now - o.intended);
+                o.proxy.cleanAsynchRequest(o.reqId);
+                result.lost++;
+            }
+        }
+        result.latency = latency;
+        long window = Math.max(end, lastCompletion.get()) - start;
+        result.throughput = (window > 0 ? (completed.get() * 1000000000L) / window : 0);
+        return result;
+    }
+
+    private static void waitUntil(long time) {
+        long remaining;
+        while ((remaining = time - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static class Result {
+        long throughput;
+        long lost;
+        Histogram latency;
+    }
+
+    /**
+     * A request waiting for a quorum of matching replies
+     */
+    private static class Outstanding implements ReplyListener {
+
+        final AsynchServiceProxy proxy;
+        final long intended;
+        final Histogram latency;
+        final AtomicLong completed;
+        final AtomicLong lastCompletion;
+        final TOMMessage[] replies;
+        final int quorum;
+        volatile int reqId;
+        private boolean done = false;
+
+        Outstanding(AsynchServiceProxy proxy, long intended, Histogram latency, AtomicLong completed,
+                AtomicLong lastCompletion) {
+            this.proxy = proxy;
+            this.intended = intended;
+            this.latency = latency;
+            this.completed = completed;
+            this.lastCompletion = lastCompletion;
+            this.replies = new TOMMessage[proxy.getViewManager().getCurrentViewN()];
+            this.quorum = proxy.getReplyQuorum();
+        }
+
+        // replies may arrive through several event loops at the same time
+        @Override
+        public void replyReceived(RequestContext context, TOMMessage reply) {
+            long now = System.nanoTime();
+            int pos = proxy.getViewManager().getCurrentViewPos(reply.getSender());
+            if (pos < 0 || pos >= replies.length) return;
+
+            boolean finished;
+            synchronized (this) {
+                replies[pos] = reply;
+
+                int sameContent = 0;
+                for (TOMMessage r : replies) {
+                    if (r != null && Arrays.equals(r.getContent(), reply.getContent())) sameContent++;
+                }
+                finished = sameContent >= quorum && finish();
+            }
+            if (finished) {
+                latency.record(now - intended);
+                completed.incrementAndGet();
+                long last = lastCompletion.get();
+                while (now > last && !lastCompletion.compareAndSet(last, now)) {
+                    last = lastCompletion.get();
+                }
+                proxy.cleanAsynchRequest(context.getReqId());
+            }
+        }
+
+        /**
+         * @return true if the request was not finished before
+         */
+        synchronized boolean finish() {
+            if (done) return false;
+            done = true;
+            return true;
+        }
+    }
+}
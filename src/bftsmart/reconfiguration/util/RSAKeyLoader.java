@@ -23,6 +23,7 @@ import java.security.PublicKey;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.codec.binary.Base64;
 
 /**
@@ -34,6 +35,7 @@ public class RSAKeyLoader {
 	private String path;
         private int id;
 	private PrivateKey priKey;
+	private ConcurrentHashMap<Integer, PublicKey> pubKeys = new ConcurrentHashMap<Integer, PublicKey>();
 	
 	/** Creates a new instance of RSAKeyLoader */
 	public RSAKeyLoader(int id, String configHome) {
@@ -55,27 +57,23 @@ public class RSAKeyLoader {
 	 * @throws Exception problems reading or parsing the key
 	 */
 	public PublicKey loadPublicKey(int id) throws Exception {
-		BufferedReader r = new BufferedReader(new FileReader(path + "publickey" + id));
-		String tmp = "";
-		String key = "";
-		while ((tmp = r.readLine()) != null) {
-			key = key + tmp;
+		PublicKey ret = pubKeys.get(id);
+		if (ret == null) {
+			BufferedReader r = new BufferedReader(new FileReader(path + "publickey" + id));
+			String tmp = "";
+			String key = "";
+			while ((tmp = r.readLine()) != null) {
+				key = key + tmp;
+			}
+			r.close();
+			ret = getPublicKeyFromString(key);
+			pubKeys.put(id, ret);
 		}
-		r.close();
-		PublicKey ret = getPublicKeyFromString(key);
 		return ret;
 	}
         
 	public PublicKey loadPublicKey() throws Exception {
-		BufferedReader r = new BufferedReader(new FileReader(path + "publickey" + this.id));
-		String tmp = "";
-		String key = "";
-		while ((tmp = r.readLine()) != null) {
-			key = key + tmp;
-		}
-		r.close();
-		PublicKey ret = getPublicKeyFromString(key);
-		return ret;
+		return loadPublicKey(this.id);
 	}
 
 	/**
@@ -17,24 +17,45 @@ package bftsmart.reconfiguration.util;
 
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
+import bftsmart.tom.trace.Tracer;
+import bftsmart.tom.util.CryptoProvider;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.RingBuffer;
+import bftsmart.tom.util.TOMUtil;
 
 public class TOMConfiguration extends Configuration {
 
     protected int n;
     protected int f;
     protected int requestTimeout;
+    protected boolean adaptiveTimeout;
+    protected int minRequestTimeout;
+    protected int maxRequestTimeout;
     protected int tomPeriod;
     protected int paxosHighMark;
     protected int revivalHighMark;
     protected int timeoutHighMark;
+    protected int outOfContextMemory;
     protected int replyVerificationTime;
     protected int maxBatchSize;
+    protected int maxBatchBytes;
+    protected boolean adaptiveBatching;
+    protected int batchTargetLatency;
+    protected int maxBatchWait;
+    protected String batchScheduler;
+    protected int schedulerQuantum;
+    protected Map<Integer, Integer> clientWeights;
+    protected boolean proposalRelay;
+    protected int relayFanout;
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
+    protected int maxMessageSize;
+    protected RingBuffer.WaitStrategy waitStrategy;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
     protected RSAKeyLoader rsaLoader;
@@ -52,10 +73,26 @@ public class TOMConfiguration extends Configuration {
 	private boolean syncLog;
 	private boolean parallelLog;
 	private boolean logToDisk;
+	private boolean logOffHeap;
+	private long logOffHeapMax;
+	private boolean staggerCheckpoints;
 	private boolean isToWriteCkpsToDisk;
 	private boolean syncCkp;
     private boolean isBFT;
     private int numRepliers;
+    private int readOnlyThreads;
+    private boolean virtualThreads;
+    private int timerThreads;
+    private int handshakeThreads;
+    private int stateTransferThreads;
+    private int executorQueueSize;
+    private boolean metricsJMX;
+    private int metricsPeriod;
+    private CryptoProvider cryptoProvider;
+    private int rekeyInterval;
+    private boolean linkKeyCache;
+    private int linkKeyLifetime;
+    private int linkKeyRotation;
     
     /** Creates a new instance of TOMConfiguration */
     public TOMConfiguration(int processId) {
@@ -104,6 +141,29 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.totalordermulticast.adaptiveTimeout");
+            adaptiveTimeout = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.timeout_min");
+            if (s == null) {
+                minRequestTimeout = requestTimeout;
+            } else {
+                minRequestTimeout = Integer.parseInt(s);
+                if (minRequestTimeout < 0) {
+                    minRequestTimeout = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.timeout_max");
+            if (s == null) {
+                maxRequestTimeout = requestTimeout * 6;
+            } else {
+                maxRequestTimeout = Integer.parseInt(s);
+                if (maxRequestTimeout < minRequestTimeout) {
+                    maxRequestTimeout = minRequestTimeout;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.highMark");
             if (s == null) {
                 paxosHighMark = 10000;
@@ -133,6 +193,16 @@ public class TOMConfiguration extends Configuration {
                     timeoutHighMark = 1;
                 }
             }
+
+            s = (String) configs.remove("system.totalordermulticast.outOfContextMemory");
+            if (s == null) {
+                outOfContextMemory = 128;
+            } else {
+                outOfContextMemory = Integer.parseInt(s);
+                if (outOfContextMemory < 1) {
+                    outOfContextMemory = 1;
+                }
+            }
             
             s = (String) configs.remove("system.totalordermulticast.maxbatchsize");
             if (s == null) {
@@ -141,6 +211,78 @@ public class TOMConfiguration extends Configuration {
                 maxBatchSize = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.maxbatchbytes");
+            if (s == null) {
+                maxBatchBytes = 0;
+            } else {
+                maxBatchBytes = Integer.parseInt(s);
+                if (maxBatchBytes < 0) {
+                    maxBatchBytes = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.adaptivebatching");
+            adaptiveBatching = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.totalordermulticast.batchlatency");
+            if (s == null) {
+                batchTargetLatency = 50;
+            } else {
+                batchTargetLatency = Integer.parseInt(s);
+                if (batchTargetLatency < 1) {
+                    batchTargetLatency = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.maxbatchwait");
+            if (s == null) {
+                maxBatchWait = 0;
+            } else {
+                maxBatchWait = Integer.parseInt(s);
+                if (maxBatchWait < 0) {
+                    maxBatchWait = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batchscheduler");
+            batchScheduler = (s != null ? s.trim() : "bftsmart.clientsmanagement.RoundRobinScheduler");
+
+            s = (String) configs.remove("system.totalordermulticast.schedulerquantum");
+            if (s == null) {
+                schedulerQuantum = 1024;
+            } else {
+                schedulerQuantum = Integer.parseInt(s);
+                if (schedulerQuantum < 1) {
+                    schedulerQuantum = 1024;
+                }
+            }
+
+            clientWeights = new HashMap<Integer, Integer>();
+            s = (String) configs.remove("system.totalordermulticast.clientweights");
+            if (s != null) {
+                StringTokenizer str = new StringTokenizer(s, ",");
+                while (str.hasMoreTokens()) {
+                    String[] entry = str.nextToken().trim().split(":");
+                    if (entry.length == 2) {
+                        int weight = Integer.parseInt(entry[1].trim());
+                        if (weight > 0) clientWeights.put(Integer.parseInt(entry[0].trim()), weight);
+                    }
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.proposalrelay");
+            proposalRelay = (s != null && Boolean.parseBoolean(s.trim()));
+
+            s = (String) configs.remove("system.totalordermulticast.relayfanout");
+            if (s == null) {
+                relayFanout = 2;
+            } else {
+                relayFanout = Integer.parseInt(s);
+                if (relayFanout < 1) {
+                    relayFanout = 2;
+                }
+            }
+
             s = (String) configs.remove("system.debug");
             if (s == null) {
                 Logger.debug = false;
@@ -153,6 +295,10 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.trace.subsystems");
+            String traceBuffer = (String) configs.remove("system.trace.buffer");
+            Tracer.configure(s, (traceBuffer != null) ? Integer.parseInt(traceBuffer) : 0);
+
             s = (String) configs.remove("system.totalordermulticast.replayVerificationTime");
             if (s == null) {
                 replyVerificationTime = 0;
@@ -259,6 +405,23 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.communication.maxMessageSize");
+            if (s == null) {
+                maxMessageSize = 0;
+            } else {
+                maxMessageSize = Integer.parseInt(s);
+                if (maxMessageSize < 0) {
+                    maxMessageSize = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.communication.waitStrategy");
+            if (s == null) {
+                waitStrategy = RingBuffer.WaitStrategy.PARK;
+            } else {
+                waitStrategy = RingBuffer.WaitStrategy.parse(s);
+            }
+
 			s = (String) configs.remove("system.totalordermulticast.log");
 			if (s != null) {
 				isToLog = Boolean.parseBoolean(s);
@@ -282,6 +445,22 @@ public class TOMConfiguration extends Configuration {
 				logToDisk = false;
 			}
 			
+			s = (String) configs
+					.remove("system.totalordermulticast.log_offheap");
+			if (s != null) {
+				logOffHeap = Boolean.parseBoolean(s);
+			} else {
+				logOffHeap = false;
+			}
+
+			s = (String) configs
+					.remove("system.totalordermulticast.log_offheap_max");
+			if (s != null && Long.parseLong(s.trim()) > 0) {
+				logOffHeapMax = Long.parseLong(s.trim()) * 1024 * 1024;
+			} else {
+				logOffHeapMax = 2048L * 1024 * 1024;
+			}
+
 			s = (String) configs
 					.remove("system.totalordermulticast.sync_log");
 			if (s != null) {
@@ -290,6 +469,14 @@ public class TOMConfiguration extends Configuration {
 				syncLog = false;
 			}
 
+			s = (String) configs
+					.remove("system.totalordermulticast.stagger_checkpoints");
+			if (s != null) {
+				staggerCheckpoints = Boolean.parseBoolean(s);
+			} else {
+				staggerCheckpoints = false;
+			}
+
 			s = (String) configs
 					.remove("system.totalordermulticast.checkpoint_to_disk");
 			if (s == null) {
@@ -322,7 +509,92 @@ public class TOMConfiguration extends Configuration {
             } else {
                 numRepliers = Integer.parseInt(s);
             }
+
+            s = (String) configs.remove("system.numreadonlythreads");
+            if (s == null) {
+                readOnlyThreads = 0;
+            } else {
+                readOnlyThreads = Integer.parseInt(s);
+                if (readOnlyThreads < 0) {
+                    readOnlyThreads = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.executors.virtualThreads");
+            virtualThreads = (s != null) ? Boolean.parseBoolean(s) : false;
+
+            s = (String) configs.remove("system.executors.timerThreads");
+            timerThreads = (s != null) ? Math.max(1, Integer.parseInt(s)) : 1;
+
+            s = (String) configs.remove("system.executors.handshakeThreads");
+            handshakeThreads = (s != null) ? Math.max(1, Integer.parseInt(s)) : 4;
+
+            s = (String) configs.remove("system.executors.stateTransferThreads");
+            stateTransferThreads = (s != null) ? Math.max(1, Integer.parseInt(s)) : 2;
+
+            s = (String) configs.remove("system.executors.queueSize");
+            executorQueueSize = (s != null) ? Math.max(1, Integer.parseInt(s)) : 1024;
+
+            s = (String) configs.remove("system.metrics.jmx");
+            metricsJMX = (s != null) ? Boolean.parseBoolean(s) : true;
+
+            s = (String) configs.remove("system.metrics.period");
+            if (s == null) {
+                metricsPeriod = 0;
+            } else {
+                metricsPeriod = Integer.parseInt(s);
+                if (metricsPeriod < 0) {
+                    metricsPeriod = 0;
+                }
+            }
             
+            s = (String) configs.remove("system.crypto.provider");
+            if (s == null) {
+                s = "bftsmart.tom.util.DefaultCryptoProvider";
+            }
+            cryptoProvider = (CryptoProvider) Class.forName(s).newInstance();
+            cryptoProvider.init((String) configs.remove("system.crypto.macAlgorithm"),
+                    (String) configs.remove("system.crypto.hashAlgorithm"),
+                    (String) configs.remove("system.crypto.signatureAlgorithm"));
+            TOMUtil.setCryptoProvider(cryptoProvider);
+
+            s = (String) configs.remove("system.crypto.rekeyInterval");
+            if (s == null) {
+                rekeyInterval = 1048576;
+            } else {
+                rekeyInterval = Integer.parseInt(s);
+                if (rekeyInterval < 0) {
+                    rekeyInterval = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.crypto.linkKeyCache");
+            if (s == null) {
+                linkKeyCache = false;
+            } else {
+                linkKeyCache = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.crypto.linkKeyLifetime");
+            if (s == null) {
+                linkKeyLifetime = 86400;
+            } else {
+                linkKeyLifetime = Integer.parseInt(s);
+                if (linkKeyLifetime < 0) {
+                    linkKeyLifetime = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.crypto.linkKeyRotation");
+            if (s == null) {
+                linkKeyRotation = 0;
+            } else {
+                linkKeyRotation = Integer.parseInt(s);
+                if (linkKeyRotation < 0) {
+                    linkKeyRotation = 0;
+                }
+            }
+
             rsaLoader = new RSAKeyLoader(processId, TOMConfiguration.configHome);
         } catch (Exception e) {
             e.printStackTrace(System.err);
@@ -356,6 +628,18 @@ public class TOMConfiguration extends Configuration {
         return requestTimeout;
     }
 
+    public boolean isAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    public int getMinRequestTimeout() {
+        return minRequestTimeout;
+    }
+
+    public int getMaxRequestTimeout() {
+        return maxRequestTimeout;
+    }
+
     public int getReplyVerificationTime() {
         return replyVerificationTime;
     }
@@ -379,11 +663,71 @@ public class TOMConfiguration extends Configuration {
     public int getTimeoutHighMark() {
         return timeoutHighMark;
     }
+
+    public int getOutOfContextMemory() {
+        return outOfContextMemory;
+    }
     
     public int getMaxBatchSize() {
         return maxBatchSize;
     }
 
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    public int getBatchTargetLatency() {
+        return batchTargetLatency;
+    }
+
+    public int getMaxBatchWait() {
+        return maxBatchWait;
+    }
+
+    /**
+     * @return the class of the scheduler that chooses the requests of each batch
+     */
+    public String getBatchScheduler() {
+        return batchScheduler;
+    }
+
+    /**
+     * @return the bytes each client can put in a batch per round of the
+     *         deficit round robin scheduler (times its weight)
+     */
+    public int getSchedulerQuantum() {
+        return schedulerQuantum;
+    }
+
+    /**
+     * @param clientId id of a client
+     * @return the weight of the client in the batch scheduler (1 if not configured)
+     */
+    public int getClientWeight(int clientId) {
+        Integer weight = clientWeights.get(clientId);
+        return (weight != null ? weight : 1);
+    }
+
+    /**
+     * @return true if the leader sends the value of its proposals only to a
+     *         few replicas, which relay it to the others along a tree
+     */
+    public boolean isProposalRelay() {
+        return proposalRelay;
+    }
+
+    /**
+     * @return the number of replicas each node of the relay tree (including
+     *         the leader) sends the proposed value to
+     */
+    public int getRelayFanout() {
+        return relayFanout;
+    }
+
     public boolean isShutdownHookEnabled() {
         return shutdownHookEnabled;
     }
@@ -400,6 +744,22 @@ public class TOMConfiguration extends Configuration {
         return outQueueSize;
     }
 
+    /**
+     * @return the largest message accepted from another replica, in bytes
+     *         (0 means no limit)
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * @return how the threads of the replica wait for messages from the
+     *         previous stage (spin, yield or park)
+     */
+    public RingBuffer.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
     public boolean isUseSenderThread() {
         return useSenderThread;
     }
@@ -457,6 +817,21 @@ public class TOMConfiguration extends Configuration {
 		return logToDisk;
 	}
 
+	public boolean logOffHeap() {
+		return logOffHeap;
+	}
+
+	/**
+	 * @return the maximum size of the off-heap log, in bytes
+	 */
+	public long getLogOffHeapMax() {
+		return logOffHeapMax;
+	}
+
+	public boolean staggerCheckpoints() {
+		return staggerCheckpoints;
+	}
+
 	public boolean isToLogParallel() {
 		// TODO Auto-generated method stub
 		return parallelLog;
@@ -517,4 +892,92 @@ public class TOMConfiguration extends Configuration {
     public int getNumRepliers() {
         return numRepliers;
     }
+
+    public int getReadOnlyThreads() {
+        return readOnlyThreads;
+    }
+
+    public boolean isMetricsJMX() {
+        return metricsJMX;
+    }
+
+    public int getMetricsPeriod() {
+        return metricsPeriod;
+    }
+
+    /**
+     * The provider of the MAC, digest and signature engines used by the replicas
+     */
+    public CryptoProvider getCryptoProvider() {
+        return cryptoProvider;
+    }
+
+    /**
+     * Number of authenticated messages sent through a replica link before its
+     * MAC keys are replaced (0 means the keys are never replaced)
+     */
+    public int getRekeyInterval() {
+        return rekeyInterval;
+    }
+
+    /**
+     * Whether the link secrets established with the other replicas are kept
+     * on disk, so that reconnections (also after a restart) are authenticated
+     * without a new Diffie-Hellman exchange
+     */
+    public boolean isLinkKeyCache() {
+        return linkKeyCache;
+    }
+
+    /**
+     * Number of seconds a cached link secret is used before it is replaced
+     * by a new Diffie-Hellman exchange (0 means it is never replaced)
+     */
+    public int getLinkKeyLifetime() {
+        return linkKeyLifetime;
+    }
+
+    /**
+     * Number of seconds between two rotations of the cached link secrets,
+     * which discard all of them at once (0 means they are never rotated)
+     */
+    public int getLinkKeyRotation() {
+        return linkKeyRotation;
+    }
+
+    /**
+     * Whether the connection loops, reply threads and pools of the replica
+     * run in virtual threads (only if supported by the JVM)
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Number of threads that run the timeouts of the replica
+     */
+    public int getTimerThreads() {
+        return timerThreads;
+    }
+
+    /**
+     * Maximum number of connections from other replicas authenticated at the same time
+     */
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    /**
+     * Maximum number of states sent at the same time to recovering replicas
+     */
+    public int getStateTransferThreads() {
+        return stateTransferThreads;
+    }
+
+    /**
+     * Maximum number of tasks waiting in each pool of the replica
+     */
+    public int getExecutorQueueSize() {
+        return executorQueueSize;
+    }
 }
@@ -34,6 +34,9 @@ import bftsmart.tom.util.TOMUtil;
  *
  */
 public abstract class BaseStateManager implements StateManager {
+
+    private static final long ASK_MIN_INTERVAL = 100; // for asking the current consensus, in milliseconds
+    private static final long ASK_MAX_INTERVAL = 1000;
 	
     protected TOMLayer tomLayer;
     protected ServerViewController SVController;
@@ -49,7 +52,8 @@ public abstract class BaseStateManager implements StateManager {
     protected int lastEid;
     protected ApplicationState state;
     
-    protected boolean isInitializing =  true;
+    protected volatile boolean isInitializing =  true;
+    private final Object initLock = new Object();
     private HashMap<Integer, Integer> senderEids = null;
     
     public BaseStateManager() {
@@ -157,15 +161,33 @@ public abstract class BaseStateManager implements StateManager {
 		
 		target = SVController.getCurrentViewOtherAcceptors();
 		
+		// asks again, at increasing intervals, until finishInitialization() is invoked
+		long interval = ASK_MIN_INTERVAL;
 		while(isInitializing) {
-			tomLayer.getCommunication().send(target, currentEid);
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			synchronized (initLock) {
+				try {
+					if (isInitializing) initLock.wait(interval);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			if (isInitializing) {
+				tomLayer.getCommunication().send(target, currentEid);
+				interval = Math.min(2 * interval, ASK_MAX_INTERVAL);
 			}
 		}
 	}
+
+	/**
+	 * Invoked when this replica learns the current consensus from the others
+	 * (or installs their state) after starting, waking up askCurrentConsensusId()
+	 */
+	protected void finishInitialization() {
+		synchronized (initLock) {
+			isInitializing = false;
+			initLock.notifyAll();
+		}
+	}
 	
 	@Override
 	public void currentConsensusIdAsked(int sender) {
@@ -188,7 +210,7 @@ public abstract class BaseStateManager implements StateManager {
 			for(int value : senderEids.values()) {
 				Integer count = eids.get(value);
 				if(count == null)
-					eids.put(value, 0);
+					eids.put(value, 1);
 				else
 					eids.put(value, count.intValue() + 1);
 			}
@@ -197,7 +219,7 @@ public abstract class BaseStateManager implements StateManager {
 					if(key == lastEid) {
 						System.out.println("QUORUM OF REPLICAS REPLIED WITH EID " + key);
 						dt.deliverLock();
-						isInitializing = false;
+						finishInitialization();
 						tomLayer.setLastExec(key);
 						dt.canDeliver();
 						dt.deliverUnlock();
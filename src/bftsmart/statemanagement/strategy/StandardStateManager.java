@@ -19,8 +19,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.executionmanager.ExecutionManager;
@@ -31,6 +31,12 @@ import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.leaderchange.LCManager;
+import bftsmart.tom.server.Recoverable;
+import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.DefaultApplicationState;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
@@ -43,7 +49,7 @@ public class StandardStateManager extends BaseStateManager {
 	
     private int replica;
     private ReentrantLock lockTimer = new ReentrantLock();
-    private Timer stateTimer = null;
+    private ScheduledFuture<?> stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
     private long timeout = INIT_TIMEOUT;
     
@@ -91,7 +97,7 @@ public class StandardStateManager extends BaseStateManager {
 
         System.out.println("(StandardStateManager.requestState) I just sent a request to the other replicas for the state up to EID " + waitingEid);
 
-        TimerTask stateTask =  new TimerTask() {
+        Runnable stateTask =  new Runnable() {
             public void run() {
             	System.out.println("Timeout to retrieve state");
                 int[] myself = new int[1];
@@ -100,9 +106,9 @@ public class StandardStateManager extends BaseStateManager {
             }
         };
 
-        stateTimer = new Timer("state timer");
         timeout = timeout * 2;
-        stateTimer.schedule(stateTask,timeout);
+        stateTimer = ExecutorRegistry.getInstance(SVController.getStaticConf().getProcessId()).timer()
+                .schedule(stateTask, timeout, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -111,7 +117,7 @@ public class StandardStateManager extends BaseStateManager {
         Logger.println("(StateManager.stateTimeout) Timeout for the replica that was supposed to send the complete state. Changing desired replica.");
         System.out.println("Timeout no timer do estado!");
         if (stateTimer != null)
-        	stateTimer.cancel();
+        	stateTimer.cancel(false);
         changeReplica();
         reset();
         requestState();
@@ -171,7 +177,7 @@ public class StandardStateManager extends BaseStateManager {
                 if (msg.getSender() == replica && msg.getState().getSerializedState() != null) {
                 	System.out.println("Expected replica sent state. Setting it to state");
                     state = msg.getState();
-                    if (stateTimer != null) stateTimer.cancel();
+                    if (stateTimer != null) stateTimer.cancel(false);
                 }
 
                 senderStates.put(msg.getSender(), msg.getState());
@@ -183,10 +189,8 @@ public class StandardStateManager extends BaseStateManager {
                     System.out.println("State != null: " + (state != null) + ", recvState != null: " + (otherReplicaState != null));
                     int haveState = 0;
                         if(state != null) {
-                            byte[] hash = null;
-                            hash = tomLayer.computeHash(state.getSerializedState());
                             if (otherReplicaState != null) {
-                                if (Arrays.equals(hash, otherReplicaState.getStateHash())) haveState = 1;
+                                if (validateState()) haveState = 1;
                                 else if (getNumEqualStates() > SVController.getCurrentViewF())
                                     haveState = -1;
                             }
@@ -227,7 +231,7 @@ public class StandardStateManager extends BaseStateManager {
                             SVController.reconfigureTo(currentView);
                         }
                         
-						isInitializing = false;
+						finishInitialization();
 						
                         dt.canDeliver();
                         dt.deliverUnlock();
@@ -238,7 +242,7 @@ public class StandardStateManager extends BaseStateManager {
 
                         tomLayer.requestsTimer.Enabled(true);
                         tomLayer.requestsTimer.startTimer();
-                        if (stateTimer != null) stateTimer.cancel();
+                        if (stateTimer != null) stateTimer.cancel(false);
                         
                         if (appStateOnly) {
                         	appStateOnly = false;
@@ -249,7 +253,7 @@ public class StandardStateManager extends BaseStateManager {
                         waitingEid = -1;
                         reset();
  
-                        if (stateTimer != null) stateTimer.cancel();
+                        if (stateTimer != null) stateTimer.cancel(false);
                         
                         if (appStateOnly) {
                             requestState();
@@ -262,12 +266,13 @@ public class StandardStateManager extends BaseStateManager {
                         reset();
                         requestState();
 
-                        if (stateTimer != null) stateTimer.cancel();
+                        if (stateTimer != null) stateTimer.cancel(false);
                     } else if (haveState == 0 && (SVController.getCurrentViewN() - SVController.getCurrentViewF()) <= getReplies()) {
 
                         Logger.println("(TOMLayer.SMReplyDeliver) Could not obtain the state, retrying");
+                        chooseReplica();
                         reset();
-                        if (stateTimer != null) stateTimer.cancel();
+                        if (stateTimer != null) stateTimer.cancel(false);
                         waitingEid = -1;
                         //requestState();
                     } else {
@@ -300,6 +305,100 @@ public class StandardStateManager extends BaseStateManager {
     	return null;
     }
 
+    /**
+     * Validates the state sent by the expected replica against the state of
+     * another replica. If the other replica took its last checkpoint at the
+     * same consensus, the hashes of both checkpoints are compared. Otherwise
+     * (e.g., if checkpoints are staggered), the received checkpoint is
+     * executed up to the checkpoint of the other replica, whose hash must
+     * match the resulting state, without installing it.
+     * @return true if the state was validated by some other replica
+     */
+    private boolean validateState() {
+        byte[] hash = tomLayer.computeHash(state.getSerializedState());
+        int checkpoint = getCheckpointEid(state);
+
+        for (int process : SVController.getCurrentViewProcesses()) {
+            ApplicationState otherState = senderStates.get(process);
+            if (process == replica || otherState == null || otherState.getStateHash() == null)
+                continue;
+
+            int otherCheckpoint = getCheckpointEid(otherState);
+            if (otherCheckpoint == checkpoint) {
+                if (Arrays.equals(hash, otherState.getStateHash())) return true;
+            } else if (checkpoint > -1 && otherCheckpoint > checkpoint && otherCheckpoint <= state.getLastEid()) {
+                System.out.println("Validating checkpoint of EID " + checkpoint + " against the checkpoint of EID "
+                        + otherCheckpoint + " of replica " + process);
+                if (Arrays.equals(executeUpTo(otherCheckpoint), otherState.getStateHash())) return true;
+            }
+        }
+        return false;
+    }
+
+    private int getCheckpointEid(ApplicationState state) {
+        return (state instanceof DefaultApplicationState ? ((DefaultApplicationState) state).getLastCheckpointEid() : -1);
+    }
+
+    /**
+     * Executes the log of the checkpoint received from the expected replica
+     * up to the given consensus, on top of that checkpoint, without
+     * installing it: the state of this replica is left as it was
+     * @return the hash of the resulting state, or null if the recoverer can not provide it
+     */
+    private byte[] executeUpTo(int eid) {
+        Recoverable recoverer = dt.getRecoverer();
+        if (!(recoverer instanceof DefaultRecoverable) && !(recoverer instanceof DefaultSingleRecoverable))
+            return null;
+
+        DefaultApplicationState received = (DefaultApplicationState) state;
+        int size = eid - received.getLastCheckpointEid();
+        if (received.getSerializedState() == null || received.getMessageBatches() == null
+                || received.getMessageBatches().length < size)
+            return null;
+
+        DefaultApplicationState upTo = new DefaultApplicationState(Arrays.copyOf(received.getMessageBatches(), size),
+                received.getLastCheckpointEid(), received.getLastCheckpointRound(), received.getLastCheckpointLeader(),
+                eid, received.getSerializedState(), received.getStateHash());
+        dt.deliverLock();
+        try {
+            if (recoverer instanceof DefaultRecoverable)
+                return ((DefaultRecoverable) recoverer).computeStateHash(upTo);
+            else
+                return ((DefaultSingleRecoverable) recoverer).computeStateHash(upTo);
+        } catch (RuntimeException e) {
+            // e.g., a batch missing from the log, or commands the application can not execute
+            Logger.println("(StandardStateManager.executeUpTo) Could not execute the received log: " + e);
+            return null;
+        } finally {
+            dt.deliverUnlock();
+        }
+    }
+
+    /**
+     * Chooses the replica to send the complete state in the next attempt. It
+     * is the one with the oldest checkpoint among those that replied, as the
+     * checkpoints of the others are then covered by its log and can be used
+     * to validate it. If there is no such replica, the next one is chosen.
+     */
+    private void chooseReplica() {
+        int chosen = -1;
+        int oldest = Integer.MAX_VALUE;
+        for (int process : SVController.getCurrentViewProcesses()) {
+            ApplicationState otherState = senderStates.get(process);
+            if (process == replica || otherState == null || !otherState.hasState())
+                continue;
+            int checkpoint = getCheckpointEid(otherState);
+            if (checkpoint > -1 && checkpoint < oldest) {
+                oldest = checkpoint;
+                chosen = process;
+            }
+        }
+        if (chosen > -1 && chosen != SVController.getStaticConf().getProcessId())
+            replica = chosen;
+        else
+            changeReplica();
+    }
+
     private int getNumEqualStates() {
     	List<ApplicationState> states = new ArrayList<ApplicationState>(receivedStates()); 
     	int match = 0;
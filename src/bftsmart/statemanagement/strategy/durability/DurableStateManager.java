@@ -22,8 +22,9 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.executionmanager.ExecutionManager;
@@ -38,6 +39,7 @@ import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.leaderchange.LCManager;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.durability.DurabilityCoordinator;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 
@@ -47,7 +49,7 @@ public class DurableStateManager extends BaseStateManager {
 	private ExecutionManager execManager;
 
 	private ReentrantLock lockTimer = new ReentrantLock();
-	private Timer stateTimer = null;
+	private ScheduledFuture<?> stateTimer = null;
 	private final static long INIT_TIMEOUT = 40000;
 	private long timeout = INIT_TIMEOUT;
 
@@ -95,7 +97,7 @@ public class DurableStateManager extends BaseStateManager {
 				.println("(TOMLayer.requestState) I just sent a request to the other replicas for the state up to EID "
 						+ waitingEid);
 
-		TimerTask stateTask = new TimerTask() {
+		Runnable stateTask = new Runnable() {
 			public void run() {
 				int[] myself = new int[1];
 				myself[0] = SVController.getStaticConf().getProcessId();
@@ -107,9 +109,9 @@ public class DurableStateManager extends BaseStateManager {
 			}
 		};
 
-		stateTimer = new Timer("state timer");
 		timeout = timeout * 2;
-		stateTimer.schedule(stateTask, timeout);
+		stateTimer = ExecutorRegistry.getInstance(SVController.getStaticConf().getProcessId()).timer()
+				.schedule(stateTask, timeout, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
@@ -118,7 +120,7 @@ public class DurableStateManager extends BaseStateManager {
 		Logger.println("(StateManager.stateTimeout) Timeout for the replica that was supposed to send the complete state. Changing desired replica.");
 		System.out.println("Timeout no timer do estado!");
 		if (stateTimer != null)
-			stateTimer.cancel();
+			stateTimer.cancel(false);
 		reset();
 		requestState();
 		lockTimer.unlock();
@@ -158,7 +160,14 @@ public class DurableStateManager extends BaseStateManager {
 			StateSenderServer stateServer = new StateSenderServer(port);
 			stateServer.setRecoverable(dt.getRecoverer());
 			stateServer.setRequest(cstConfig);
-			new Thread(stateServer).start();
+			try {
+				ExecutorRegistry.getInstance(myId).pool(ExecutorRegistry.STATE_TRANSFERS).execute(stateServer);
+			} catch (RejectedExecutionException e) {
+				// too many transfers going on, the replica will ask another one when its timer expires
+				System.out.println("(TOMLayer.SMRequestDeliver) Too many states being sent, not sending this one");
+				stateServer.close();
+				return;
+			}
 
 			tomLayer.getCommunication().send(targets, reply);
 
@@ -331,7 +340,7 @@ public class DurableStateManager extends BaseStateManager {
 							SVController.reconfigureTo(currentView);
 						}
 						
-						isInitializing = false;
+						finishInitialization();
 
 						dt.canDeliver();
 						dt.deliverUnlock();
@@ -343,7 +352,7 @@ public class DurableStateManager extends BaseStateManager {
 						tomLayer.requestsTimer.Enabled(true);
 						tomLayer.requestsTimer.startTimer();
 						if (stateTimer != null)
-							stateTimer.cancel();
+							stateTimer.cancel(false);
 
 						if (appStateOnly) {
 							appStateOnly = false;
@@ -361,7 +370,7 @@ public class DurableStateManager extends BaseStateManager {
 						reset();
 
 						if (stateTimer != null)
-							stateTimer.cancel();
+							stateTimer.cancel(false);
 
 						if (appStateOnly) {
 							requestState();
@@ -375,7 +384,7 @@ public class DurableStateManager extends BaseStateManager {
 						requestState();
 
 						if (stateTimer != null)
-							stateTimer.cancel();
+							stateTimer.cancel(false);
 					}
 				}
 			}
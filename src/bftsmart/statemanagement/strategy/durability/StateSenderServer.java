@@ -25,6 +25,8 @@ import bftsmart.tom.server.defaultservices.durability.DurabilityCoordinator;
 
 public class StateSenderServer implements Runnable {
 
+	private static final int ACCEPT_TIMEOUT = 60000; // for the replica that asked the state to connect
+
 	private ServerSocket server;
 	private ApplicationState state;
 	private Recoverable recoverable;
@@ -47,12 +49,17 @@ public class StateSenderServer implements Runnable {
 	public StateSenderServer(int port) {
 		try {
 			server = new ServerSocket(port);
+			server.setSoTimeout(ACCEPT_TIMEOUT);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Accepts the connection of the replica that asked the state and sends
+	 * it, in the calling thread (a thread of the state transfer pool)
+	 */
 	@Override
 	public void run() {
 		try {
@@ -60,9 +67,21 @@ public class StateSenderServer implements Runnable {
 			StateSender sender = new StateSender(socket);
 			state = coordinator.getState(request);
 			sender.setState(state);
-			new Thread(sender).start();
+			sender.run();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Stops accepting the connection, freeing the port
+	 */
+	public void close() {
+		try {
+			if (server != null) server.close();
+		} catch (IOException e) {
 		}
 	}
 
@@ -122,10 +122,11 @@ public class AsynchServiceProxy extends ServiceProxy{
 				reqType, targets, System.currentTimeMillis(), replyListener);
 
 		try {
+			// registered before sending, as replies may arrive before this method returns
+			requestsContext.put(requestContext.getReqId(), requestContext);
+
 			sendMessageToTargets(request, requestContext.getReqId(), requestContext.getOperationId(), targets, reqType);
 
-			requestsContext.put(requestContext.getReqId(), requestContext);
-			
 		} finally {
 			canSendLock.unlock();
 		}
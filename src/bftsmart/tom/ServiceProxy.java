@@ -56,6 +56,7 @@ public class ServiceProxy extends TOMSender {
 	private int replyServer;
 	private HashResponseController hashResponseController;
 	private int invokeUnorderedHashedTimeout = 10;
+	private int invokeOrderedHashedTimeout = 1;
 
 	/**
 	 * Constructor
@@ -139,6 +140,21 @@ public class ServiceProxy extends TOMSender {
 		this.invokeUnorderedHashedTimeout = timeout;
 	}
 
+	public int getInvokeOrderedHashedTimeout() {
+		return invokeOrderedHashedTimeout;
+	}
+
+	/**
+	 * Set the amount of time (in seconds) that this proxy waits for the full
+	 * reply of an ordered request invoked with invokeOrderedHashed, before
+	 * asking the other replicas for their full replies.
+	 *
+	 * @param timeout the timeout to set
+	 */
+	public void setInvokeOrderedHashedTimeout(int timeout) {
+		this.invokeOrderedHashedTimeout = timeout;
+	}
+
 	public byte[] invokeOrdered(byte[] request) {
 		return invoke(request, TOMMessageType.ORDERED_REQUEST);
 	}
@@ -151,6 +167,18 @@ public class ServiceProxy extends TOMSender {
 		return invoke(request, TOMMessageType.UNORDERED_HASHED_REQUEST);
 	}
 
+	/**
+	 * Invokes an ordered request for which only one replica sends the full
+	 * reply, while the others send its hash. The replica sending the full
+	 * reply changes from request to request. Useful when replies are large.
+	 *
+	 * @param request Request to be sent
+	 * @return The reply from the replicas related to request
+	 */
+	public byte[] invokeOrderedHashed(byte[] request) {
+		return invoke(request, TOMMessageType.ORDERED_REQUEST, true);
+	}
+
 	/**
 	 * This method sends a request to the replicas, and returns the related reply.
 	 * If the servers take more than invokeTimeout seconds the method returns null.
@@ -162,6 +190,10 @@ public class ServiceProxy extends TOMSender {
 	 * @return The reply from the replicas related to request
 	 */
 	public byte[] invoke(byte[] request, TOMMessageType reqType) {
+		return invoke(request, reqType, reqType == TOMMessageType.UNORDERED_HASHED_REQUEST);
+	}
+
+	private byte[] invoke(byte[] request, TOMMessageType reqType, boolean hashed) {
 		canSendLock.lock();
 
 		// Clean all statefull data to prepare for receiving next replies
@@ -177,21 +209,23 @@ public class ServiceProxy extends TOMSender {
 
 		replyServer = -1;
 		hashResponseController = null;
+		TOMMessage hashedRequest = null;
 
-		if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST){
+		if(hashed){
 
-			replyServer = getRandomlyServerId();
+			// ordered requests rotate the replica that sends the full reply
+			replyServer = (requestType == TOMMessageType.UNORDERED_HASHED_REQUEST ?
+					getRandomlyServerId() : getRotatingServerId());
 			Logger.println("["+this.getClass().getName()+"] replyServerId("+replyServer+") "
 					+ "pos("+getViewManager().getCurrentViewPos(replyServer)+")");
 
-			hashResponseController = new HashResponseController(getViewManager().getCurrentViewPos(replyServer),
-					getViewManager().getCurrentViewProcesses().length);
+			hashResponseController = new HashResponseController(getViewManager().getCurrentViewProcesses().length);
 
-			TOMMessage sm = new TOMMessage(getProcessId(),getSession(), reqId, operationId, request,
+			hashedRequest = new TOMMessage(getProcessId(),getSession(), reqId, operationId, request,
 					getViewManager().getCurrentViewId(), requestType);
-			sm.setReplyServer(replyServer);
+			hashedRequest.setReplyServer(replyServer);
 
-			TOMulticast(sm);
+			TOMulticast(hashedRequest);
 		}else{
 			TOMulticast(request, reqId, operationId, reqType);
 		}
@@ -210,7 +244,20 @@ public class ServiceProxy extends TOMSender {
 					return invoke(request,TOMMessageType.ORDERED_REQUEST);
 				}
 			}else{ 
-				if (!this.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS)) {
+				boolean acquired;
+				if (hashed) {
+					acquired = this.sm.tryAcquire(invokeOrderedHashedTimeout, TimeUnit.SECONDS);
+					if (!acquired) {
+						// the replica chosen to send the full reply may be slow or faulty, so the
+						// request is retransmitted, making the others send their full replies
+						Logger.println("Full reply from " + replyServer + " missing for reqId=" + reqId + ", retransmitting");
+						TOMulticast(hashedRequest);
+						acquired = this.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS);
+					}
+				} else {
+					acquired = this.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS);
+				}
+				if (!acquired) {
 					Logger.println("###################TIMEOUT#######################");
 					Logger.println("Reply timeout for reqId=" + reqId);
 					System.out.print(getProcessId() + " // " + reqId + " // TIMEOUT // ");
@@ -253,7 +300,7 @@ public class ServiceProxy extends TOMSender {
 					reconfigureTo((View) TOMUtil.getObject(response.getContent()));
 
 					canSendLock.unlock();
-					return invoke(request, reqType);
+					return invoke(request, reqType, hashed);
 				}
 			} else if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST){
 				if (response.getViewID() == getViewManager().getCurrentViewId()) {
@@ -327,7 +374,7 @@ public class ServiceProxy extends TOMSender {
 				Logger.println("Receiving reply from " + reply.getSender()
 						+ " with reqId:" + reply.getSequence() + ". Putting on pos=" + pos);
 
-				if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST)
+				if(hashResponseController != null)
 				{
 					response = hashResponseController.getResponse(pos,reply);
 					if(response !=null){
@@ -363,7 +410,8 @@ public class ServiceProxy extends TOMSender {
 				
 				if (response == null) {
 					if (requestType.equals(TOMMessageType.ORDERED_REQUEST)) {
-						if (receivedReplies == getViewManager().getCurrentViewN()) {
+						// with hashed replies, the proxy retransmits the request instead of giving up
+						if (hashResponseController == null && receivedReplies == getViewManager().getCurrentViewN()) {
 							reqId = -1;
 							this.sm.release(); // resumes the thread that is executing the "invoke" method
 						}
@@ -390,7 +438,10 @@ public class ServiceProxy extends TOMSender {
 		}
 	}
 
-	private int getReplyQuorum() {
+	/**
+	 * @return the number of matching replies needed to accept a result
+	 */
+	public int getReplyQuorum() {
 		if (getViewManager().getStaticConf().isBFT()) {
 			return (int) Math.ceil((getViewManager().getCurrentViewN()
 					+ getViewManager().getCurrentViewF()) / 2) + 1;
@@ -399,6 +450,13 @@ public class ServiceProxy extends TOMSender {
 		}
 	}
 
+	private int getRotatingServerId(){
+		int[] servers = super.getViewManager().getCurrentViewProcesses();
+		int pos = ((reqId + getProcessId()) & Integer.MAX_VALUE) % servers.length;
+
+		return servers[pos];
+	}
+
 	private int getRandomlyServerId(){
 		int numServers = super.getViewManager().getCurrentViewProcesses().length;
 		int pos = rand.nextInt(numServers);
@@ -406,16 +464,20 @@ public class ServiceProxy extends TOMSender {
 		return super.getViewManager().getCurrentViewProcesses()[pos];
 	}
 
+	/**
+	 * Collects the replies of requests for which only one replica was asked to
+	 * send the full reply. Replicas mark the replies that carry just the hash
+	 * of the result, so a full reply is accepted from any replica (e.g., the
+	 * others, after a retransmission) as long as a quorum of hashes matches it.
+	 */
 	private class HashResponseController{
-		private TOMMessage reply;
+		private TOMMessage [] fullReplies;
 		private byte [][] hashReplies;
-		private int replyServerPos;
 		private int countHashReplies;
 
-		public HashResponseController(int replyServerPos, int length) {
-			this.replyServerPos = replyServerPos;
+		public HashResponseController(int length) {
+			this.fullReplies = new TOMMessage[length];
 			this.hashReplies = new byte[length][];
-			this.reply = null;
 			this.countHashReplies = 0;
 		}
 
@@ -426,25 +488,26 @@ public class ServiceProxy extends TOMSender {
 				countHashReplies++;
 			}
 
-			if(replyServerPos == pos){
-				reply = tomMessage;
+			if(tomMessage.getReplyServer() < 0){
+				fullReplies[pos] = tomMessage;
 				hashReplies[pos] = TOMUtil.computeHash(tomMessage.getContent());
 			}else{
 				hashReplies[pos] = tomMessage.getContent();
 			}
 			Logger.println("["+this.getClass().getName()+"] hashReplies["+pos+"]="+Arrays.toString(hashReplies[pos]));
 
-			if(hashReplies[replyServerPos]!=null){
-				int sameContent = 1;
-				for (int i = 0; i < replies.length; i++) {
-					if ((i != replyServerPos || getViewManager().getCurrentViewN() == 1) && hashReplies[i] != null
-							&& (Arrays.equals(hashReplies[i], hashReplies[replyServerPos]))) {
+			for (int i = 0; i < fullReplies.length; i++) {
+				if (fullReplies[i] == null) continue;
+
+				int sameContent = 0;
+				for (int j = 0; j < hashReplies.length; j++) {
+					if (hashReplies[j] != null && Arrays.equals(hashReplies[j], hashReplies[i])) {
 						sameContent++;
 						if (sameContent >= replyQuorum) {
-							return reply;
+							return fullReplies[i];
 						}
 					}
-				}	
+				}
 			}
 			return null;
 		}
@@ -27,6 +27,7 @@ import bftsmart.consensus.executionmanager.ExecutionManager;
 import bftsmart.consensus.executionmanager.LeaderModule;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.consensus.roles.ProposalRelay;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.Reconfiguration;
 import bftsmart.reconfiguration.ReconfigureReply;
@@ -36,14 +37,17 @@ import bftsmart.tom.core.ReplyManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.metrics.MetricsRegistry;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Executable;
 import bftsmart.tom.server.FIFOExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.SingleExecutable;
+import bftsmart.tom.server.SnapshotExecutable;
 
 import bftsmart.tom.server.defaultservices.DefaultReplier;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.ShutdownHookThread;
 import bftsmart.tom.util.TOMUtil;
 
@@ -86,6 +90,7 @@ public class ServiceReplica {
 	private boolean tomStackCreated = false;
 	private ReplicaContext replicaCtx = null;
 	private Replier replier = null;
+	private volatile Object snapshot = null; // read-only view used by SnapshotExecutables
 
 
 	/*******************************************************/
@@ -124,6 +129,9 @@ public class ServiceReplica {
 		this.executor = executor;
 		this.recoverer = recoverer;
 		this.replier = new DefaultReplier();
+		this.updateSnapshot();
+		ExecutorRegistry.getInstance(id).configure(this.SVController.getStaticConf());
+		MetricsRegistry.getInstance(id).start(this.SVController.getStaticConf());
 		this.init();
 		this.recoverer.setReplicaContext(replicaCtx);
 		this.replier.setReplicaContext(replicaCtx);
@@ -199,7 +207,8 @@ public class ServiceReplica {
 
 	private void initReplica() {
 		cs.start();
-		repMan = new ReplyManager(SVController.getStaticConf().getNumRepliers(), cs);
+		repMan = new ReplyManager(SVController.getStaticConf().getNumRepliers(),
+				SVController.getStaticConf().getWaitStrategy(), cs, ExecutorRegistry.getInstance(id));
 	}
 
 	/**
@@ -212,6 +221,8 @@ public class ServiceReplica {
 		byte[] response = null;
 		if(executor instanceof FIFOExecutable) {
 			response = ((FIFOExecutable)executor).executeUnorderedFIFO(message.getContent(), msgCtx, message.getSender(), message.getOperationId());
+		} else if(executor instanceof SnapshotExecutable) {
+			response = ((SnapshotExecutable)executor).executeUnordered(snapshot, message.getContent(), msgCtx);
 		} else
 			response = executor.executeUnordered(message.getContent(), msgCtx);
 
@@ -223,6 +234,10 @@ public class ServiceReplica {
 		// build the reply and send it to the client
 		message.reply = new TOMMessage(id, message.getSession(), message.getSequence(),
 				response, SVController.getCurrentViewId(), message.getReqType());
+		if(message.getReqType()==TOMMessageType.UNORDERED_HASHED_REQUEST &&
+				message.getReplyServer()!= this.id){
+			message.reply.setReplyServer(message.getReplyServer()); // tells the client this is a hash
+		}
 		
 		if (SVController.getStaticConf().getNumRepliers() > 0)
 			repMan.send(message);
@@ -265,12 +280,14 @@ public class ServiceReplica {
 							byte[]response = ((FIFOExecutable)executor).executeOrderedFIFO(request.getContent(), msgCtx, request.getSender(), request.getOperationId());
 							request.reply = new TOMMessage(id, request.getSession(),
 									request.getSequence(), response, SVController.getCurrentViewId());
+							hashReply(request);
 							bftsmart.tom.util.Logger.println("(ServiceReplica.receiveMessages) sending reply to " + request.getSender());
 							replier.manageReply(request, msgCtx);
 						} else if(executor instanceof SingleExecutable) {                                                      
 							byte[]response = ((SingleExecutable)executor).executeOrdered(request.getContent(), msgCtx);
 							request.reply = new TOMMessage(id, request.getSession(),
 									request.getSequence(), response, SVController.getCurrentViewId());
+							hashReply(request);
 							bftsmart.tom.util.Logger.println("(ServiceReplica.receiveMessages) sending reply to " + request.getSender());
 							replier.manageReply(request, msgCtx);
 						} else {                                                       
@@ -325,17 +342,50 @@ public class ServiceReplica {
 				TOMMessage request = toBatch.get(index);                
 				request.reply = new TOMMessage(id, request.getSession(), request.getSequence(),
 						replies[index], SVController.getCurrentViewId());                       
+				hashReply(request);
                                 
-				if (SVController.getStaticConf().getNumRepliers() > 0) {                                    
-					repMan.send(request);
-                                }
-                                else {
+				if (SVController.getStaticConf().getNumRepliers() <= 0) {
                                     cs.send(new int[] { request.getSender() }, request.reply);
                                 }
                         }
+			if (SVController.getStaticConf().getNumRepliers() > 0) {
+				repMan.send(toBatch); // replies to the same client are sent together
+			}
 			//DEBUG
 			bftsmart.tom.util.Logger.println("BATCHEXECUTOR END");
 		}
+
+		updateSnapshot();
+	}
+
+	/**
+	 * If the client chose another replica to send the full reply of an ordered
+	 * request, this replica only sends the hash of the result. The full reply
+	 * is kept in case the client retransmits the request, which it does when
+	 * the chosen replica is slow or faulty.
+	 *
+	 * @param request the ordered request, whose reply was already built
+	 */
+	private void hashReply(TOMMessage request) {
+		int replyServer = request.getReplyServer();
+		if (replyServer < 0 || replyServer == id) return;
+
+		TOMMessage full = request.reply;
+		full.recvFromClient = true; // send it on the first retransmission
+		request.fullReply = full;
+		request.reply = new TOMMessage(id, request.getSession(), request.getSequence(),
+				TOMUtil.computeHash(full.getContent()), full.getViewID(), full.getReqType());
+		request.reply.setReplyServer(replyServer); // tells the client this is a hash
+	}
+
+	/**
+	 * Obtains a new snapshot of the application state, to be used by the
+	 * subsequent read-only requests (only for SnapshotExecutables)
+	 */
+	public void updateSnapshot() {
+		if (executor instanceof SnapshotExecutable) {
+			snapshot = ((SnapshotExecutable) executor).getSnapshot();
+		}
 	}
 
 	/**
@@ -379,6 +429,10 @@ public class ServiceReplica {
 
 		Proposer proposer = new Proposer(cs, messageFactory, SVController);
 
+		ProposalRelay relay = new ProposalRelay(cs, messageFactory, lm, SVController);
+		proposer.setProposalRelay(relay);
+		cs.setProposalRelay(relay);
+
 		ExecutionManager executionManager = new ExecutionManager(SVController, acceptor, proposer, id);
 
 		acceptor.setExecutionManager(executionManager);
@@ -393,6 +447,7 @@ public class ServiceReplica {
 		cs.setRequestReceiver(tomLayer);
 
 		acceptor.setTOMLayer(tomLayer);
+		relay.setTOMLayer(tomLayer);
 
 		if(SVController.getStaticConf().isShutdownHookEnabled()){
 			Runtime.getRuntime().addShutdownHook(new ShutdownHookThread(cs, lm, acceptor, executionManager, tomLayer));
@@ -413,4 +468,14 @@ public class ServiceReplica {
 		return replicaCtx;
 	}
 
+	/**
+	 * Obtains the TOM layer of this replica (e.g., to know which consensus
+	 * it executed last or which replica it takes as the leader).
+	 *
+	 * @return the TOM layer, or null if it was not created yet
+	 */
+	public TOMLayer getTOMLayer() {
+		return tomLayer;
+	}
+
 }
@@ -0,0 +1,197 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Decides how large the batches proposed by the leader are, and for how long
+ * the leader may wait for a batch to fill before proposing it.
+ *
+ * With adaptive batching disabled, batches are only bounded by the configured
+ * maximum size (in requests and bytes) and are proposed right away. Otherwise
+ * the size limit follows the load and the latency of the consensus instances
+ * this replica proposed. It grows (additively) while requests are left
+ * waiting after a full batch is proposed, or while instances are fast and
+ * batches are full. It only shrinks (multiplicatively) when an instance
+ * takes longer than the target latency and either the batch was not full
+ * (the limit is then not what bounds the batches) or the latency grew while
+ * the throughput did not, i.e., larger batches are not paying off. Latency
+ * that comes from queueing under load (or from a long round trip) therefore
+ * does not make the batches collapse.
+ *
+ * If a batch wait is configured, the leader also waits for more requests
+ * when the arrival rate says the batch will fill within the latency budget
+ * left by the target.
+ *
+ * Arrivals are counted without locking; the remaining state is only touched
+ * once per batch (when it is proposed and when it is decided).
+ */
+public class BatchController {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final double GROWTH = 1.125; // latency above the average by this factor is growing
+
+    private final boolean adaptive;
+    private final int maxBatchSize; // in requests
+    private final int maxBatchBytes; // 0 means no limit
+    private final long targetLatency; // in nanoseconds
+    private final long maxBatchWait; // in nanoseconds, 0 means no waiting
+
+    private int batchSize; // current limit, in requests
+
+    private final AtomicLong arrivals = new AtomicLong(0);
+    private long lastArrivals = 0;
+    private long lastSample = System.nanoTime();
+    private double arrivalRate = 0; // requests per nanosecond
+    private double latency = 0; // average consensus latency, in nanoseconds
+    private double throughput = 0; // average requests decided per nanosecond
+    private long lastDecided = 0;
+
+    private int proposedEid = -1;
+    private int proposedSize = 0;
+    private int proposedBacklog = 0;
+    private long proposeTime = 0;
+
+    /**
+     * Creates a new instance of BatchController
+     * @param conf the configuration of this replica
+     */
+    public BatchController(TOMConfiguration conf) {
+        this.adaptive = conf.isAdaptiveBatching();
+        this.maxBatchSize = conf.getMaxBatchSize();
+        this.maxBatchBytes = conf.getMaxBatchBytes();
+        this.targetLatency = conf.getBatchTargetLatency() * 1000000L;
+        this.maxBatchWait = (adaptive ? conf.getMaxBatchWait() * 1000000L : 0);
+        this.batchSize = maxBatchSize;
+    }
+
+    /**
+     * @return true if the batches are adapted to the load and latency
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the maximum number of requests of the next batch
+     */
+    public synchronized int getMaxBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the maximum number of bytes of the next batch (0 means no limit)
+     */
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Invoked each time a request to be ordered is received from a client
+     */
+    public void requestArrived() {
+        if (adaptive) arrivals.incrementAndGet();
+    }
+
+    /**
+     * Invoked when several requests to be ordered are received at once
+     * @param count number of requests received
+     */
+    public void requestsArrived(int count) {
+        if (adaptive) arrivals.addAndGet(count);
+    }
+
+    /**
+     * Computes for how long the leader should wait before proposing, given
+     * the number of requests already pending
+     *
+     * @param pending number of requests waiting to be proposed
+     * @return the time to wait, in nanoseconds
+     */
+    public synchronized long getBatchWait(int pending) {
+        if (maxBatchWait == 0 || pending >= batchSize || arrivalRate <= 0) return 0;
+
+        long budget = targetLatency - (long) latency;
+        if (budget <= 0) return 0;
+
+        long fill = (long) ((batchSize - pending) / arrivalRate);
+        long wait = Math.min(maxBatchWait, Math.min(budget, fill));
+
+        // not worth waiting if not even one more request is expected
+        return (wait * arrivalRate >= 1 ? wait : 0);
+    }
+
+    /**
+     * Invoked when this replica proposes a batch
+     *
+     * @param eid the consensus where the batch is being proposed
+     * @param size the number of requests in the batch
+     * @param backlog the number of requests left waiting for the next batches
+     */
+    public synchronized void proposed(int eid, int size, int backlog) {
+        proposedEid = eid;
+        proposedSize = size;
+        proposedBacklog = backlog;
+        proposeTime = System.nanoTime();
+    }
+
+    /**
+     * Invoked when a consensus is decided, to update the statistics used to
+     * adapt the batches
+     *
+     * @param eid the consensus that was decided
+     */
+    public synchronized void decided(int eid) {
+        if (!adaptive || eid != proposedEid) return;
+
+        long now = System.nanoTime();
+        long lat = now - proposeTime;
+        double previousLatency = latency;
+        latency = (latency == 0 ? lat : (1 - EWMA_WEIGHT) * latency + EWMA_WEIGHT * lat);
+
+        double previousThroughput = throughput;
+        if (lastDecided > 0 && now > lastDecided) {
+            double sample = (double) proposedSize / (now - lastDecided);
+            throughput = (throughput == 0 ? sample : (1 - EWMA_WEIGHT) * throughput + EWMA_WEIGHT * sample);
+        }
+        lastDecided = now;
+
+        long count = arrivals.get();
+        if (now > lastSample) {
+            double rate = (double) (count - lastArrivals) / (now - lastSample);
+            arrivalRate = (1 - EWMA_WEIGHT) * arrivalRate + EWMA_WEIGHT * rate;
+        }
+        lastArrivals = count;
+        lastSample = now;
+
+        boolean full = proposedSize >= batchSize;
+        if (full && (proposedBacklog > 0 || lat < targetLatency / 2)) {
+            // requests are waiting (larger batches drain them with fewer instances) or there is room
+            batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 8));
+        } else if (lat > targetLatency && !full) {
+            // the limit is above what is being proposed, bring it closer
+            batchSize = Math.max(Math.max(1, proposedSize), (batchSize * 3) / 4);
+        } else if (lat > targetLatency && lat > previousLatency * GROWTH && throughput <= previousThroughput) {
+            // latency is growing and larger batches are not bringing more throughput
+            batchSize = Math.max(1, (batchSize * 3) / 4);
+        }
+
+        proposedEid = -1;
+    }
+}
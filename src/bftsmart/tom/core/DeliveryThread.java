@@ -16,10 +16,12 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Consensus;
@@ -29,9 +31,14 @@ import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.metrics.Gauge;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.RingBuffer;
 
 /**
  * This class implements a thread which will deliver totally ordered requests to the application
@@ -39,13 +46,28 @@ import bftsmart.tom.util.Logger;
  */
 public final class DeliveryThread extends Thread {
 
-    private LinkedBlockingQueue<Consensus> decided = new LinkedBlockingQueue<Consensus>(); // decided consensus
+    private static final int DECIDED_CAPACITY = 1024;
+
+    private final RingBuffer<Consensus> decided; // decided consensus
+    // decided consensus that did not fit in the ring (e.g., while the state
+    // is being transferred); once it has any, the next ones go there too
+    private final ConcurrentLinkedQueue<Consensus> overflow = new ConcurrentLinkedQueue<Consensus>();
     private TOMLayer tomLayer; // TOM layer
     private ServiceReplica receiver; // Object that receives requests from clients
     private Recoverable recoverer; // Object that uses state transfer
     private ServerViewController controller;
-    private Lock decidedLock = new ReentrantLock();
-    private Condition notEmptyQueue = decidedLock.newCondition();
+    private ExecutorService[] readOnlyExecutors = null; // null if read-only requests are executed by the caller
+
+    /* Latency of each phase of the consensus, taken from the timestamps of the first request of the batch */
+    private final Histogram proposePhase;
+    private final Histogram writePhase;
+    private final Histogram acceptPhase;
+    private final Histogram decidePhase;
+    private final Histogram consensusLatency;
+    private final Histogram deliveryLatency;
+    private final Histogram executionLatency;
+    private final Histogram batchSize;
+    private final Histogram batchBytes;
 
     /**
      * Creates a new instance of DeliveryThread
@@ -62,6 +84,34 @@ public final class DeliveryThread extends Thread {
         //******* EDUARDO BEGIN **************//
         this.controller = controller;
         //******* EDUARDO END **************//
+
+        this.decided = new RingBuffer<Consensus>(DECIDED_CAPACITY, controller.getStaticConf().getWaitStrategy());
+
+        MetricsRegistry metrics = MetricsRegistry.getInstance(controller.getStaticConf().getProcessId());
+        this.proposePhase = metrics.histogram("phase.propose", "ns");
+        this.writePhase = metrics.histogram("phase.write", "ns");
+        this.acceptPhase = metrics.histogram("phase.accept", "ns");
+        this.decidePhase = metrics.histogram("phase.decide", "ns");
+        this.consensusLatency = metrics.histogram("phase.consensus", "ns");
+        this.deliveryLatency = metrics.histogram("phase.delivery", "ns");
+        this.executionLatency = metrics.histogram("phase.execution", "ns");
+        this.batchSize = metrics.histogram("batch.size", "requests");
+        this.batchBytes = metrics.histogram("batch.bytes", "bytes");
+        metrics.gauge("queue.decided", new Gauge() {
+            @Override
+            public long getValue() {
+                return decided.size() + overflow.size();
+            }
+        });
+
+        int threads = controller.getStaticConf().getReadOnlyThreads();
+        if (threads > 0) {
+            readOnlyExecutors = new ExecutorService[threads];
+            ExecutorRegistry registry = ExecutorRegistry.getInstance(controller.getStaticConf().getProcessId());
+            for (int i = 0; i < threads; i++) {
+                readOnlyExecutors[i] = registry.pool(ExecutorRegistry.READ_ONLY + " " + i);
+            }
+        }
     }
 
     
@@ -83,15 +133,15 @@ public final class DeliveryThread extends Thread {
             tomLayer.setInExec(-1);
         } //else if (tomLayer.controller.getStaticConf().getProcessId() == 0) System.exit(0);
         try {
-        	decidedLock.lock();
-            decided.put(cons);
-            
-			// clean the ordered messages from the pending buffer
+            // clean the ordered messages from the pending buffer, before
+            // the consensus can be taken by the delivery thread
             TOMMessage[] requests = extractMessagesFromDecision(cons);
-			tomLayer.clientsManager.requestsOrdered(requests);
-            
-            notEmptyQueue.signalAll();
-            decidedLock.unlock();
+            tomLayer.clientsManager.requestsOrdered(requests);
+
+            if (!overflow.isEmpty() || !decided.offer(cons)) {
+                overflow.add(cons);
+                decided.wakeUp();
+            }
             Logger.println("(DeliveryThread.delivery) Consensus " + cons.getId() + " finished. Decided size=" + decided.size());
         } catch (Exception e) {
             e.printStackTrace(System.out);
@@ -116,9 +166,7 @@ public final class DeliveryThread extends Thread {
 
     public void deliverLock() {
     	// release the delivery lock to avoid blocking on state transfer
-		decidedLock.lock();
-		notEmptyQueue.signalAll();
-		decidedLock.unlock();
+		decided.wakeUp();
     	
         deliverLock.lock();
     }
@@ -134,6 +182,7 @@ public final class DeliveryThread extends Thread {
     public void update(ApplicationState state) {
        
         int lastEid =  recoverer.setState(state);
+        receiver.updateSnapshot();
 
         //set this consensus as the last executed
         System.out.println("Setting last EID to " + lastEid);
@@ -150,8 +199,9 @@ public final class DeliveryThread extends Thread {
         //stateManager.setWaiting(-1);
         tomLayer.setNoExec();
 
-        System.out.print("Current decided size: " + decided.size());
+        System.out.print("Current decided size: " + (decided.size() + overflow.size()));
         decided.clear();
+        overflow.clear();
 
         System.out.println("(DeliveryThread.update) All finished up to " + lastEid);
     }
@@ -164,7 +214,7 @@ public final class DeliveryThread extends Thread {
     public void run() {
         while (true) {
   			/** THIS IS JOAO'S CODE, TO HANDLE STATE TRANSFER */
-  			deliverLock();
+  			deliverLock.lock(); // not deliverLock(), which would wake this thread up from its next wait
   			while (tomLayer.isRetrievingState()) {
   				System.out.println("(DeliveryThread.run) Retrieving State.");
   				canDeliver.awaitUninterruptibly();
@@ -172,12 +222,15 @@ public final class DeliveryThread extends Thread {
   			}
   			try {
   				ArrayList<Consensus> consensuses = new ArrayList<Consensus>();
-  				decidedLock.lock();
-  				if(decided.isEmpty()) {
-  					notEmptyQueue.await();
+  				if (decided.isEmpty() && overflow.isEmpty()) {
+  					decided.await(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
   				}
   				decided.drainTo(consensuses);
-  				decidedLock.unlock();
+  				// the ring is drained first, as the consensus in the overflow are the newest
+  				Consensus next;
+  				while ((next = overflow.poll()) != null) {
+  					consensuses.add(next);
+  				}
   				if (consensuses.size() > 0) {
   					TOMMessage[][] requests = new TOMMessage[consensuses.size()][];
 					int[] consensusIds = new int[requests.length];
@@ -192,13 +245,16 @@ public final class DeliveryThread extends Thread {
   	                        requests[count][0].timestamp = time;
   						}
   						
+  						recordMetrics(c, requests[count].length);
   						count++;
   					}
 
   					Consensus lastConsensus = consensuses.get(consensuses.size() - 1);
 
   					if (requests != null && requests.length > 0) {
+  						long start = System.nanoTime();
   						deliverMessages(consensusIds, tomLayer.getLCManager().getLastReg(), requests);
+  						executionLatency.recordSince(start);
 
   						// ******* EDUARDO BEGIN ***********//
   						if (controller.hasUpdates()) {
@@ -236,6 +292,26 @@ public final class DeliveryThread extends Thread {
   		}
     }
     
+    private void recordMetrics(Consensus cons, int requests) {
+        batchSize.record(requests);
+        if (cons.getDecision() != null) batchBytes.record(cons.getDecision().length);
+
+        TOMMessage m = cons.firstMessageProposed;
+        if (m == null) return; // not decided through the normal case (e.g., state transfer)
+
+        recordPhase(proposePhase, m.consensusStartTime, m.proposeReceivedTime);
+        recordPhase(writePhase, m.proposeReceivedTime, m.writeSentTime);
+        recordPhase(acceptPhase, m.writeSentTime, m.acceptSentTime);
+        recordPhase(decidePhase, m.acceptSentTime, m.decisionTime);
+        recordPhase(consensusLatency, m.consensusStartTime, m.decisionTime);
+        recordPhase(deliveryLatency, m.decisionTime, System.nanoTime());
+    }
+
+    // the timestamps that were never set are 0
+    private static void recordPhase(Histogram histogram, long start, long end) {
+        if (start != 0 && end != 0) histogram.record(end - start);
+    }
+
     private TOMMessage[] extractMessagesFromDecision(Consensus cons) {
     	TOMMessage[] requests = (TOMMessage[]) cons.getDeserializedDecision();
     	if (requests == null) {
@@ -256,11 +332,33 @@ public final class DeliveryThread extends Thread {
     	return requests;
     }
     
-    protected void deliverUnordered(TOMMessage request, int regency) {
-        MessageContext msgCtx = new MessageContext(System.currentTimeMillis(),
+    /**
+     * Delivers a read-only request to the application. If read-only executors
+     * are configured, the request is executed by one of them, always the same
+     * for a given client (so that FIFOExecutables still see its requests in
+     * order), instead of by the communication thread that received it.
+     */
+    protected void deliverUnordered(final TOMMessage request, int regency) {
+        final MessageContext msgCtx = new MessageContext(System.currentTimeMillis(),
                 new byte[0], regency, -1, request.getSender(), null);
         msgCtx.readOnly = true;
-        receiver.receiveReadonlyMessage(request, msgCtx);
+
+        if (readOnlyExecutors == null) {
+            receiver.receiveReadonlyMessage(request, msgCtx);
+        } else {
+            int i = (request.getSender() & Integer.MAX_VALUE) % readOnlyExecutors.length;
+            try {
+                readOnlyExecutors[i].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        receiver.receiveReadonlyMessage(request, msgCtx);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the executor is overloaded: the client will ask again
+                Logger.println("(DeliveryThread.deliverUnordered) Read-only request " + request + " discarded");
+            }
+        }
     }
 
     private void deliverMessages(int consId[], int regency, TOMMessage[][] requests) {
@@ -5,71 +5,120 @@
 package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
-import bftsmart.communication.SystemMessage;
 import bftsmart.tom.core.messages.TOMMessage;
-import java.util.LinkedList;
-import java.util.concurrent.LinkedBlockingQueue;
+import bftsmart.tom.util.ExecutorRegistry;
+import bftsmart.tom.util.RingBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 
 /**
+ * Sends the replies of the executed requests to the clients.
+ *
+ * Replies are handled by a fixed set of threads, and the thread used for a
+ * reply is chosen by the id of the client, so the replies of a client are
+ * always sent by the same thread, in the order they were produced. The
+ * replies to the same client from the same batch are sent with a single
+ * write to its connection.
  *
  * @author snake
  */
 public class ReplyManager {
     
-    private LinkedList<ReplyThread> threads;
-    private int iteration;
+    private ReplyThread[] threads;
     
-    public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
+    public ReplyManager(int numThreads, RingBuffer.WaitStrategy strategy, ServerCommunicationSystem cs, ExecutorRegistry executors) {
         
-        this.threads = new LinkedList();
-        this.iteration = 0;
+        this.threads = new ReplyThread[numThreads];
         
         for (int i = 0; i < numThreads; i++) {
-            this.threads.add(new ReplyThread(cs));
+            this.threads[i] = new ReplyThread(cs, strategy);
         }
         
-        for (ReplyThread t : threads)
-            t.start();
+        for (int i = 0; i < numThreads; i++)
+            executors.start("Reply thread " + i, threads[i]);
     }
     
+    /**
+     * Sends the reply of a request (in msg.reply) to its client
+     */
     public void send (TOMMessage msg) {
+        List<TOMMessage> requests = new ArrayList<TOMMessage>(1);
+        requests.add(msg);
+        threadOf(msg.getSender()).send(requests);
+    }
 
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+    /**
+     * Sends the replies of a batch of requests to their clients, coalescing
+     * the replies to the same client
+     */
+    public void send (List<TOMMessage> msgs) {
+        Map<Integer, List<TOMMessage>> perClient = new LinkedHashMap<Integer, List<TOMMessage>>();
+        for (TOMMessage msg : msgs) {
+            List<TOMMessage> requests = perClient.get(msg.getSender());
+            if (requests == null) {
+                requests = new ArrayList<TOMMessage>(4);
+                perClient.put(msg.getSender(), requests);
+            }
+            requests.add(msg);
+        }
+        for (Map.Entry<Integer, List<TOMMessage>> e : perClient.entrySet()) {
+            threadOf(e.getKey()).send(e.getValue());
+        }
+    }
 
+    private ReplyThread threadOf(int client) {
+        return threads[(client & Integer.MAX_VALUE) % threads.length];
     }
 }
-class ReplyThread extends Thread {
+class ReplyThread implements Runnable {
     
     private static final long POOL_TIME = 5000;
+    private static final int CAPACITY = 4096;
     
-    private LinkedBlockingQueue<TOMMessage> replies;
+    private RingBuffer<List<TOMMessage>> replies;
     private ServerCommunicationSystem cs = null;
     
-    ReplyThread(ServerCommunicationSystem cs) {
+    ReplyThread(ServerCommunicationSystem cs, RingBuffer.WaitStrategy strategy) {
         this.cs = cs;
-        this.replies = new LinkedBlockingQueue<TOMMessage>();
+        this.replies = new RingBuffer<List<TOMMessage>>(CAPACITY, strategy);
     }
     
-    void send(TOMMessage msg) {
-        replies.add(msg);
+    // requests (with their replies) of a single client; waits for space if
+    // the thread is that far behind
+    void send(List<TOMMessage> requests) {
+        try {
+            replies.put(requests);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
     }
     
     public void run() {
 
-        TOMMessage msg;
+        List<TOMMessage> requests;
 
         while (true) {
 
             try {
-                msg = replies.poll(POOL_TIME, TimeUnit.MILLISECONDS);
-                if (msg == null) {
+                requests = replies.poll(POOL_TIME, TimeUnit.MILLISECONDS);
+                if (requests == null) {
 
                     continue; //go back to the start of the loop
                 }
-                cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);
+                int client = requests.get(0).getSender();
+                if (requests.size() == 1) {
+                    cs.getClientsConn().send(new int[] {client}, requests.get(0).reply, false);
+                } else {
+                    List<TOMMessage> msgs = new ArrayList<TOMMessage>(requests.size());
+                    for (TOMMessage request : requests) {
+                        msgs.add(request.reply);
+                    }
+                    cs.getClientsConn().send(client, msgs);
+                }
             } catch (InterruptedException ex) {
                 ex.printStackTrace();
             }
@@ -77,4 +126,4 @@ class ReplyThread extends Thread {
         }
 
     }
-}
\ No newline at end of file
+}
@@ -16,15 +16,14 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.SignedObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.locks.Condition;
@@ -56,9 +55,16 @@ import bftsmart.tom.leaderchange.CollectData;
 import bftsmart.tom.leaderchange.LCManager;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.leaderchange.LastEidData;
+import bftsmart.tom.leaderchange.LCSerializer;
+import bftsmart.tom.leaderchange.SignedCollect;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.metrics.Histogram;
+import bftsmart.tom.metrics.MetricsRegistry;
+import bftsmart.tom.trace.TraceEvent;
+import bftsmart.tom.trace.Tracer;
+import bftsmart.tom.util.CryptoProvider;
 import bftsmart.tom.util.Logger;
 import bftsmart.tom.util.TOMUtil;
 import java.util.Set;
@@ -87,11 +93,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	private int inExecution = -1;
 	private int lastExecuted = -1;
 
-	private MessageDigest md;
-	private Signature engine;
+	private CryptoProvider cryptoProvider;
 
 	//the next two are used to generate non-deterministic data in a deterministic way (by the leader)
 	private BatchBuilder bb = new BatchBuilder();
+	/** Decides the size of the batches and for how long to wait for them to fill */
+	private BatchController batchController;
 
 	/* The locks and conditions used to wait upon creating a propose */
 	private ReentrantLock leaderLock = new ReentrantLock();
@@ -108,6 +115,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	private PrivateKey prk;
 	public ServerViewController controller;
 
+	private Histogram signTime;
+	private Histogram verifyTime;
+
 	/**
 	 * Creates a new instance of TOMulticastLayer
 	 * @param manager Execution manager
@@ -140,65 +150,57 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		else this.requestsTimer = new RequestsTimer(this, communication, this.controller); // Create requests timers manager (a thread)
 
 		this.clientsManager = new ClientsManager(this.controller, requestsTimer); // Create clients manager
+		this.batchController = new BatchController(this.controller.getStaticConf());
 
-		try {
-			this.md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-		} catch (Exception e) {
-			e.printStackTrace(System.out);
-		}
+		MetricsRegistry metrics = MetricsRegistry.getInstance(this.controller.getStaticConf().getProcessId());
+		this.signTime = metrics.histogram("crypto.sign", "ns");
+		this.verifyTime = metrics.histogram("crypto.verify", "ns");
 
-		try {
-			this.engine = Signature.getInstance("SHA1withRSA");
-		} catch (Exception e) {
-			e.printStackTrace(System.err);
-		}
+		this.cryptoProvider = this.controller.getStaticConf().getCryptoProvider();
 
 		this.prk = this.controller.getStaticConf().getRSAPrivateKey();
-		this.lcManager = new LCManager(this,controller, md);
+		this.lcManager = new LCManager(this,controller);
 		this.dt = new DeliveryThread(this, receiver, recoverer, this.controller); // Create delivery thread
 		this.dt.start();
 		this.stateManager = recoverer.getStateManager();
 		stateManager.init(this, dt);
 	}
 
-	ReentrantLock hashLock = new ReentrantLock();
-
 	/**
 	 * Computes an hash for a TOM message
 	 * @param data Data from which to generate the hash
 	 * @return Hash for the specified TOM message
 	 */
 	public final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-
-		return ret;
+		return cryptoProvider.computeHash(data);
 	}
 
-	public SignedObject sign(Serializable obj) {
-		try {
-			return new SignedObject(obj, prk, engine);
-		} catch (Exception e) {
-			e.printStackTrace(System.err);
-			return null;
-		}
+	/**
+	 * Signs the binary representation of a collect data structure
+	 * @param collect Collect data to be signed
+	 * @return The serialized collect data along with its signature
+	 */
+	public SignedCollect sign(CollectData collect) {
+		byte[] data = LCSerializer.collectToBytes(collect);
+		long start = System.nanoTime();
+		byte[] signature = cryptoProvider.sign(prk, data);
+		signTime.recordSince(start);
+		return new SignedCollect(data, signature);
 	}
 
 	/**
-	 * Verifies the signature of a signed object
-	 * @param so Signed object to be verified
-	 * @param sender Replica id that supposedly signed this object
+	 * Verifies the signature of a signed collect
+	 * @param sc Signed collect to be verified
+	 * @param sender Replica id that supposedly signed this collect
 	 * @return True if the signature is valid, false otherwise
 	 */
-	public boolean verifySignature(SignedObject so, int sender) {
-		try {
-			return so.verify(controller.getStaticConf().getRSAPublicKey(sender), engine);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return false;
+	public boolean verifySignature(SignedCollect sc, int sender) {
+		if (sc.getCollect() == null || sc.getSignature() == null) return false;
+		long start = System.nanoTime();
+		boolean result = cryptoProvider.verify(controller.getStaticConf().getRSAPublicKey(sender),
+				sc.getCollect(), sc.getSignature());
+		verifyTime.recordSince(start);
+		return result;
 	}
 
 	/**
@@ -238,7 +240,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 */
 	public void setInExec(int inEx) {
 		proposeLock.lock();
-		Logger.println("(TOMLayer.setInExec) modifying inExec from " + this.inExecution + " to " + inEx);
+		Tracer.trace(TraceEvent.IN_EXEC, this.inExecution, inEx);
 		this.inExecution = inEx;
 		if (inEx == -1  && !isRetrievingState()) {
 			canPropose.signalAll();
@@ -280,11 +282,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			dt.deliverUnordered(msg, lcManager.getLastReg());
 		} else {
 			if (clientsManager.requestReceived(msg, true, communication)) {
+				batchController.requestArrived();
 				messagesLock.lock();
 				haveMessages.signal();
 				messagesLock.unlock();
 			} else {
-				Logger.println("(TOMLayer.requestReceive) the received TOMMessage " + msg + " was discarded.");
+				Tracer.trace(TraceEvent.REQUEST_DISCARDED, msg.getSender(), msg.getSequence());
 			}
 		}
 	}
@@ -295,7 +298,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 */
 	private byte[] createPropose(Consensus cons) {
 		// Retrieve a set of pending requests from the clients manager
-		RequestList pendingRequests = clientsManager.getPendingRequests();
+		RequestList pendingRequests = clientsManager.getPendingRequests(batchController.getMaxBatchSize(),
+				batchController.getMaxBatchBytes());
 
 		int numberOfMessages = pendingRequests.size(); // number of messages retrieved
 		int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // ammount of nonces to be generated
@@ -304,12 +308,16 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		if (cons.getId() > -1) { // if this is from the leader change, it doesnt matter
 			cons.firstMessageProposed = pendingRequests.getFirst();
 			cons.firstMessageProposed.consensusStartTime = System.nanoTime();
+			int backlog = (batchController.isAdaptive() ?
+					clientsManager.countPendingRequests(batchController.getMaxBatchSize()) : 0);
+			batchController.proposed(cons.getId(), numberOfMessages, backlog);
 		}
 		cons.batchSize = numberOfMessages;
 
-		Logger.println("(TOMLayer.run) creating a PROPOSE with " + numberOfMessages + " msgs");
+		byte[] batch = bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(),controller);
+		Tracer.trace(TraceEvent.PROPOSE_CREATED, cons.getId(), numberOfMessages, batch.length);
 
-		return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(),controller);
+		return batch;
 	}
 	/**
 	 * This is the main code for this thread. It basically waits until this replica becomes the leader,
@@ -322,7 +330,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 			// blocks until this replica learns to be the leader for the current round of the current consensus
 			leaderLock.lock();
-			Logger.println("Next leader for eid=" + (getLastExec() + 1) + ": " + lm.getCurrentLeader());
 
 			//******* EDUARDO BEGIN **************//
 			if (/*lm.getLeader(getLastExec() + 1, 0)*/ lm.getCurrentLeader() != this.controller.getStaticConf().getProcessId()) {
@@ -336,23 +343,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			proposeLock.lock();
 
 			if (getInExec() != -1) { //there is some consensus running
-				Logger.println("(TOMLayer.run) Waiting for consensus " + getInExec() + " termination.");
+				Tracer.trace(TraceEvent.WAITING_CONSENSUS, getInExec());
 				canPropose.awaitUninterruptibly();
 			}
 			proposeLock.unlock();
 
-			Logger.println("(TOMLayer.run) I'm the leader.");
-
 			// blocks until there are requests to be processed/ordered
 			messagesLock.lock();
 			if (!clientsManager.havePendingRequests()) {
+				Tracer.trace(TraceEvent.WAITING_REQUESTS, getLastExec() + 1);
 				haveMessages.awaitUninterruptibly();
 			}
+			waitForBatch();
 			messagesLock.unlock();
-			Logger.println("(TOMLayer.run) There are messages to be ordered.");
-
-
-			Logger.println("(TOMLayer.run) I can try to propose.");
 
 			if ((lm.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
 					(clientsManager.havePendingRequests()) && //there are messages to be ordered
@@ -391,11 +394,35 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		}
 	}
 
+	/**
+	 * Waits (at most the time given by the batch controller) for enough requests
+	 * to fill the next batch. Must be called while holding messagesLock.
+	 */
+	private void waitForBatch() {
+		int limit = batchController.getMaxBatchSize();
+		int pending = clientsManager.countPendingRequests(limit);
+		long wait = batchController.getBatchWait(pending);
+		if (wait <= 0) return;
+
+		long deadline = System.nanoTime() + wait;
+		while (wait > 0 && pending < limit) {
+			try {
+				haveMessages.awaitNanos(wait);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			pending = clientsManager.countPendingRequests(limit);
+			wait = deadline - System.nanoTime();
+		}
+		Tracer.trace(TraceEvent.BATCH_WAIT, pending, limit);
+	}
+
 	/**
 	 * Called by the current consensus's execution, to notify the TOM layer that a value was decided
 	 * @param cons The decided consensus
 	 */
 	public void decided(Consensus cons) {
+		batchController.decided(cons.getId());
 		this.dt.delivery(cons); // Delivers the consensus to the delivery thread
 	}
 
@@ -409,8 +436,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 * @return Valid messages contained in the proposed value
 	 */
 	public TOMMessage[] checkProposedValue(byte[] proposedValue, boolean addToClientManager) {
-		Logger.println("(TOMLayer.isProposedValueValid) starting");
-
 		BatchReader batchReader = new BatchReader(proposedValue, 
 				this.controller.getStaticConf().getUseSignatures() == 1);
 
@@ -427,7 +452,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 					//the result of its validation
 					if (!clientsManager.requestReceived(requests[i], false)) {
 						clientsManager.getClientsLock().unlock();
-						Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
+						Tracer.trace(TraceEvent.PROPOSE_INVALID, i);
 						System.out.println("failure in deserialize batch");
 						return null;
 					}
@@ -437,20 +462,88 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		} catch (Exception e) {
 			e.printStackTrace();
 			clientsManager.getClientsLock().unlock();
-			Logger.println("(TOMLayer.isProposedValueValid) finished, return=false");
+			Tracer.trace(TraceEvent.PROPOSE_INVALID, -1);
 			return null;
 		}
-		Logger.println("(TOMLayer.isProposedValueValid) finished, return=true");
 
 		return requests;
 	}
 
-	public void forwardRequestToLeader(TOMMessage request) {
+	/**
+	 * Forwards the requests whose timer expired to the current leader, all in
+	 * one message (or in as many as needed to keep each one within the
+	 * maximum batch size). Requests the leader already proposed for the
+	 * consensus in execution are not sent, as it evidently has them.
+	 *
+	 * @param requests the requests to be forwarded
+	 */
+	public void forwardRequestsToLeader(List<TOMMessage> requests) {
 		int leaderId = lm.getCurrentLeader();
-		if (this.controller.isCurrentViewMember(leaderId)) {
-			Logger.println("(TOMLayer.forwardRequestToLeader) forwarding " + request + " to " + leaderId);
-			communication.send(new int[]{leaderId}, 
-					new ForwardedMessage(this.controller.getStaticConf().getProcessId(), request));
+		int me = this.controller.getStaticConf().getProcessId();
+		if (!this.controller.isCurrentViewMember(leaderId) || leaderId == me) {
+			return; // if this replica is the leader, the requests are already pending here
+		}
+
+		Set<TOMMessage> proposed = proposedByLeader();
+		int max = Math.max(1, this.controller.getStaticConf().getMaxBatchSize());
+		List<TOMMessage> forward = new ArrayList<TOMMessage>(Math.min(max, requests.size()));
+
+		for (TOMMessage request : requests) {
+			if (proposed.contains(request)) continue;
+
+			Tracer.trace(TraceEvent.REQUEST_FORWARDED, request.getSender(), request.getSequence(), leaderId);
+			forward.add(request);
+			if (forward.size() == max) {
+				communication.send(new int[]{leaderId}, new ForwardedMessage(me, forward));
+				forward = new ArrayList<TOMMessage>(max);
+			}
+		}
+		if (!forward.isEmpty()) {
+			communication.send(new int[]{leaderId}, new ForwardedMessage(me, forward));
+		}
+	}
+
+	// requests in the proposal (from the leader) of the consensus in execution
+	private Set<TOMMessage> proposedByLeader() {
+		int eid = getInExec();
+		if (eid == -1) return Collections.emptySet();
+
+		Round round = execManager.getExecution(eid).getLastRound();
+		TOMMessage[] proposed = (round != null ? round.deserializedPropValue : null);
+		if (proposed == null) return Collections.emptySet();
+
+		return new HashSet<TOMMessage>(Arrays.asList(proposed));
+	}
+
+	/**
+	 * Invoked by the communication system to deliver several requests at once
+	 * (forwarded by another replica), which are accounted by the clients
+	 * manager in bulk.
+	 *
+	 * @param requests the requests being received
+	 */
+	public void requestsReceived(List<TOMMessage> requests) {
+		List<TOMMessage> ordered = new ArrayList<TOMMessage>(requests.size());
+		for (TOMMessage msg : requests) {
+			if (msg.getReqType() == TOMMessageType.UNORDERED_REQUEST ||
+					msg.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST) {
+				dt.deliverUnordered(msg, lcManager.getLastReg());
+			} else {
+				ordered.add(msg);
+			}
+		}
+		if (ordered.isEmpty()) return;
+
+		List<TOMMessage> discarded = clientsManager.requestsReceived(ordered, true, communication);
+		for (TOMMessage msg : discarded) {
+			Tracer.trace(TraceEvent.REQUEST_DISCARDED, msg.getSender(), msg.getSequence());
+		}
+		int accounted = ordered.size() - discarded.size();
+		if (accounted > 0) {
+			batchController.requestsArrived(accounted);
+			messagesLock.lock();
+			haveMessages.signal();
+			messagesLock.unlock();
 		}
 	}
 
@@ -463,7 +556,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	}
 
 	public void setNoExec() {
-		Logger.println("(TOMLayer.setNoExec) modifying inExec from " + this.inExecution + " to " + -1);
+		Tracer.trace(TraceEvent.IN_EXEC, this.inExecution, -1);
 
 		proposeLock.lock();
 		this.inExecution = -1;
@@ -496,9 +589,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 */
 	public void triggerTimeout(List<TOMMessage> requestList) {
 
-		ObjectOutputStream out = null;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
 		requestsTimer.stopTimer();
 		requestsTimer.Enabled(false);
 
@@ -511,7 +601,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			lcManager.setNextReg(lcManager.getLastReg() + 1); // define next timestamp
 
 			int regency = lcManager.getNextReg();
-
+			Tracer.trace(TraceEvent.TIMEOUT, regency);
 
 			// store messages to be ordered
 			lcManager.setCurrentRequestTimedOut(requestList);
@@ -521,49 +611,45 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 			execManager.stop(); // stop consensus execution
 
-			try { // serialize content to send in STOP message
-				out = new ObjectOutputStream(bos);
+			sendStop(regency);
 
-				if (lcManager.getCurrentRequestTimedOut() != null) {
+			evaluateStops(regency); // evaluate STOP messages
 
-					//TODO: If this is null, then there was no timeout. What to do?
-					byte[] msgs = bb.makeBatch(lcManager.getCurrentRequestTimedOut(), 0, 0, controller);
-					out.writeBoolean(true);
-					out.writeObject(msgs);
-				} else {
-					out.writeBoolean(false);
-				}
+		}
 
-				byte[] payload = bos.toByteArray();
+	}
 
-				out.flush();
-				bos.flush();
+	// serializes the requests that timed out and sends them in a STOP message
+	private void sendStop(int regency) {
 
-				out.close();
-				bos.close();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
 
-				// send STOP-message
-				Logger.println("(TOMLayer.triggerTimeout) sending STOP message to install regency " + regency);
-				communication.send(this.controller.getCurrentViewOtherAcceptors(),
-						new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload));
+		try { // serialize content to send in STOP message
 
-			} catch (IOException ex) {
-				ex.printStackTrace();
-				java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-			} finally {
-				try {
-					out.close();
-					bos.close();
-				} catch (IOException ex) {
-					ex.printStackTrace();
-					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				}
+			if (lcManager.getCurrentRequestTimedOut() != null) {
+
+				//TODO: If this is null, then there was no timeout. What to do?
+				byte[] msgs = bb.makeBatch(lcManager.getCurrentRequestTimedOut(), 0, 0, controller);
+				out.writeBoolean(true);
+				LCSerializer.writeBytes(out, msgs);
+			} else {
+				out.writeBoolean(false);
 			}
 
-			evaluateStops(regency); // evaluate STOP messages
+			out.flush();
+			byte[] payload = bos.toByteArray();
 
-		}
+			// send STOP-message
+			Logger.println("(TOMLayer.sendStop) sending STOP message to install regency " + regency);
+			Tracer.trace(TraceEvent.STOP_SENT, regency);
+			communication.send(this.controller.getCurrentViewOtherAcceptors(),
+					new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload));
 
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
+		}
 	}
 
 	// this method is called when a timeout occurs or when a STOP message is recevied
@@ -571,8 +657,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 		boolean enterFirstPhase = this.controller.getStaticConf().isBFT();
 		boolean condition = false;
-		ObjectOutputStream out = null;
-		ByteArrayOutputStream bos = null;
 
 		// pass to the leader change phase if more than f messages have been received already
 		if (enterFirstPhase && lcManager.getStopsSize(nextReg) > this.controller.getQuorumF() && lcManager.getNextReg() == lcManager.getLastReg()) {
@@ -590,45 +674,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 			execManager.stop(); // stop execution of consensus
 
-			try { // serialize conent to send in the STOP message
-				bos = new ByteArrayOutputStream();
-				out = new ObjectOutputStream(bos);
-
-				if (lcManager.getCurrentRequestTimedOut() != null) {
-
-					//TODO: If this is null, there was no timeout. What shall be done then?
-					out.writeBoolean(true);
-					byte[] msgs = bb.makeBatch(lcManager.getCurrentRequestTimedOut(), 0, 0, controller);
-					out.writeObject(msgs);
-				}
-				else {
-					out.writeBoolean(false);
-				}
-
-				out.flush();
-				bos.flush();
-
-				byte[] payload = bos.toByteArray();
-				out.close();
-				bos.close();
-
-				// send message STOP
-				Logger.println("(TOMLayer.evaluateStops) sending STOP message to install regency " + regency);
-				communication.send(this.controller.getCurrentViewOtherAcceptors(),
-						new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOP, regency, payload));
-
-			} catch (IOException ex) {
-				ex.printStackTrace();
-				java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-			} finally {
-				try {
-					out.close();
-					bos.close();
-				} catch (IOException ex) {
-					ex.printStackTrace();
-					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				}
-			}
+			sendStop(regency);
 		}
 
 		if(this.controller.getStaticConf().isBFT()) {
@@ -657,16 +703,17 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			int leader = lcManager.getNewLeader();
 			int in = getInExec(); // eid to execute
 			int last = getLastExec(); // last eid decided
+			Tracer.trace(TraceEvent.REGENCY_INSTALLED, regency, leader);
 
 			lm.setNewLeader(leader);
 
 			// If I am not the leader, I have to send a STOPDATE message to it
 			if (leader != this.controller.getStaticConf().getProcessId()) {
 
-				try { // serialize content of the SYNC message
+				try { // serialize content of the STOPDATA message
 
-					bos = new ByteArrayOutputStream();
-					out = new ObjectOutputStream(bos);
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bos);
 
 					if (last > -1) { // content of the last decided eid
 
@@ -699,8 +746,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 						byte[] decision = exec.getDecisionRound().propValue;
 						Set<PaxosMessage> proof = exec.getDecisionRound().getProof();
 
-						out.writeObject(decision);
-						out.writeObject(proof);
+						LCSerializer.writeBytes(out, decision);
+						LCSerializer.writeProof(out, proof);
 						// TODO: WILL BE NECESSARY TO ADD A PROOF!!!
 
 					}
@@ -716,9 +763,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 						CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), in, quorumWrites, writeSet);
 
-						SignedObject signedCollect = sign(collect);
+						SignedCollect signedCollect = sign(collect);
 
-						out.writeObject(signedCollect);
+						LCSerializer.writeSignedCollect(out, signedCollect);
 
 					}
 
@@ -726,23 +773,21 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 						CollectData collect = new CollectData(this.controller.getStaticConf().getProcessId(), -1, new TimestampValuePair(-1, new byte[0]), new HashSet<TimestampValuePair>());
 
-						SignedObject signedCollect = sign(collect);
+						SignedCollect signedCollect = sign(collect);
 
-						out.writeObject(signedCollect);
+						LCSerializer.writeSignedCollect(out, signedCollect);
 
 					}
 
 					out.flush();
-					bos.flush();
 
 					byte[] payload = bos.toByteArray();
-					out.close();
-					bos.close();
 
 					int[] b = new int[1];
 					b[0] = leader;
 
 					Logger.println("(TOMLayer.evaluateStops) sending STOPDATA of regency " + regency);
+					Tracer.trace(TraceEvent.STOPDATA_SENT, regency, leader);
 					// send message SYNC to the new leader
 					communication.send(b,
 							new LCMessage(this.controller.getStaticConf().getProcessId(), TOMUtil.STOPDATA, regency, payload));
@@ -752,14 +797,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 				} catch (IOException ex) {
 					ex.printStackTrace();
 					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				} finally {
-					try {
-						out.close();
-						bos.close();
-					} catch (IOException ex) {
-						ex.printStackTrace();
-						java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-					}
 				}
 
 			} else { // If leader, I will store information that I would send in a SYNC message
@@ -813,7 +850,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 					collect = new CollectData(this.controller.getStaticConf().getProcessId(), -1, new TimestampValuePair(-1, new byte[0]), new HashSet<TimestampValuePair>());
 				}
 
-				SignedObject signedCollect = sign(collect);
+				SignedCollect signedCollect = sign(collect);
 
 				lcManager.addCollect(regency, signedCollect);
 			}
@@ -827,8 +864,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	 * @param msg Message received from the other replica
 	 */
 	public void deliverTimeoutRequest(LCMessage msg) {
-		ByteArrayInputStream bis = null;
-		ObjectInputStream ois = null;
+		DataInputStream in = null;
 
 		switch (msg.getType()) {
 		case TOMUtil.STOP: // message STOP
@@ -841,32 +877,24 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 				Logger.println("(TOMLayer.deliverTimeoutRequest) received regency change request");
 				try { // deserialize the content of the STOP message
 
-					bis = new ByteArrayInputStream(msg.getPayload());
-					ois = new ObjectInputStream(bis);
+					in = new DataInputStream(new ByteArrayInputStream(msg.getPayload()));
 
-					boolean hasReqs = ois.readBoolean();
+					boolean hasReqs = in.readBoolean();
 					clientsManager.getClientsLock().lock();
 
 					if (hasReqs) {
 						// Store requests that the other replica did not manage to order
 						//TODO: The requests have to be verified!
-						byte[] temp = (byte[]) ois.readObject();
+						byte[] temp = LCSerializer.readBytes(in);
 						BatchReader batchReader = new BatchReader(temp,
 								controller.getStaticConf().getUseSignatures() == 1);
 						TOMMessage[] requests = batchReader.deserialiseRequests(controller);
 					}
 					clientsManager.getClientsLock().unlock();
 
-					ois.close();
-					bis.close();
-
 				} catch (IOException ex) {
 					ex.printStackTrace();
 					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (ClassNotFoundException ex) {
-					ex.printStackTrace();
-					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-
 				}
 
 				// store information about the message STOP
@@ -888,7 +916,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 				//TODO: It is necessary to verify the proof of the last decided consensus and the signature of the state of the current consensus!
 
 				LastEidData lastData = null;
-				SignedObject signedCollect = null;
+				SignedCollect signedCollect = null;
 
 				int last = -1;
 				byte[] lastValue = null;
@@ -896,15 +924,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 				try { // deserialize the content of the message
 
-					bis = new ByteArrayInputStream(msg.getPayload());
-					ois = new ObjectInputStream(bis);
+					in = new DataInputStream(new ByteArrayInputStream(msg.getPayload()));
 
-					if (ois.readBoolean()) { // content of the last decided eid
+					if (in.readBoolean()) { // content of the last decided eid
 
-						last = ois.readInt();
+						last = in.readInt();
 
-						lastValue = (byte[]) ois.readObject();
-						proof = (Set<PaxosMessage>) ois.readObject();
+						lastValue = LCSerializer.readBytes(in);
+						proof = LCSerializer.readProof(in);
 
 						//TODO: Proof is missing!
 					}
@@ -915,10 +942,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 					// conteudo do eid a executar
 
-					signedCollect = (SignedObject) ois.readObject();
-
-					ois.close();
-					bis.close();
+					signedCollect = LCSerializer.readSignedCollect(in);
 
 					lcManager.addCollect(regency, signedCollect);
 
@@ -937,8 +961,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 				} catch (IOException ex) {
 					ex.printStackTrace(System.err);
-				} catch (ClassNotFoundException ex) {
-					ex.printStackTrace(System.err);
 				}
 
 			}
@@ -954,20 +976,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
 				LastEidData lastHighestEid = null;
 				int currentEid = -1;
-				HashSet<SignedObject> signedCollects = null;
+				HashSet<SignedCollect> signedCollects = null;
 				byte[] propose = null;
 				int batchSize = -1;
 
 				try { // deserialization of the message content
 
-					bis = new ByteArrayInputStream(msg.getPayload());
-					ois = new ObjectInputStream(bis);
+					in = new DataInputStream(new ByteArrayInputStream(msg.getPayload()));
 
-					lastHighestEid = (LastEidData) ois.readObject();
-					currentEid = ois.readInt();
-					signedCollects = (HashSet<SignedObject>) ois.readObject();
-					propose = (byte[]) ois.readObject();
-					batchSize = ois.readInt();
+					lastHighestEid = LCSerializer.readLastEid(in);
+					currentEid = in.readInt();
+					signedCollects = LCSerializer.readSignedCollects(in);
+					propose = LCSerializer.readBytes(in);
+					batchSize = in.readInt();
 
 					lcManager.setCollects(regency, signedCollects);
 
@@ -977,16 +998,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 						finalise(regency, lastHighestEid, currentEid, signedCollects, propose, batchSize, false);
 					}
 
-					ois.close();
-					bis.close();
-
 				} catch (IOException ex) {
 					ex.printStackTrace();
 					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (ClassNotFoundException ex) {
-					ex.printStackTrace();
-					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-
 				}
 
 			}
@@ -1002,13 +1016,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	private void catch_up(int regency) {
 
 		Logger.println("(TOMLayer.catch_up) verify STOPDATA info");
-		ObjectOutputStream out = null;
-		ByteArrayOutputStream bos = null;
 
 		LastEidData lastHighestEid = lcManager.getHighestLastEid(regency);
 
 		int currentEid = lastHighestEid.getEid() + 1;
-		HashSet<SignedObject> signedCollects = null;
+		HashSet<SignedCollect> signedCollects = null;
 		byte[] propose = null;
 		int batchSize = -1;
 
@@ -1026,26 +1038,22 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			batchSize = cons.batchSize;
 
 			try { // serialization of the CATCH-UP message
-				bos = new ByteArrayOutputStream();
-				out = new ObjectOutputStream(bos);
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bos);
 
-				out.writeObject(lastHighestEid);
-
-				//TODO: Missing: serialization of the proof
+				LCSerializer.writeLastEid(out, lastHighestEid);
 
 				out.writeInt(currentEid);
-				out.writeObject(signedCollects);
-				out.writeObject(propose);
+				LCSerializer.writeSignedCollects(out, signedCollects);
+				LCSerializer.writeBytes(out, propose);
 				out.writeInt(batchSize);
 
 				out.flush();
-				bos.flush();
 
 				byte[] payload = bos.toByteArray();
-				out.close();
-				bos.close();
 
 				Logger.println("(TOMLayer.catch_up) sending SYNC message for regency " + regency);
+				Tracer.trace(TraceEvent.SYNC_SENT, regency);
 
 				// send the CATCH-UP message
 				communication.send(this.controller.getCurrentViewOtherAcceptors(),
@@ -1056,14 +1064,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 			} catch (IOException ex) {
 				ex.printStackTrace();
 				java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-			} finally {
-				try {
-					out.close();
-					bos.close();
-				} catch (IOException ex) {
-					ex.printStackTrace();
-					java.util.logging.Logger.getLogger(TOMLayer.class.getName()).log(Level.SEVERE, null, ex);
-				}
 			}
 		}
 	}
@@ -1072,7 +1072,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	private int tempRegency = -1;
 	private LastEidData tempLastHighestEid = null;
 	private int tempCurrentEid = -1;
-	private HashSet<SignedObject> tempSignedCollects = null;
+	private HashSet<SignedCollect> tempSignedCollects = null;
 	private byte[] tempPropose = null;
 	private int tempBatchSize = -1;
 	private boolean tempIAmLeader = false;
@@ -1103,7 +1103,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 	// this method is called on all replicas, and serves to verify and apply the
 	// information sent in the catch-up message
 	private void finalise(int regency, LastEidData lastHighestEid,
-			int currentEid, HashSet<SignedObject> signedCollects, byte[] propose, int batchSize, boolean iAmLeader) {
+			int currentEid, HashSet<SignedCollect> signedCollects, byte[] propose, int batchSize, boolean iAmLeader) {
 
 		Logger.println("(TOMLayer.finalise) final stage of LC protocol");
 		int me = this.controller.getStaticConf().getProcessId();
@@ -1155,7 +1155,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 		}
 		byte[] tmpval = null;
 
-		HashSet<CollectData> selectedColls = lcManager.selectCollects(signedCollects, currentEid);
+		HashSet<CollectData> selectedColls = lcManager.selectCollects(signedCollects, regency, currentEid);
 
 		// get a value that satisfies the predicate "bind"
 		tmpval = lcManager.getBindValue(selectedColls);
@@ -75,6 +75,8 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	//the reply associated with this message
 	public transient TOMMessage reply = null;
+	//the full reply, when the one sent to the client only carries its hash
+	public transient TOMMessage fullReply = null;
 	public transient boolean alreadyProposed = false;
 	
 	private int replyServer = -1;
@@ -233,6 +235,13 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		return "(" + sender + "," + sequence + "," + operationId + "," + session + ")";
 	}
 
+	/**
+	 * @return the number of bytes written by wExternal()
+	 */
+	public int getSerializedSize() {
+		return 32 + (content == null ? 0 : content.length);
+	}
+
 	public void wExternal(DataOutput out) throws IOException {
 		out.writeInt(sender);
 		out.writeInt(viewID);
@@ -18,44 +18,57 @@ package bftsmart.tom.core.timer;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.communication.SystemMessageInputStream;
 import bftsmart.tom.core.messages.TOMMessage;
 
 
 
 /**
- * Message used to forward a client request to the current leader when the first
- * timeout for this request is triggered (see RequestTimer).
+ * Message used to forward client requests to the current leader when the first
+ * timeout for them is triggered (see RequestTimer). All the requests that time
+ * out at the same time are forwarded in a single message, up to the maximum
+ * batch size (see TOMLayer.forwardRequestsToLeader()).
  *
  */
 public final class ForwardedMessage extends SystemMessage {
 
-    private TOMMessage request;
+    private List<TOMMessage> requests;
 
     public ForwardedMessage() {
     }
 
     public ForwardedMessage(int senderId, TOMMessage request) {
+        this(senderId, Collections.singletonList(request));
+    }
+
+    public ForwardedMessage(int senderId, List<TOMMessage> requests) {
         super(senderId);
-        this.request = request;
+        this.requests = requests;
     }
 
-    public TOMMessage getRequest() {
-        return request;
+    public List<TOMMessage> getRequests() {
+        return requests;
     }
 
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
 
-        out.writeInt(request.serializedMessage.length);
-        out.write(request.serializedMessage);
-        out.writeBoolean(request.signed);
+        out.writeInt(requests.size());
+        for (TOMMessage request : requests) {
+            out.writeInt(request.serializedMessage.length);
+            out.write(request.serializedMessage);
+            out.writeBoolean(request.signed);
 
-        if (request.signed) {
-            out.writeInt(request.serializedMessageSignature.length);
-            out.write(request.serializedMessageSignature);
+            if (request.signed) {
+                out.writeInt(request.serializedMessageSignature.length);
+                out.write(request.serializedMessageSignature);
+            }
         }
     }
 
@@ -63,21 +76,42 @@ public final class ForwardedMessage extends SystemMessage {
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
 
-        byte[] serReq = new byte[in.readInt()];
-        in.readFully(serReq);
+        // messages with more requests than the maximum batch size of the reader
+        // are rejected, as they were not built by a correct replica
+        int maxRequests = (in instanceof SystemMessageInputStream ?
+                ((SystemMessageInputStream) in).getMaxRequests() : Integer.MAX_VALUE);
+        int count = in.readInt();
+        if (count < 0 || count > maxRequests) {
+            throw new IOException("Invalid number of forwarded requests " + count + " (at most " + maxRequests + ")");
+        }
+        // the capacity is only a hint if the reader sets no limit
+        requests = new ArrayList<TOMMessage>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            byte[] serReq = new byte[checkLength(in.readInt())];
+            in.readFully(serReq);
 
-        request = TOMMessage.bytesToMessage(serReq);
-        request.serializedMessage = serReq;
+            byte[] serReqSign = null;
+            boolean signed = in.readBoolean();
 
-        boolean signed = in.readBoolean();
+            if (signed) {
 
-        if (signed) {
+                serReqSign = new byte[checkLength(in.readInt())];
+                in.readFully(serReqSign);
 
-            byte[] serReqSign = new byte[in.readInt()];
-            in.readFully(serReqSign);
-            request.serializedMessageSignature = serReqSign;
+            }
 
+            TOMMessage request = TOMMessage.bytesToMessage(serReq);
+            if (request == null) continue; // malformed request, the others are still valid
+
+            request.serializedMessage = serReq;
+            request.serializedMessageSignature = serReqSign;
+            requests.add(request);
         }
     }
 
+    private static int checkLength(int length) throws IOException {
+        if (length < 0) throw new IOException("Invalid length " + length);
+        return length;
+    }
+
 }
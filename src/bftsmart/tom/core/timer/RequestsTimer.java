@@ -16,35 +16,52 @@ limitations under the License.
 package bftsmart.tom.core.timer;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.TOMUtil;
 
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * Watched requests are spread over a fixed number of buckets (a hashed
+ * wheel), each one with its own lock, so watching and unwatching a request
+ * is O(1) and requests from different clients rarely contend. Inside a
+ * bucket requests are kept in reception order, so finding the expired ones
+ * only requires looking at the head of each bucket.
+ *
+ * The bucket is chosen from the request id rather than from its reception
+ * time, since the requests that are unwatched are the ones deserialized from
+ * the decided batch, which do not carry the local reception time.
+ *
  */
 public class RequestsTimer {
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private static final int BUCKETS = 256; // must be a power of two
+
+    private ScheduledExecutorService timer;
+    private volatile RequestTimerTask rtTask = null;
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
     private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private TimeoutEstimator estimator = null; // null if the timeout is static
+
+    private Bucket[] buckets = new Bucket[BUCKETS];
+    private AtomicInteger watchedCount = new AtomicInteger(0);
     
-    private boolean enabled = true;
+    private volatile boolean enabled = true;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
@@ -60,9 +77,19 @@ public class RequestsTimer {
         
         this.communication = communication;
         this.controller = controller;
+        this.timer = ExecutorRegistry.getInstance(controller.getStaticConf().getProcessId()).timer();
         
         this.timeout = this.controller.getStaticConf().getRequestTimeout();
         this.shortTimeout = -1;
+
+        if (this.controller.getStaticConf().isAdaptiveTimeout()) {
+            this.estimator = new TimeoutEstimator(this.controller.getStaticConf().getMinRequestTimeout(),
+                    this.controller.getStaticConf().getMaxRequestTimeout());
+        }
+
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new Bucket();
+        }
     }
 
     public void setShortTimeout(long shortTimeout) {
@@ -73,25 +100,43 @@ public class RequestsTimer {
         this.timeout = timeout;
     }
     
+    /**
+     * @return the timeout currently in use, i.e., the one estimated from the
+     * ordering latency if adaptive timeouts are enabled
+     */
     public long getTimeout() {
-        return timeout;
+        return (estimator != null ? estimator.getTimeout() : timeout);
+    }
+    
+    private long currentTimeout() {
+        return (shortTimeout > -1 ? shortTimeout : getTimeout());
     }
     
     public void startTimer() {
+        schedule(currentTimeout());
+    }
+    
+    private synchronized void schedule(long delay) {
         if (rtTask == null) {
-            long t = (shortTimeout > -1 ? shortTimeout : timeout);
             //shortTimeout = -1;
             rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) timer.schedule(rtTask, t);
+            if (controller.getCurrentViewN() > 1) rtTask.schedule(delay);
         }
     }
     
-    public void stopTimer() {
+    public synchronized void stopTimer() {
         if (rtTask != null) {
             rtTask.cancel();
             rtTask = null;
         }
     }
+
+    // the count is checked again while holding the lock of the timer, since a
+    // request may have been watched (without seeing the task stopped) after
+    // the last one was unwatched
+    private synchronized void stopIdleTimer() {
+        if (watchedCount.get() == 0) stopTimer();
+    }
     
     public void Enabled(boolean phase) {
         
@@ -102,16 +147,27 @@ public class RequestsTimer {
     	return enabled;
     }
     
+    private Bucket bucketOf(TOMMessage request) {
+        int h = request.hashCode();
+        h ^= (h >>> 16);
+        return buckets[h & (BUCKETS - 1)];
+    }
+
     /**
      * Creates a timer for the given request
      * @param request Request to which the timer is being createf for
      */
     public void watch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        watched.add(request);
-        if (watched.size() >= 1 && enabled) startTimer();
-        rwLock.writeLock().unlock();
+        Bucket bucket = bucketOf(request);
+        bucket.lock.lock();
+        boolean added = bucket.requests.put(request, request) == null;
+        bucket.lock.unlock();
+
+        // the first request watched always goes through the (synchronized)
+        // scheduling, so it cannot miss a concurrent stopIdleTimer()
+        boolean first = added && watchedCount.incrementAndGet() == 1;
+        if ((first || rtTask == null) && enabled) startTimer();
     }
 
     /**
@@ -120,58 +176,73 @@ public class RequestsTimer {
      */
     public void unwatch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
-        rwLock.writeLock().unlock();
+        Bucket bucket = bucketOf(request);
+        bucket.lock.lock();
+        TOMMessage watched = bucket.requests.remove(request);
+        bucket.lock.unlock();
+
+        if (watched != null) {
+            if (estimator != null) estimator.store(System.nanoTime() - watched.receptionTime);
+            if (watchedCount.decrementAndGet() == 0) stopIdleTimer();
+        }
     }
 
     /**
      * Cancels all timers for all messages
      */
     public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
-        rwLock.writeLock().lock();
-        
-        watched.toArray(requests);
-
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
-            }
+        for (Bucket bucket : buckets) {
+            bucket.lock.lock();
+            watchedCount.addAndGet(-bucket.requests.size());
+            bucket.requests.clear();
+            bucket.lock.unlock();
         }
-        rwLock.writeLock().unlock();
+        stopTimer();
     }
     
     public void run_lc_protocol() {
             
-        long t = (shortTimeout > -1 ? shortTimeout : timeout);
+        long t = currentTimeout();
+        long now = System.nanoTime();
+        long deadline = now - (t * 1000000); // requests received before this instant timed out
+        long oldest = now;
         
         //System.out.println("(RequestTimerTask.run) I SOULD NEVER RUN WHEN THERE IS NO TIMEOUT");
-        rwLock.readLock().lock();
-
         LinkedList<TOMMessage> pendingRequests = new LinkedList<TOMMessage>();
 
-        for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-            TOMMessage request = i.next();
-            if ((request.receptionTime + System.currentTimeMillis()) > t) {
-                pendingRequests.add(request);
-            } else {
-                break;
+        for (Bucket bucket : buckets) {
+            bucket.lock.lock();
+            for (Iterator<TOMMessage> i = bucket.requests.values().iterator(); i.hasNext();) {
+                TOMMessage request = i.next();
+                if (request.receptionTime - deadline <= 0) {
+                    pendingRequests.add(request);
+                } else {
+                    if (request.receptionTime - oldest < 0) oldest = request.receptionTime;
+                    break;
+                }
             }
+            bucket.lock.unlock();
+        }
+
+        synchronized (this) {
+            rtTask = null;
         }
 
         if (!pendingRequests.isEmpty()) {
+            // on the first timeout, the requests are forwarded to the leader,
+            // all in one message
+            LinkedList<TOMMessage> forward = new LinkedList<TOMMessage>();
             for (ListIterator<TOMMessage> li = pendingRequests.listIterator(); li.hasNext(); ) {
                 TOMMessage request = li.next();
                 if (!request.timeout) {
 
                     request.signed = request.serializedMessageSignature != null;
-                    tomLayer.forwardRequestToLeader(request);
+                    forward.add(request);
                     request.timeout = true;
                     li.remove();
                 }
             }
+            if (!forward.isEmpty()) tomLayer.forwardRequestsToLeader(forward);
 
             if (!pendingRequests.isEmpty()) {
                 System.out.println("Timeout for messages: " + pendingRequests);
@@ -181,27 +252,58 @@ public class RequestsTimer {
                 tomLayer.triggerTimeout(pendingRequests);
             }
             else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+                schedule(t);
             }
-        } else {
-            rtTask = null;
-            timer.purge();
+        } else if (watchedCount.get() > 0) {
+            // nothing expired yet, wake up when the oldest request does
+            schedule(Math.max(1, t - (now - oldest) / 1000000));
         }
 
-        rwLock.readLock().unlock();
-
     }
     
-    class RequestTimerTask extends TimerTask {
+    /**
+     * A bucket of the wheel. Requests are kept in reception order.
+     */
+    private static class Bucket {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<TOMMessage, TOMMessage> requests = new LinkedHashMap<TOMMessage, TOMMessage>();
+    }
+
+    class RequestTimerTask implements Runnable {
+
+        private long scheduledTime; // when the task should run, in milliseconds
+        private ScheduledFuture<?> future;
+
+        void schedule(long delay) {
+            scheduledTime = System.currentTimeMillis() + delay;
+            future = timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            if (future != null) future.cancel(false);
+        }
 
         @Override
         /**
-         * This is the code for the TimerTask. It executes the timeout for the first
+         * This is the code for the timer task. It executes the timeout for the first
          * message on the watched list.
          */
         public void run() {
             
+            // if this task ran much later than planned, this replica was the one
+            // stalled (e.g., by a GC pause), so give the leader another period
+            long late = System.currentTimeMillis() - scheduledTime;
+            long t = currentTimeout();
+            if (late > t / 2) {
+                synchronized (RequestsTimer.this) {
+                    if (rtTask == this) {
+                        rtTask = new RequestTimerTask();
+                        rtTask.schedule(t);
+                    }
+                }
+                return;
+            }
+
             int[] myself = new int[1];
             myself[0] = controller.getStaticConf().getProcessId();
 
@@ -0,0 +1,89 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.timer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates the request timeout from the time the last requests took to be
+ * ordered (from reception to decision). The timeout is a multiple of the
+ * 99th percentile of those samples, bounded by a minimum and a maximum value.
+ *
+ * Samples are kept in a fixed ring, so recording one is just an array write;
+ * the percentile is only recomputed when the request timer is (re)scheduled
+ * after at least RECOMPUTE new samples were recorded.
+ */
+public class TimeoutEstimator {
+
+    private static final int SAMPLES = 1024; // must be a power of two
+    private static final int MIN_SAMPLES = 32; // below this the estimate is not trusted
+    private static final int PERCENTILE = 99;
+    private static final int FACTOR = 4;
+    private static final int RECOMPUTE = 128; // samples between two estimates
+
+    private final long[] samples = new long[SAMPLES];
+    private final AtomicLong next = new AtomicLong(0); // samples recorded so far
+
+    private long estimate; // last estimate, in milliseconds
+    private long estimatedAt = -1; // number of samples when it was computed
+
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    /**
+     * Creates a new instance of TimeoutEstimator
+     * @param minTimeout lower bound of the estimated timeout (ms)
+     * @param maxTimeout upper bound of the estimated timeout (ms)
+     */
+    public TimeoutEstimator(long minTimeout, long maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = Math.max(minTimeout, maxTimeout);
+    }
+
+    /**
+     * Records the time a request took to be ordered
+     * @param latency ordering latency, in nanoseconds
+     */
+    public void store(long latency) {
+        if (latency < 0) return;
+        samples[(int) (next.getAndIncrement() & (SAMPLES - 1))] = latency;
+    }
+
+    /**
+     * @return the current estimate of the request timeout, in milliseconds
+     */
+    public synchronized long getTimeout() {
+        long recorded = next.get();
+        if (recorded < MIN_SAMPLES) return minTimeout;
+        if (estimatedAt >= 0 && recorded - estimatedAt < RECOMPUTE) return estimate;
+
+        estimatedAt = recorded;
+        estimate = compute((int) Math.min(recorded, SAMPLES));
+        return estimate;
+    }
+
+    private long compute(int count) {
+        long[] values = Arrays.copyOf(samples, count);
+        Arrays.sort(values);
+        long percentile = values[(count * PERCENTILE) / 100 - 1] / 1000000;
+
+        long t = percentile * FACTOR;
+        if (t < minTimeout) return minTimeout;
+        if (t > maxTimeout) return maxTimeout;
+        return t;
+    }
+}
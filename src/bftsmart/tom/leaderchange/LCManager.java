@@ -15,16 +15,17 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
-import bftsmart.communication.server.ServerConnection;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,11 +35,11 @@ import bftsmart.consensus.messages.PaxosMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.ExecutorRegistry;
 import bftsmart.tom.util.TOMUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import javax.crypto.BadPaddingException;
@@ -68,11 +69,13 @@ public class LCManager {
     //data structures for info in stop, sync and catch-up messages
     private HashMap<Integer,HashSet<Integer>> stops;
     private HashMap<Integer,HashSet<LastEidData>> lastEids;
-    private HashMap<Integer,HashSet<SignedObject>> collects;
+    private HashMap<Integer,HashSet<SignedCollect>> collects;
+
+    //collects whose signature was already verified, for each regency
+    private HashMap<Integer,HashMap<SignedCollect,CollectData>> verifiedCollects;
 
     //stuff from the TOM layer that this object needss
     private ServerViewController SVController;
-    private MessageDigest md;
     private TOMLayer tomLayer;
     
     private int currentLeader;
@@ -83,9 +86,8 @@ public class LCManager {
      * Constructor
      *
      * @param reconfManager The reconfiguration manager from TOM layer
-     * @param md The message digest engine from TOM layer
      */
-    public LCManager(TOMLayer tomLayer,ServerViewController SVController, MessageDigest md) {
+    public LCManager(TOMLayer tomLayer,ServerViewController SVController) {
         this.tomLayer = tomLayer;
         this.lastreg = 0;
         this.nextreg = 0;
@@ -93,18 +95,13 @@ public class LCManager {
 
         this.stops = new HashMap<Integer,HashSet<Integer>>();
         this.lastEids = new HashMap<Integer, HashSet<LastEidData>>();
-        this.collects = new HashMap<Integer, HashSet<SignedObject>>();
+        this.collects = new HashMap<Integer, HashSet<SignedCollect>>();
+        this.verifiedCollects = new HashMap<Integer, HashMap<SignedCollect, CollectData>>();
 
         this.SVController = SVController;
-        this.md = md;
 
-        try {
-            //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-            //this.cipher = Cipher.getInstance(ServerConnection.MAC_ALGORITHM);
-            this.mac = Mac.getInstance(ServerConnection.MAC_ALGORITHM);
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            ex.printStackTrace();
-        }
+        //this.cipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
+        this.mac = SVController.getStaticConf().getCryptoProvider().newMac();
 
     }
     public int getNewLeader() {
@@ -278,10 +275,10 @@ public class LCManager {
      * @param ts the current regency
      * @param signedCollect the signed collect data
      */
-    public void addCollect(int regency, SignedObject signedCollect) {
+    public void addCollect(int regency, SignedCollect signedCollect) {
 
-        HashSet<SignedObject> c = collects.get(regency);
-        if (c == null) c = new HashSet<SignedObject>();
+        HashSet<SignedCollect> c = collects.get(regency);
+        if (c == null) c = new HashSet<SignedCollect>();
         c.add(signedCollect);
         collects.put(regency, c);
     }
@@ -298,6 +295,13 @@ public class LCManager {
         for (int i = 0; i < keys.length; i++) {
             if (keys[i] <= regency) collects.remove(keys[i]);
         }
+
+        keys = new Integer[verifiedCollects.keySet().size()];
+        verifiedCollects.keySet().toArray(keys);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] <= regency) verifiedCollects.remove(keys[i]);
+        }
     }
     
     /**
@@ -307,7 +311,7 @@ public class LCManager {
      */
     public int getCollectsSize(int regency) {
 
-        HashSet<SignedObject> c = collects.get(regency);
+        HashSet<SignedCollect> c = collects.get(regency);
         return c == null ? 0 : c.size();
     }
 
@@ -316,7 +320,7 @@ public class LCManager {
      * @param regency Regency for collects
      * @return a set of collect data
      */
-    public HashSet<SignedObject> getCollects(int regency) {
+    public HashSet<SignedCollect> getCollects(int regency) {
         return collects.get(regency);
     }
 
@@ -325,7 +329,7 @@ public class LCManager {
      * @param regency Regency for the last eid info
      * @param colls a set of collect data
      */
-    public void setCollects(int regency, HashSet<SignedObject> colls) {
+    public void setCollects(int regency, HashSet<SignedCollect> colls) {
 
         collects.put(regency, colls);
     }
@@ -594,47 +598,97 @@ public class LCManager {
      */
     public HashSet<CollectData> selectCollects(int regency, int eid) {
 
-        HashSet<SignedObject> c = collects.get(regency);
+        HashSet<SignedCollect> c = collects.get(regency);
 
         if (c == null) return null;
 
-        return normalizeCollects(getSignedCollects(c), eid);
+        return normalizeCollects(getSignedCollects(regency, c), eid);
         
     }
 
     /**
      * Fetchs a set of correctly signed and normalized collect data structures from the
      * specified original set of collects
-     * @param signedObjects original set of signed collects
+     * @param signedCollects original set of signed collects
+     * @param regency the regency to which the collects are related
      * @param eid the eid to which to normalize the collects
      * @return a set of correctly signed and normalized collect data structures
      */
-    public HashSet<CollectData> selectCollects(HashSet<SignedObject> signedObjects, int eid) {
+    public HashSet<CollectData> selectCollects(HashSet<SignedCollect> signedCollects, int regency, int eid) {
 
-        if (signedObjects == null) return null;
+        if (signedCollects == null) return null;
 
-        return normalizeCollects(getSignedCollects(signedObjects), eid);
+        return normalizeCollects(getSignedCollects(regency, signedCollects), eid);
 
     }
 
-    // Filters the correctly signed collects
-    private HashSet<CollectData> getSignedCollects(HashSet<SignedObject> signedCollects) {
+    // Filters the correctly signed collects. Collects already verified for this regency are
+    // not verified again, and the remaining ones are verified in parallel
+    private HashSet<CollectData> getSignedCollects(int regency, HashSet<SignedCollect> signedCollects) {
 
         HashSet<CollectData> colls = new HashSet<CollectData>();
 
-        for (SignedObject so : signedCollects) {
+        HashMap<SignedCollect, CollectData> verified = verifiedCollects.get(regency);
+        if (verified == null) {
+            verified = new HashMap<SignedCollect, CollectData>();
+            verifiedCollects.put(regency, verified);
+        }
+
+        List<SignedCollect> pending = new LinkedList<SignedCollect>();
+        for (SignedCollect sc : signedCollects) {
+
+            CollectData c = verified.get(sc);
+            if (c != null) colls.add(c);
+            else pending.add(sc);
+        }
+
+        if (pending.size() == 1) {
 
-            CollectData c;
+            SignedCollect sc = pending.get(0);
+            CollectData c = verifyCollect(sc);
+            if (c != null) {
+                verified.put(sc, c);
+                colls.add(c);
+            }
+
+        } else if (pending.size() > 1) {
+
+            List<Future<CollectData>> results = new LinkedList<Future<CollectData>>();
             try {
-                c = (CollectData) so.getObject();
-                int sender = c.getPid();
-                if (tomLayer.verifySignature(so, sender)) {
-                    colls.add(c);
+                for (final SignedCollect sc : pending) {
+                    results.add(ExecutorRegistry.getInstance(SVController.getStaticConf().getProcessId())
+                            .pool(ExecutorRegistry.COLLECT_VERIFIERS).submit(new Callable<CollectData>() {
+                        @Override
+                        public CollectData call() {
+                            return verifyCollect(sc);
+                        }
+                    }));
+                }
+            } catch (RejectedExecutionException ex) {
+                // the pool is shut down (or full): the others are verified here
+                for (int i = results.size(); i < pending.size(); i++) {
+                    CollectData c = verifyCollect(pending.get(i));
+                    if (c != null) {
+                        verified.put(pending.get(i), c);
+                        colls.add(c);
+                    }
+                }
+            }
+
+            int i = 0;
+            for (Future<CollectData> f : results) {
+                SignedCollect sc = pending.get(i++);
+                try {
+                    CollectData c = f.get();
+                    if (c != null) {
+                        verified.put(sc, c);
+                        colls.add(c);
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(LCManager.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(LCManager.class.getName()).log(Level.SEVERE, null, ex);
                 }
-            } catch (IOException ex) {
-                Logger.getLogger(LCManager.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (ClassNotFoundException ex) {
-                Logger.getLogger(LCManager.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
 
@@ -642,6 +696,21 @@ public class LCManager {
 
     }
 
+    // Deserializes a signed collect, returning it if the signature of its sender is valid
+    private CollectData verifyCollect(SignedCollect sc) {
+
+        if (sc.getCollect() == null || sc.getSignature() == null) return null;
+        try {
+            CollectData c = LCSerializer.bytesToCollect(sc.getCollect());
+            if (tomLayer.verifySignature(sc, c.getPid())) {
+                return c;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LCManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
     // Normalizes the set of collects. A set of collects is considered normalized if or when
     // all collects are related to the same eid. This is important because not all replicas
     // may be executing the same eid when tere is a leader change
@@ -667,7 +736,7 @@ public class LCManager {
             for (TimestampValuePair rv : c.getWriteSet()) {
 
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(tomLayer.computeHash(rv.getValue()));
                 else rv.setHashedValue(new byte[0]);
             }
         }
@@ -709,7 +778,7 @@ public class LCManager {
                                              // did not complete any consensus and cannot have
                                              // any proof
         
-        byte[] hashedValue = md.digest(led.getEidDecision());
+        byte[] hashedValue = tomLayer.computeHash(led.getEidDecision());
         Set<PaxosMessage> PaxosMessages = led.getEidProof();
         int myId = tomLayer.controller.getStaticConf().getProcessId();
         int certificateCurrentView = (2*tomLayer.controller.getCurrentViewF()) + 1;
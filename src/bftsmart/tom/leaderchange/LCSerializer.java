@@ -0,0 +1,249 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import bftsmart.consensus.executionmanager.TimestampValuePair;
+import bftsmart.consensus.messages.PaxosMessage;
+
+/**
+ * Compact binary encoding of the data carried by the STOP, STOPDATA and SYNC
+ * messages of the leader change protocol. It replaces the nested
+ * ObjectOutputStreams previously used to build those payloads, so no class
+ * descriptors are sent and no reflection is needed to read them.
+ *
+ * All arrays are written as a length followed by the content, where a length
+ * of -1 stands for a null array. Since the data comes from other replicas,
+ * the lengths and counts read are checked against the input left (the
+ * streams read from are always over the payload of a message, already in
+ * memory), so a faulty replica cannot make the others allocate more than it
+ * sent.
+ */
+public class LCSerializer {
+
+    // the kind of proof attached to a paxos message
+    private static final byte NO_PROOF = 0;
+    private static final byte MAC_VECTOR = 1;
+    private static final byte SIGNATURE = 2;
+
+    public static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Checks that a length (or count) read from the input fits in what is left
+     * of it, given the minimum size of each element
+     */
+    private static int checkLength(DataInputStream in, int length, int elementSize) throws IOException {
+        if (length > in.available() / elementSize) {
+            throw new IOException("Invalid length " + length + " (only " + in.available() + " bytes left)");
+        }
+        return length;
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        checkLength(in, length, 1);
+
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * Serializes a collect data structure. The resulting array is what the
+     * replicas sign and verify.
+     *
+     * @param collect the collect data
+     * @return the serialized collect data
+     */
+    public static byte[] collectToBytes(CollectData collect) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(collect.getPid());
+            out.writeInt(collect.getEid());
+            writeTimestampValuePair(out, collect.getQuorumWrites());
+
+            Set<TimestampValuePair> writeSet = collect.getWriteSet();
+            out.writeInt(writeSet.size());
+            for (TimestampValuePair rv : writeSet) {
+                writeTimestampValuePair(out, rv);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        return bos.toByteArray();
+    }
+
+    public static CollectData bytesToCollect(byte[] b) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+
+        int pid = in.readInt();
+        int eid = in.readInt();
+        TimestampValuePair quorumWrites = readTimestampValuePair(in);
+
+        int size = checkLength(in, in.readInt(), 8);
+        HashSet<TimestampValuePair> writeSet = new HashSet<TimestampValuePair>();
+        for (int i = 0; i < size; i++) {
+            writeSet.add(readTimestampValuePair(in));
+        }
+
+        return new CollectData(pid, eid, quorumWrites, writeSet);
+    }
+
+    public static void writeSignedCollect(DataOutputStream out, SignedCollect signedCollect) throws IOException {
+        writeBytes(out, signedCollect.getCollect());
+        writeBytes(out, signedCollect.getSignature());
+    }
+
+    public static SignedCollect readSignedCollect(DataInputStream in) throws IOException {
+        byte[] collect = readBytes(in);
+        byte[] signature = readBytes(in);
+        if (collect == null || signature == null) {
+            throw new IOException("Signed collect without " + (collect == null ? "collect" : "signature"));
+        }
+        return new SignedCollect(collect, signature);
+    }
+
+    public static void writeSignedCollects(DataOutputStream out, Set<SignedCollect> signedCollects) throws IOException {
+        out.writeInt(signedCollects.size());
+        for (SignedCollect sc : signedCollects) {
+            writeSignedCollect(out, sc);
+        }
+    }
+
+    public static HashSet<SignedCollect> readSignedCollects(DataInputStream in) throws IOException {
+        int size = checkLength(in, in.readInt(), 8);
+        HashSet<SignedCollect> signedCollects = new HashSet<SignedCollect>();
+        for (int i = 0; i < size; i++) {
+            signedCollects.add(readSignedCollect(in));
+        }
+        return signedCollects;
+    }
+
+    public static void writeLastEid(DataOutputStream out, LastEidData lastEid) throws IOException {
+        out.writeInt(lastEid.getPid());
+        out.writeInt(lastEid.getEid());
+        writeBytes(out, lastEid.getEidDecision());
+        writeProof(out, lastEid.getEidProof());
+    }
+
+    public static LastEidData readLastEid(DataInputStream in) throws IOException {
+        int pid = in.readInt();
+        int eid = in.readInt();
+        byte[] decision = readBytes(in);
+        Set<PaxosMessage> proof = readProof(in);
+        return new LastEidData(pid, eid, decision, proof);
+    }
+
+    /**
+     * Serializes the proof of a decision, i.e., the ACCEPT messages (and their
+     * MAC vectors or signatures) that made a replica decide
+     */
+    @SuppressWarnings("unchecked")
+    public static void writeProof(DataOutputStream out, Set<PaxosMessage> proof) throws IOException {
+        if (proof == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(proof.size());
+        for (PaxosMessage pm : proof) {
+            out.writeInt(pm.getSender());
+            out.writeInt(pm.getPaxosType());
+            out.writeInt(pm.getNumber());
+            out.writeInt(pm.getRound());
+            writeBytes(out, pm.getValue());
+
+            Object p = pm.getProof();
+            if (p instanceof Map) {
+                Map<Integer, byte[]> macVector = (Map<Integer, byte[]>) p;
+                out.writeByte(MAC_VECTOR);
+                out.writeInt(macVector.size());
+                for (Map.Entry<Integer, byte[]> e : macVector.entrySet()) {
+                    out.writeInt(e.getKey());
+                    writeBytes(out, e.getValue());
+                }
+            } else if (p instanceof byte[]) {
+                out.writeByte(SIGNATURE);
+                writeBytes(out, (byte[]) p);
+            } else {
+                out.writeByte(NO_PROOF);
+            }
+        }
+    }
+
+    public static Set<PaxosMessage> readProof(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) return null;
+        checkLength(in, size, 21);
+
+        Set<PaxosMessage> proof = new HashSet<PaxosMessage>();
+        for (int i = 0; i < size; i++) {
+            int sender = in.readInt();
+            int paxosType = in.readInt();
+            int number = in.readInt();
+            int round = in.readInt();
+            byte[] value = readBytes(in);
+
+            PaxosMessage pm = new PaxosMessage(paxosType, number, round, sender, value);
+
+            byte kind = in.readByte();
+            if (kind == MAC_VECTOR) {
+                int entries = checkLength(in, in.readInt(), 8);
+                HashMap<Integer, byte[]> macVector = new HashMap<Integer, byte[]>();
+                for (int j = 0; j < entries; j++) {
+                    int id = in.readInt();
+                    macVector.put(id, readBytes(in));
+                }
+                pm.setProof(macVector);
+            } else if (kind == SIGNATURE) {
+                pm.setProof(readBytes(in));
+            }
+            proof.add(pm);
+        }
+        return proof;
+    }
+
+    private static void writeTimestampValuePair(DataOutputStream out, TimestampValuePair rv) throws IOException {
+        out.writeInt(rv.getRound());
+        writeBytes(out, rv.getValue());
+    }
+
+    private static TimestampValuePair readTimestampValuePair(DataInputStream in) throws IOException {
+        int timestamp = in.readInt();
+        byte[] value = readBytes(in);
+        return new TimestampValuePair(timestamp, value);
+    }
+}
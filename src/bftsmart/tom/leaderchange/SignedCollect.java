@@ -0,0 +1,72 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.leaderchange;
+
+import java.util.Arrays;
+
+/**
+ * A collect data structure, in the binary format produced by LCSerializer,
+ * together with the signature of the replica that created it. Unlike
+ * SignedObject, the signed content is never Java-serialized.
+ */
+public class SignedCollect {
+
+    private byte[] collect; // serialized collect data
+    private byte[] signature; // signature of the serialized collect data
+
+    /**
+     * Constructor
+     *
+     * @param collect collect data serialized by LCSerializer
+     * @param signature signature of the serialized collect data
+     */
+    public SignedCollect(byte[] collect, byte[] signature) {
+        this.collect = collect;
+        this.signature = signature;
+    }
+
+    /**
+     * Get the serialized collect data
+     * @return serialized collect data
+     */
+    public byte[] getCollect() {
+        return collect;
+    }
+
+    /**
+     * Get the signature of the serialized collect data
+     * @return signature of the serialized collect data
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public boolean equals(Object obj) {
+
+        if (obj instanceof SignedCollect) {
+
+            SignedCollect sc = (SignedCollect) obj;
+
+            return Arrays.equals(sc.signature, signature) && Arrays.equals(sc.collect, collect);
+        }
+
+        return false;
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(signature);
+    }
+}
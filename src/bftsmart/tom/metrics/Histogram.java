@@ -0,0 +1,177 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of non-negative values (e.g., latencies in
+ * nanoseconds, batch sizes or message sizes).
+ *
+ * Values are counted in log-linear buckets: each power of two is split in 16
+ * linear sub-buckets, so any value is represented with an error below 1/16
+ * (6.25%) and the whole range of a long fits in 960 counters. Recording a
+ * value takes no locks and allocates nothing.
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS) * SUB + SUB;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Creates a new instance of Histogram
+     * @param name name of the measured quantity
+     * @param unit unit of the recorded values
+     */
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Records a value. Negative values (e.g., the difference between two
+     * timestamps of which one was never set) are ignored.
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if (value < 0) return;
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since a given instant
+     * @param start the instant, as given by System.nanoTime()
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    private static int indexOf(long value) {
+        if (value < 2 * SUB) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS) * SUB + (int) (value >>> (exp - SUB_BITS));
+    }
+
+    // largest value that falls in a bucket
+    private static long upperBoundOf(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        long top = index % SUB + SUB;
+        return ((top + 1) << shift) - 1;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public double getMean() {
+        long c = count.get();
+        return (c == 0 ? 0 : (double) sum.get() / c);
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public long get999thPercentile() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * Computes a percentile of the recorded values. Since values are grouped
+     * in buckets, the result is the upper bound of the bucket where the
+     * percentile falls (but never more than the maximum recorded value).
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value of the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount() + " mean=" + String.format("%.1f", getMean())
+                + " p50=" + get50thPercentile() + " p99=" + get99thPercentile()
+                + " p999=" + get999thPercentile() + " max=" + getMax() + " (" + unit + ")";
+    }
+}
@@ -0,0 +1,204 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.util.ExecutorRegistry;
+
+/**
+ * Metrics of a replica: counters, gauges and histograms, identified by name
+ * (e.g., "phase.accept" or "net.bytesSent").
+ *
+ * Components obtain the registry of their replica with getInstance() and keep
+ * the metrics they update in fields, so the hot path only touches atomic
+ * variables. Once the replica is started, every metric is also exported as an
+ * MBean (domain "bftsmart.metrics", one key for the replica and another for
+ * the metric name) and, if configured, a dump of all metrics is periodically
+ * printed to the standard output.
+ */
+public class MetricsRegistry {
+
+    private static final String DOMAIN = "bftsmart.metrics";
+
+    private static final ConcurrentHashMap<Integer, MetricsRegistry> registries =
+            new ConcurrentHashMap<Integer, MetricsRegistry>();
+
+    private final int id;
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+    private volatile boolean exported = false;
+    private ScheduledFuture<?> reporter = null; // the periodic dump, in the timer of the replica
+
+    private MetricsRegistry(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the registry of a replica, creating it if it does not exist
+     * @param id the id of the replica
+     * @return the registry
+     */
+    public static MetricsRegistry getInstance(int id) {
+        MetricsRegistry registry = registries.get(id);
+        if (registry == null) {
+            registry = new MetricsRegistry(id);
+            MetricsRegistry previous = registries.putIfAbsent(id, registry);
+            if (previous != null) registry = previous;
+        }
+        return registry;
+    }
+
+    /**
+     * Returns a counter, creating it if it does not exist
+     * @param name the name of the counter
+     */
+    public Counter counter(String name) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            Counter counter = new Counter(name);
+            metric = metrics.putIfAbsent(name, counter);
+            if (metric == null) {
+                export(name, counter, CounterMBean.class);
+                return counter;
+            }
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Returns a histogram, creating it if it does not exist
+     * @param name the name of the histogram
+     * @param unit the unit of the values recorded in it
+     */
+    public Histogram histogram(String name, String unit) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            Histogram histogram = new Histogram(name, unit);
+            metric = metrics.putIfAbsent(name, histogram);
+            if (metric == null) {
+                export(name, histogram, HistogramMBean.class);
+                return histogram;
+            }
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Registers a gauge, replacing any previous metric with the same name
+     * (e.g., the queue of a connection that was reestablished)
+     * @param name the name of the gauge
+     * @param gauge the gauge
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauge.setName(name);
+        if (metrics.put(name, gauge) != null) unexport(name);
+        export(name, gauge, GaugeMBean.class);
+    }
+
+    /**
+     * Exports the metrics over JMX and starts the periodic dump, as specified
+     * in the configuration of the replica.
+     * @param conf the configuration of the replica
+     */
+    public synchronized void start(TOMConfiguration conf) {
+        if (conf.isMetricsJMX() && !exported) {
+            exported = true;
+            for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+                Object metric = entry.getValue();
+                if (metric instanceof Histogram) export(entry.getKey(), metric, HistogramMBean.class);
+                else if (metric instanceof Counter) export(entry.getKey(), metric, CounterMBean.class);
+                else export(entry.getKey(), metric, GaugeMBean.class);
+            }
+        }
+
+        int period = conf.getMetricsPeriod();
+        if (period > 0 && reporter == null) {
+            reporter = ExecutorRegistry.getInstance(id).timer().scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    System.out.print(dump());
+                }
+            }, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic dump, removes the MBeans and forgets this registry,
+     * so that a replica with the same id started later gets a fresh one.
+     */
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.cancel(false);
+            reporter = null;
+        }
+        if (exported) {
+            for (String name : metrics.keySet()) unexport(name);
+            exported = false;
+        }
+        registries.remove(id, this);
+    }
+
+    /**
+     * @return the current value of all metrics, one per line
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("-- Metrics of replica ").append(id).append(" --\n");
+        for (Object metric : metrics.values()) {
+            sb.append(metric).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private ObjectName nameOf(String name) throws Exception {
+        return new ObjectName(DOMAIN + ":replica=" + id + ",name=" + ObjectName.quote(name));
+    }
+
+    private <T> void export(String name, Object metric, Class<T> type) {
+        if (!exported) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = nameOf(name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(type.cast(metric), type), objectName);
+            }
+        } catch (Exception ex) {
+            System.out.println("(MetricsRegistry.export) unable to export " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private void unexport(String name) {
+        if (!exported) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = nameOf(name);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (Exception ex) {
+            System.out.println("(MetricsRegistry.unexport) unable to remove " + name + ": " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Executable that serves read-only requests from a read-only view of its
+ * state (a snapshot), instead of the state being modified by the ordered
+ * requests. Reads therefore never observe a partially applied batch and can
+ * run concurrently with the ordered requests and with each other.
+ *
+ * How the snapshot is obtained is up to the application (e.g., an immutable
+ * copy, a copy-on-write structure or a version of a multi-version store).
+ */
+public interface SnapshotExecutable extends Executable {
+
+    /**
+     * Method called by the delivery thread each time a batch of ordered
+     * requests was fully applied, and after the state is installed by the
+     * state transfer protocol. The returned object must not be affected by
+     * ordered requests executed afterwards.
+     *
+     * @return a read-only view of the current state of the application
+     */
+    public Object getSnapshot();
+
+    /**
+     * Method called to execute a read-only request against a snapshot. It
+     * can be called by several threads at the same time.
+     *
+     * @param snapshot the most recent snapshot returned by getSnapshot()
+     * @param command the command issue by the client
+     * @param msgCtx information related with the command
+     *
+     * @return the reply for the request issued by the client
+     */
+    public byte[] executeUnordered(Object snapshot, byte[] command, MessageContext msgCtx);
+}
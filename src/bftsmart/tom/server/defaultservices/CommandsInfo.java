@@ -15,23 +15,50 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import bftsmart.tom.MessageContext;
 
 /**
+ * The commands of a consensus (or of part of it), as kept in the logs.
+ *
+ * In the log files, and whenever it is serialized, a batch is written as a
+ * compact binary record (see write()), instead of through default Java
+ * serialization, which would embed class descriptors and, through the
+ * message contexts, the whole first request of the batch.
+ *
+ * Records are also received from other replicas (in the state transfer), so
+ * the counts and lengths read are not trusted: memory is only allocated as
+ * the data actually arrives.
  *
  * @author Joao Sousa
  */
-public class CommandsInfo implements Serializable {
+public class CommandsInfo implements Externalizable {
 	
 	private static final long serialVersionUID = 342711292879899682L;
+
+	/** Version of the record format written by write() */
+	public static final byte RECORD_VERSION = 1;
+
+	private static final int CHUNK = 64 * 1024; // larger arrays are only allocated as their data arrives
+
+	private static final byte HAS_CONTEXTS = 1; // the record has the sender of each command
+	private static final byte MIXED_CONTEXTS = 2; // commands from different consensus (or timestamps)
 	
-	public final byte[][] commands;
-	public final MessageContext[] msgCtx;
-    public final int round;
-    public final int leader;
+	public byte[][] commands;
+	public MessageContext[] msgCtx;
+    public int round;
+    public int leader;
+    private int consensusId = -1; // as read from a record
 
 
     public CommandsInfo () {
@@ -52,9 +79,8 @@ public class CommandsInfo implements Serializable {
         	onlyNeeded = new MessageContext[msgCtx.length];
         	for(int i = 0; i < msgCtx.length; i++) {
 				MessageContext msg = new MessageContext(
-						msgCtx[i].getTimestamp(), null, msgCtx[i].getRegency(),
-						msgCtx[i].getConsensusId(), msgCtx[i].getSender(),
-						msgCtx[i].getFirstInBatch());
+						msgCtx[i].getTimestamp(), msgCtx[i].getNonces(), msgCtx[i].getRegency(),
+						msgCtx[i].getConsensusId(), msgCtx[i].getSender(), null);
 				onlyNeeded[i] = msg;
         	}
         }
@@ -63,6 +89,171 @@ public class CommandsInfo implements Serializable {
         this.leader = leader;
     }
 
+    /**
+     * Writes this batch as a log record:
+     * <pre>
+     * version (byte), flags (byte), consensus id, round, leader, number of commands (ints)
+     * if there are message contexts: timestamp (long), regency (int), nonces (int length + bytes)
+     * for each command: length (int, -1 if null) + bytes,
+     *                   and if there are message contexts: sender (int)
+     *                   (plus consensus id, timestamp, regency and nonces, if they vary in the batch)
+     * </pre>
+     * The nonces are written once per record, as they are the same for all
+     * commands of a consensus, unless the record has commands of several
+     * consensus.
+     *
+     * @param out where to write the record
+     * @param eid the consensus of the batch (-1 if unknown)
+     */
+    public void write(DataOutput out, int eid) throws IOException {
+        boolean contexts = msgCtx != null && commands != null && msgCtx.length == commands.length && msgCtx.length > 0;
+        boolean mixed = false;
+        if (contexts) {
+            MessageContext first = msgCtx[0];
+            for (MessageContext ctx : msgCtx) {
+                if (ctx.getConsensusId() != first.getConsensusId() || ctx.getTimestamp() != first.getTimestamp()
+                        || ctx.getRegency() != first.getRegency()) {
+                    mixed = true;
+                    break;
+                }
+            }
+            eid = first.getConsensusId();
+        }
+
+        out.writeByte(RECORD_VERSION);
+        out.writeByte((contexts ? HAS_CONTEXTS : 0) | (mixed ? MIXED_CONTEXTS : 0));
+        out.writeInt(eid);
+        out.writeInt(round);
+        out.writeInt(leader);
+        out.writeInt(commands != null ? commands.length : -1);
+        if (contexts) {
+            out.writeLong(msgCtx[0].getTimestamp());
+            out.writeInt(msgCtx[0].getRegency());
+            writeBytes(out, msgCtx[0].getNonces());
+        }
+        if (commands == null) return;
+
+        for (int i = 0; i < commands.length; i++) {
+            writeBytes(out, commands[i]);
+            if (contexts) {
+                out.writeInt(msgCtx[i].getSender());
+                if (mixed) {
+                    out.writeInt(msgCtx[i].getConsensusId());
+                    out.writeLong(msgCtx[i].getTimestamp());
+                    out.writeInt(msgCtx[i].getRegency());
+                    writeBytes(out, msgCtx[i].getNonces());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a log record written by write()
+     */
+    public static CommandsInfo read(DataInput in) throws IOException {
+        CommandsInfo info = new CommandsInfo();
+        info.readRecord(in);
+        return info;
+    }
+
+    /**
+     * Reads a log record from a byte array
+     */
+    public static CommandsInfo fromBytes(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private void readRecord(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != RECORD_VERSION) {
+            throw new IOException("Unknown log record version " + version);
+        }
+        byte flags = in.readByte();
+        boolean contexts = (flags & HAS_CONTEXTS) != 0;
+        boolean mixed = (flags & MIXED_CONTEXTS) != 0;
+        int eid = in.readInt();
+        consensusId = eid;
+        round = in.readInt();
+        leader = in.readInt();
+        int count = in.readInt();
+
+        long timestamp = 0;
+        int regency = 0;
+        byte[] nonces = null;
+        if (contexts) {
+            timestamp = in.readLong();
+            regency = in.readInt();
+            nonces = readBytes(in);
+        }
+        if (count == -1) return;
+        if (count < -1) throw new IOException("Invalid number of commands " + count);
+
+        // the count is not trusted, the lists grow as the commands arrive
+        ArrayList<byte[]> cmds = new ArrayList<byte[]>(Math.min(count, 1024));
+        ArrayList<MessageContext> ctxs = (contexts ? new ArrayList<MessageContext>(Math.min(count, 1024)) : null);
+        for (int i = 0; i < count; i++) {
+            cmds.add(readBytes(in));
+            if (contexts) {
+                int sender = in.readInt();
+                if (mixed) {
+                    int consensusId = in.readInt();
+                    long ts = in.readLong();
+                    int reg = in.readInt();
+                    ctxs.add(new MessageContext(ts, readBytes(in), reg, consensusId, sender, null));
+                } else {
+                    ctxs.add(new MessageContext(timestamp, nonces, regency, eid, sender, null));
+                }
+            }
+        }
+        commands = cmds.toArray(new byte[cmds.size()][]);
+        if (contexts) msgCtx = ctxs.toArray(new MessageContext[ctxs.size()]);
+    }
+
+    /**
+     * @return the consensus of this batch, as written in the record it was
+     * read from, or -1 if it is unknown (e.g., the batch was not read from a
+     * record)
+     */
+    public int getConsensusId() {
+        return consensusId;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out, -1);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readRecord(in);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < -1) throw new IOException("Invalid length " + length);
+
+        // a large array grows (at most doubling) as its data arrives, so a
+        // forged length cannot allocate much more than what was sent
+        byte[] bytes = new byte[Math.min(length, CHUNK)];
+        int read = 0;
+        while (true) {
+            in.readFully(bytes, read, bytes.length - read);
+            read = bytes.length;
+            if (read == length) return bytes;
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof CommandsInfo) {
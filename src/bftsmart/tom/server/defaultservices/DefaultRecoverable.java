@@ -18,11 +18,11 @@
  */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -33,6 +33,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
 
 /**
  *
@@ -40,22 +41,19 @@ import bftsmart.tom.util.Logger;
  */
 public abstract class DefaultRecoverable implements Recoverable, BatchExecutable {
 
+    private static final int REPLAY_BATCH = 4096; // maximum number of commands per appExecuteBatch() while replaying
+    private static final long REPLAY_PROGRESS = 1000000000L; // interval between replay progress reports, in nanoseconds
+
     private int checkpointPeriod;
+    private int replicaCkpIndex; // consensus of the period (eid % checkpointPeriod) after which the checkpoint is taken
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     private TOMConfiguration config;
-    private MessageDigest md;
     private StateLog log;
     private StateManager stateManager;
+    private volatile boolean replaying = false;
 
     public DefaultRecoverable() {
-
-        try {
-            md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-        } catch (NoSuchAlgorithmException ex) {
-            java.util.logging.Logger.getLogger(DefaultRecoverable.class.getName()).log(Level.SEVERE, null, ex);
-        }
     }
 
     public byte[][] executeBatch(byte[][] commands, MessageContext[] msgCtxs) {
@@ -155,12 +153,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     }
 
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return TOMUtil.computeHash(data);
     }
 
     private StateLog getLog() {
@@ -258,46 +251,187 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     + lastCheckpointEid + " to EID " + lastEid);
 
             stateLock.lock();
-            if (state.getSerializedState() != null) {
-                System.out.println("The state is not null. Will install it");
-                log.update(state);
-                installSnapshot(state.getSerializedState());
-            }
+            replaying = true;
+            try {
+                if (state.getSerializedState() != null) {
+                    System.out.println("The state is not null. Will install it");
+                    log.update(state);
+                    installSnapshot(state.getSerializedState());
+                }
 
-            // INUTIL??????
-            //tomLayer.lm.addLeaderInfo(lastCheckpointEid, state.getLastCheckpointRound(),
-            //        state.getLastCheckpointLeader());
+                // INUTIL??????
+                //tomLayer.lm.addLeaderInfo(lastCheckpointEid, state.getLastCheckpointRound(),
+                //        state.getLastCheckpointLeader());
 
-            for (int eid = lastCheckpointEid + 1; eid <= lastEid; eid++) {
-                try {
+                List<byte[]> pending = new ArrayList<byte[]>(REPLAY_BATCH);
+                for (int eid = lastCheckpointEid + 1; eid <= lastEid; eid++) {
+                    try {
 
-                    bftsmart.tom.util.Logger.println("(DefaultRecoverable.setState) interpreting and verifying batched requests for eid " + eid);
-                    if (state.getMessageBatch(eid) == null) {
-                        System.out.println("(DefaultRecoverable.setState) " + eid + " NULO!!!");
-                    }
+                        bftsmart.tom.util.Logger.println("(DefaultRecoverable.setState) interpreting and verifying batched requests for eid " + eid);
+                        if (state.getMessageBatch(eid) == null) {
+                            System.out.println("(DefaultRecoverable.setState) " + eid + " NULO!!!");
+                        }
 
-                    byte[][] commands = state.getMessageBatch(eid).commands; // take a batch
+                        byte[][] commands = state.getMessageBatch(eid).commands; // take a batch
                     
-                    if (commands == null || commands.length <= 0) {
-                        continue;
-                    }
-                    appExecuteBatch(commands, null);
-                } catch (Exception e) {
-                    e.printStackTrace(System.err);
-                    if (e instanceof ArrayIndexOutOfBoundsException) {
-                        System.out.println("Eid do ultimo checkpoint: " + state.getLastCheckpointEid());
-                        System.out.println("Eid do ultimo consenso: " + state.getLastEid());
-                        System.out.println("numero de mensagens supostamente no batch: " + (state.getLastEid() - state.getLastCheckpointEid() + 1));
-                        System.out.println("numero de mensagens realmente no batch: " + state.getMessageBatches().length);
+                        if (commands == null || commands.length <= 0) {
+                            continue;
+                        }
+                        replayCommands(pending, commands);
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                        if (e instanceof ArrayIndexOutOfBoundsException) {
+                            System.out.println("Eid do ultimo checkpoint: " + state.getLastCheckpointEid());
+                            System.out.println("Eid do ultimo consenso: " + state.getLastEid());
+                            System.out.println("numero de mensagens supostamente no batch: " + (state.getLastEid() - state.getLastCheckpointEid() + 1));
+                            System.out.println("numero de mensagens realmente no batch: " + state.getMessageBatches().length);
+                        }
                     }
+
                 }
+                flushReplay(pending);
+            } finally {
+                replaying = false;
+                stateLock.unlock();
+            }
+
+        }
+
+        return lastEid;
+    }
 
+    /**
+     * Indicates if the commands being executed are replayed from a log, either
+     * after a state transfer or when the replica restarts. In that case
+     * appExecuteBatch() is called without message contexts, possibly with the
+     * commands of several consensus at once, and its replies are discarded,
+     * so the application may skip building them.
+     *
+     * @return true if the commands being executed are being replayed
+     */
+    protected boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Adds the commands of a logged batch to those to be replayed, executing
+     * them once there are enough to make a large batch
+     */
+    private void replayCommands(List<byte[]> pending, byte[][] commands) {
+        for (byte[] command : commands) {
+            pending.add(command);
+        }
+        if (pending.size() >= REPLAY_BATCH) {
+            flushReplay(pending);
+        }
+    }
+
+    private void flushReplay(List<byte[]> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            appExecuteBatch(pending.toArray(new byte[pending.size()][]), null);
+        } finally {
+            // never executed again, even if the application failed
+            pending.clear();
+        }
+    }
+
+    /**
+     * Recovers the state kept in disk when the replica restarts. The last
+     * checkpoint is installed and the log is then replayed as it is read from
+     * disk, instead of being loaded into memory first. Afterwards, a new
+     * checkpoint is taken, so that the recovered state is durable and the log
+     * does not have to be replayed again.
+     *
+     * If the log can not be read to its end, the batches read up to then are
+     * still executed, but no checkpoint is taken, and the rest of the state
+     * is to be obtained from the other replicas.
+     *
+     * @param diskLog the log kept in disk
+     * @return the last consensus recovered, or -1 if there was nothing to recover
+     */
+    private int recoverDurableState(DiskStateLog diskLog) {
+        DefaultApplicationState checkpoint = diskLog.loadDurableCheckpoint();
+        int lastEid = checkpoint.getLastCheckpointEid();
+        int batches = 0;
+        boolean complete = true;
+        long start = System.nanoTime();
+
+        stateLock.lock();
+        replaying = true;
+        try {
+            if (checkpoint.getSerializedState() != null) {
+                System.out.println("--- Installing checkpoint of EID " + lastEid);
+                installSnapshot(checkpoint.getSerializedState());
             }
+
+            List<byte[]> pending = new ArrayList<byte[]>(REPLAY_BATCH);
+            try {
+                FileRecoverer.LogReader reader = diskLog.openDurableLog();
+                if (reader != null) {
+                    try {
+                        long lastReport = start;
+                        CommandsInfo batch;
+                        while ((batch = reader.next()) != null) {
+                            int eid = getConsensusId(batch, lastEid);
+                            if (eid <= lastEid) continue; // already in the checkpoint
+
+                            if (batch.commands != null && batch.commands.length > 0) {
+                                replayCommands(pending, batch.commands);
+                            }
+                            lastEid = eid;
+                            batches++;
+
+                            long now = System.nanoTime();
+                            if (now - lastReport >= REPLAY_PROGRESS) {
+                                System.out.println("--- Replayed " + batches + " batches ("
+                                        + (reader.getLength() > 0 ? 100 * reader.getPosition() / reader.getLength() : 100)
+                                        + "% of the log), up to EID " + lastEid);
+                                lastReport = now;
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Log replay was aborted due to an unexpected exception, recovering up to EID " + lastEid);
+                e.printStackTrace();
+                complete = false;
+            }
+            // the batches read before an error are complete, so they are executed too
+            flushReplay(pending);
+        } finally {
+            replaying = false;
             stateLock.unlock();
+        }
 
+        System.out.println("--- Replayed " + batches + " batches in " + (System.nanoTime() - start) / 1000000
+                + " ms. Recovered up to EID " + lastEid);
+
+        if (complete && batches > 0) {
+            stateLock.lock();
+            byte[] snapshot = getSnapshot();
+            stateLock.unlock();
+            saveState(snapshot, lastEid, 0, 0);
         }
+        return (checkpoint.getSerializedState() != null || batches > 0 ? lastEid : -1);
+    }
 
-        return lastEid;
+    /**
+     * @return the consensus of a batch read from the log, or the one after the
+     * previous batch if the record does not tell it
+     */
+    private static int getConsensusId(CommandsInfo batch, int previous) {
+        int eid = batch.getConsensusId();
+        if (batch.msgCtx != null) {
+            for (MessageContext ctx : batch.msgCtx) {
+                eid = Math.max(eid, ctx.getConsensusId());
+            }
+        }
+        return (eid > -1 ? eid : previous + 1);
     }
 
     /**
@@ -340,10 +474,10 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             throw new IllegalArgumentException();
         }
         int firstEid = eids[0];
-        if ((firstEid + 1) % checkpointPeriod == 0) {
+        if (firstEid % checkpointPeriod == replicaCkpIndex) {
             return eidPosition(eids, firstEid);
         } else {
-            int nextCkpIndex = (((firstEid / checkpointPeriod) + 1) * checkpointPeriod) - 1;
+            int nextCkpIndex = firstEid + (replicaCkpIndex - (firstEid % checkpointPeriod) + checkpointPeriod) % checkpointPeriod;
             if (nextCkpIndex <= eids[eids.length - 1]) {
                 return eidPosition(eids, nextCkpIndex);
             }
@@ -351,6 +485,54 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return -1;
     }
 
+    /**
+     * Computes the consensus of each checkpoint period after which this
+     * replica takes its checkpoint. Without staggered checkpoints, all
+     * replicas take it at the end of the period; otherwise each one takes it
+     * at a different portion of the period (as in DurabilityCoordinator), so
+     * that they do not all stop to serialize their state at the same time.
+     *
+     * @return the index, in the checkpoint period, of the checkpoint consensus
+     */
+    private int getCheckpointPortionIndex() {
+        if (!config.staggerCheckpoints()) {
+            return checkpointPeriod - 1;
+        }
+        int n = config.getN();
+        return Math.max(0, ((checkpointPeriod / n) * ((config.getProcessId() % n) + 1)) - 1);
+    }
+
+    /**
+     * Computes the hash of the state that results from installing a checkpoint
+     * and executing its log, without keeping it: the current state of the
+     * application is restored afterwards, and neither the log nor the
+     * checkpoints on disk are touched. Used by the state transfer protocol to
+     * validate a checkpoint, before installing it, against the checkpoint of
+     * a replica that took it at a different consensus.
+     *
+     * @param state The checkpoint and the batches to execute, up to state.getLastEid()
+     * @return the hash of the snapshot of the application after executing the batches
+     */
+    public byte[] computeStateHash(DefaultApplicationState state) {
+        stateLock.lock();
+        byte[] current = getSnapshot();
+        replaying = true;
+        try {
+            installSnapshot(state.getSerializedState());
+            List<byte[]> pending = new ArrayList<byte[]>(REPLAY_BATCH);
+            for (int eid = state.getLastCheckpointEid() + 1; eid <= state.getLastEid(); eid++) {
+                byte[][] commands = state.getMessageBatch(eid).commands;
+                if (commands != null && commands.length > 0) replayCommands(pending, commands);
+            }
+            flushReplay(pending);
+            return computeHash(getSnapshot());
+        } finally {
+            installSnapshot(current);
+            replaying = false;
+            stateLock.unlock();
+        }
+    }
+
     /**
      * Iterates over the message contexts to retrieve the index of the last
      * command executed prior to the checkpoint. That index is used by the state
@@ -382,6 +564,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         this.config = replicaContext.getStaticConfiguration();
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
+            replicaCkpIndex = getCheckpointPortionIndex();
             byte[] state = getSnapshot();
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
@@ -390,11 +573,12 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 boolean syncCkp = config.isToWriteSyncCkp();
                 log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
 
-                ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
-                if (storedState.getLastEid() > 0) {
-                    setState(storedState);
-                    getStateManager().setLastEID(storedState.getLastEid());
+                int lastEid = recoverDurableState((DiskStateLog) log);
+                if (lastEid > 0) {
+                    getStateManager().setLastEID(lastEid);
                 }
+            } else if (config.logOffHeap()) {
+                log = new OffHeapStateLog(checkpointPeriod, config.getLogOffHeapMax(), state, computeHash(state));
             } else {
                 log = new StateLog(checkpointPeriod, state, computeHash(state));
             }
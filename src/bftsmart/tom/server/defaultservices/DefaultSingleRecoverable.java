@@ -15,12 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -31,6 +28,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.SingleExecutable;
 import bftsmart.tom.util.Logger;
+import bftsmart.tom.util.TOMUtil;
 
 /**
  *
@@ -41,12 +39,11 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	protected ReplicaContext replicaContext;
     private TOMConfiguration config;
 	private int checkpointPeriod;
+	private int replicaCkpIndex; // consensus of the period (eid % checkpointPeriod) at which the checkpoint is taken
 
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     
-    private MessageDigest md;
         
     private StateLog log;
     private List<byte[]> commands = new ArrayList<byte[]>();
@@ -54,12 +51,6 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     private StateManager stateManager;
     
     public DefaultSingleRecoverable() {
-
-        try {
-            md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-        } catch (NoSuchAlgorithmException ex) {
-            java.util.logging.Logger.getLogger(DefaultSingleRecoverable.class.getName()).log(Level.SEVERE, null, ex);
-        }
     }
     
     public byte[] executeOrdered(byte[] command, MessageContext msgCtx) {
@@ -83,7 +74,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         commands.add(command);
         
         if(msgCtx.isLastInBatch()) {
-	        if ((eid > 0) && ((eid % checkpointPeriod) == 0)) {
+	        if ((eid > 0) && ((eid % checkpointPeriod) == replicaCkpIndex)) {
 	            Logger.println("(DefaultSingleRecoverable.executeOrdered) Performing checkpoint for consensus " + eid);
 	            stateLock.lock();
 	            byte[] snapshot = getSnapshot();
@@ -99,12 +90,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     }
     
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return TOMUtil.computeHash(data);
     }
     
     private StateLog getLog() {
@@ -228,6 +214,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	protected void initLog() {
     	if(log == null) {
     		checkpointPeriod = config.getCheckpointPeriod();
+    		replicaCkpIndex = getCheckpointPortionIndex();
             byte[] state = getSnapshot();
             if(config.isToLog() && config.logToDisk()) {
             	int replicaId = config.getProcessId();
@@ -235,11 +222,60 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
             	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
-            } else
+            } else if (config.logOffHeap())
+            	log = new OffHeapStateLog(checkpointPeriod, config.getLogOffHeapMax(), state, computeHash(state));
+            else
             	log = new StateLog(checkpointPeriod, state, computeHash(state));
     	}
 	}
     
+    /**
+     * Computes the consensus of each checkpoint period at which this replica
+     * takes its checkpoint. Without staggered checkpoints, all replicas take
+     * it at the first consensus of the period; otherwise each one takes it at
+     * a different portion of the period, so that they do not all stop to
+     * serialize their state at the same time.
+     *
+     * @return the index, in the checkpoint period, of the checkpoint consensus
+     */
+    private int getCheckpointPortionIndex() {
+        if (!config.staggerCheckpoints()) {
+            return 0;
+        }
+        int n = config.getN();
+        return Math.max(0, ((checkpointPeriod / n) * ((config.getProcessId() % n) + 1)) - 1);
+    }
+
+    /**
+     * Computes the hash of the state that results from installing a checkpoint
+     * and executing its log, without keeping it: the current state of the
+     * application is restored afterwards, and neither the log nor the
+     * checkpoints on disk are touched. Used by the state transfer protocol to
+     * validate a checkpoint, before installing it, against the checkpoint of
+     * a replica that took it at a different consensus.
+     *
+     * @param state The checkpoint and the batches to execute, up to state.getLastEid()
+     * @return the hash of the snapshot of the application after executing the batches
+     */
+    public byte[] computeStateHash(DefaultApplicationState state) {
+        stateLock.lock();
+        byte[] current = getSnapshot();
+        try {
+            installSnapshot(state.getSerializedState());
+            for (int eid = state.getLastCheckpointEid() + 1; eid <= state.getLastEid(); eid++) {
+                byte[][] commands = state.getMessageBatch(eid).commands;
+                if (commands == null) continue;
+                for (byte[] command : commands) {
+                    appExecuteOrdered(command, null);
+                }
+            }
+            return computeHash(getSnapshot());
+        } finally {
+            installSnapshot(current);
+            stateLock.unlock();
+        }
+    }
+
     @Override
     public void noOp(int lastEid) {
         
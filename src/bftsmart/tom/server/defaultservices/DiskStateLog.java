@@ -16,10 +16,10 @@ limitations under the License.
 package bftsmart.tom.server.defaultservices;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -27,8 +27,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
-import bftsmart.statemanagement.ApplicationState;
-
 public class DiskStateLog extends StateLog {
 
 	private int id;
@@ -45,6 +43,7 @@ public class DiskStateLog extends StateLog {
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+	private ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
@@ -90,22 +89,21 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
+			// [size][record][EOF][consensusId], the size being filled in after the record is written
+			recordBuffer.reset();
+			DataOutputStream dos = new DataOutputStream(recordBuffer);
+			dos.writeInt(0);
+			commandsInfo.write(dos, consensusId);
+			int size = recordBuffer.size() - INT_BYTE_SIZE;
+			dos.writeInt(EOF);
+			dos.writeInt(consensusId);
+			dos.flush();
+
+			byte[] bytes = recordBuffer.toByteArray();
+			ByteBuffer.wrap(bytes).putInt(0, size);
+
+			log.write(bytes);
 			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
 													// the EOF mark
 		} catch (IOException e) {
@@ -262,27 +260,36 @@ public class DiskStateLog extends StateLog {
 		setLastCheckpointEid(transState.getLastCheckpointEid());
 	}
 	
-	protected ApplicationState loadDurableState() {
+	/**
+	 * Loads the last checkpoint kept in disk, but not the log, which is to be
+	 * read with openDurableLog() while it is replayed
+	 * 
+	 * @return the last checkpoint, without the batches of the log
+	 */
+	protected DefaultApplicationState loadDurableCheckpoint() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
 		logPath = fr.getLatestFile(".log");
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
-		CommandsInfo[] log = null;
-		if(logPath !=null)
-			log = fr.getLogState(0, logPath);
-		int ckpLastConsensusId = fr.getCkpLastConsensusId();
-		int logLastConsensusId = fr.getLogLastConsensusId();
-		System.out.println("log last consensus di: " + logLastConsensusId);
-		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId, -1, -1,
-				logLastConsensusId, checkpoint, fr.getCkpStateHash());
-		if(logLastConsensusId > ckpLastConsensusId) {
-			super.setLastEid(logLastConsensusId);
-		} else
-			super.setLastEid(ckpLastConsensusId);
+		// without a checkpoint, the log starts at the first consensus
+		int ckpLastConsensusId = (checkpoint != null ? fr.getCkpLastConsensusId() : -1);
+		super.setLastEid(ckpLastConsensusId);
 		super.setLastCheckpointEid(ckpLastConsensusId);
-		
-		return state;
+		return new DefaultApplicationState(null, ckpLastConsensusId, -1, -1,
+				ckpLastConsensusId, checkpoint, fr.getCkpStateHash());
+	}
+
+	/**
+	 * Opens the log kept in disk, found by loadDurableCheckpoint(), to read
+	 * its batches one at a time
+	 * 
+	 * @return a reader of the log, or null if there is no log
+	 */
+	protected FileRecoverer.LogReader openDurableLog() throws IOException {
+		if(logPath == null)
+			return null;
+		return new FileRecoverer(id, DEFAULT_DIR).openLog(logPath);
 	}
 }
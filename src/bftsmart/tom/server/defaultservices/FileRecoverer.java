@@ -15,11 +15,13 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
@@ -308,11 +310,7 @@ public class FileRecoverer {
 							byte[] bytes = new byte[size];
 							int read = log.read(bytes);
 							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
+								state.add(CommandsInfo.fromBytes(bytes));
 								if (++recoveredBatches == endOffset) {
 									System.out.println("read all " + endOffset + " log messages");
 									return state.toArray(new CommandsInfo[state.size()]);
@@ -366,8 +364,7 @@ public class FileRecoverer {
 			int index = 0;
 			while(index < startOffset) {
 				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
+				log.seek(log.getFilePointer() + size);
 				index++;
 			}
 
@@ -381,12 +378,7 @@ public class FileRecoverer {
 							byte[] bytes = new byte[size];
 							int read = log.read(bytes);
 							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-
-								state.add((CommandsInfo) ois.readObject());
+								state.add(CommandsInfo.fromBytes(bytes));
 
 								if (++recoveredBatches == number) {
 									return state.toArray(new CommandsInfo[state.size()]);
@@ -419,6 +411,95 @@ public class FileRecoverer {
 		return null;
 	}
 
+	/**
+	 * Opens a log file to read its records one at a time, as they are needed,
+	 * instead of recovering the whole log into memory
+	 * @param logPath the log file
+	 * @return a reader positioned at the first record of the log
+	 */
+	public LogReader openLog(String logPath) throws IOException {
+		System.out.println("STREAMING LOG FROM " + logPath);
+		return new LogReader(logPath);
+	}
+
+	/**
+	 * Sequential reader of the records of a log file. The log is read through
+	 * a buffered stream, and a record that was not completely written (e.g.,
+	 * because of a crash) ends it.
+	 */
+	public static class LogReader implements Closeable {
+
+		private static final int BUFFER_SIZE = 1024 * 1024;
+
+		private final DataInputStream in;
+		private final long length;
+		private long position = 0;
+		private int lastConsensusId = -1;
+		private boolean finished = false;
+
+		private LogReader(String logPath) throws IOException {
+			File file = new File(logPath);
+			this.length = file.length();
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		/**
+		 * @return the next batch of the log, or null if there are no more
+		 */
+		public CommandsInfo next() throws IOException {
+			if (finished || position + 4 > length) {
+				finished = true;
+				return null;
+			}
+			int size = in.readInt();
+			position += 4;
+			if (size <= 0) {
+				// end of the log, followed by its last consensus
+				if (position + 4 <= length) {
+					lastConsensusId = in.readInt();
+					position += 4;
+				}
+				finished = true;
+				return null;
+			}
+			if (position + size > length) {
+				System.out.println("Discarding incomplete record at the end of the log");
+				finished = true;
+				return null;
+			}
+			byte[] bytes = new byte[size];
+			in.readFully(bytes);
+			position += size;
+			return CommandsInfo.fromBytes(bytes);
+		}
+
+		/**
+		 * @return the number of bytes of the log already read
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the size of the log file, in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the last consensus written to the log, or -1 if its end was not reached yet
+		 */
+		public int getLastConsensusId() {
+			return lastConsensusId;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
 	public String getLatestFile(String extention) {
 		File directory = new File(defaultDir);
 		String latestFile = null;
@@ -0,0 +1,296 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * State log that keeps the batches received since the last checkpoint outside
+ * of the Java heap.
+ *
+ * Batches are written one after the other, as the records of CommandsInfo,
+ * in a list of fixed-size direct buffers (the chunks), and only their offsets
+ * are kept in the heap. The garbage collector therefore never has to trace
+ * (or promote) the requests of a checkpoint period, which allows large
+ * periods to be used without long collection pauses. At each checkpoint the
+ * whole log is discarded at once by rewinding it; the chunks are reused by
+ * the next period. Growing the log never copies what was already written,
+ * and it cannot grow beyond a maximum size: a batch that does not fit makes
+ * addMessageBatch() fail with an IllegalStateException, leaving the log as it
+ * was before that batch.
+ *
+ * Appending a batch encodes it straight into the chunks, on the delivery
+ * thread, so it costs about the time of copying the batch: e.g., ~80us for
+ * 400 requests of 1KB and ~16us for 400 requests of 100 bytes
+ * (offheapstatelog.append in CoreBenchmarks), against a few nanoseconds for
+ * StateLog, which only keeps a reference to the batch.
+ *
+ * Batches are decoded back to CommandsInfo only when they are requested,
+ * i.e., when the log is sent to (or queried by) the state transfer protocol.
+ */
+public class OffHeapStateLog extends StateLog {
+
+    /** Default maximum size of the log, in bytes */
+    public static final long DEFAULT_MAX_SIZE = 2048L * 1024 * 1024;
+
+    private static final int CHUNK = 4 * 1024 * 1024;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private final long maxSize;
+    private long[] offsets; // offsets[i] is where batch i starts, offsets[count] where the next one will
+    private int count; // number of batches in the log
+
+    private final ChunkOutputStream output = new ChunkOutputStream();
+    private final DataOutputStream dataOutput = new DataOutputStream(output);
+
+    /**
+     * Constructs an off-heap state log
+     * @param k The checkpoint period
+     */
+    public OffHeapStateLog(int k, byte[] initialState, byte[] initialHash) {
+        this(k, DEFAULT_MAX_SIZE, initialState, initialHash);
+    }
+
+    /**
+     * Constructs an off-heap state log
+     * @param k The checkpoint period
+     * @param maxSize The maximum number of bytes used by the batches since the last checkpoint
+     */
+    public OffHeapStateLog(int k, long maxSize, byte[] initialState, byte[] initialHash) {
+        super(initialState, initialHash);
+        this.maxSize = maxSize;
+        this.offsets = new long[k + 1];
+        this.count = 0;
+    }
+
+    @Override
+    public void newCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
+        super.newCheckpoint(state, stateHash, lastConsensusId);
+        count = 0;
+    }
+
+    @Override
+    public void addMessageBatch(byte[][] commands, int round, int leader, int lastConsensusId) {
+        append(new CommandsInfo(commands, round, leader), lastConsensusId);
+        setLastEid(lastConsensusId);
+    }
+
+    private void append(CommandsInfo batch, int eid) {
+        // a record that does not fit is not counted, so the next one overwrites it
+        output.reset(offsets[count]);
+        try {
+            batch.write(dataOutput, eid);
+            dataOutput.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Off-heap state log full (" + offsets[count] + " bytes since the last checkpoint, "
+                    + "the limit is " + maxSize + "): raise system.totalordermulticast.log_offheap_max or lower "
+                    + "the checkpoint period", e);
+        }
+
+        // more than k batches may be kept after installing a checkpoint taken by another replica
+        if (count == offsets.length - 1) offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        count++;
+        offsets[count] = output.position();
+    }
+
+    private CommandsInfo decode(int index) {
+        try {
+            return CommandsInfo.read(new DataInputStream(new ChunkInputStream(offsets[index], offsets[index + 1])));
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupted state log record " + index, e);
+        }
+    }
+
+    @Override
+    public CommandsInfo getMessageBatch(int eid) {
+        int index = eid - getLastCheckpointEid() - 1;
+        if (eid > getLastCheckpointEid() && eid <= getLastEid() && index < count) {
+            return decode(index);
+        }
+        else return null;
+    }
+
+    @Override
+    public CommandsInfo[] getMessageBatches() {
+        CommandsInfo[] batches = new CommandsInfo[count];
+        for (int i = 0; i < count; i++) batches[i] = decode(i);
+        return batches;
+    }
+
+    @Override
+    public int getNumBatches() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes used by the batches since the last checkpoint
+     */
+    public long getLogSize() {
+        return offsets[count];
+    }
+
+    @Override
+    public DefaultApplicationState getApplicationState(int eid, boolean setState) {
+        System.out.println("--- Eid requested: " + eid + ". Last checkpoint: " + getLastCheckpointEid() + ". Last EID: " + getLastEid());
+
+        if (eid >= getLastCheckpointEid() && eid <= getLastEid()) {
+            System.out.println("--- Constructing ApplicationState up until EID " + eid);
+
+            CommandsInfo[] batches = null;
+            int size = Math.min(eid - getLastCheckpointEid(), count);
+            if (size > 0) {
+                batches = new CommandsInfo[size];
+                for (int i = 0; i < size; i++) batches[i] = decode(i);
+            }
+            return new DefaultApplicationState(batches, getLastCheckpointEid(), getLastCheckpointRound(),
+                    getLastCheckpointLeader(), eid, (setState ? getState() : null), getStateHash());
+        }
+        else return null;
+    }
+
+    @Override
+    public void update(DefaultApplicationState transState) {
+        newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointEid());
+
+        CommandsInfo[] batches = transState.getMessageBatches();
+        if (batches != null) {
+            int eid = transState.getLastCheckpointEid();
+            for (int i = 0; i < batches.length; i++) {
+                append(batches[i], ++eid);
+            }
+        }
+
+        setLastCheckpointEid(transState.getLastCheckpointEid());
+        setLastEid(transState.getLastEid());
+    }
+
+    /**
+     * Writes to the chunks, from a given position on, allocating them when
+     * needed. Small writes (e.g., the fields of a record) are gathered in a
+     * heap buffer first; unlike in a BufferedOutputStream, nothing is
+     * synchronized.
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        private static final int BUFFER = 8192;
+
+        private final byte[] buffer = new byte[BUFFER];
+        private int buffered = 0;
+        private long position; // where the buffered bytes go
+        private ByteBuffer current; // view of the chunk being written
+        private int currentIndex = -1;
+
+        void reset(long position) {
+            this.position = position;
+            this.buffered = 0;
+        }
+
+        long position() {
+            return position + buffered;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffered == BUFFER) flush();
+            buffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len < BUFFER) {
+                if (buffered + len > BUFFER) flush();
+                System.arraycopy(b, off, buffer, buffered, len);
+                buffered += len;
+            } else {
+                flush();
+                copy(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            copy(buffer, 0, buffered);
+            buffered = 0;
+        }
+
+        private void copy(byte[] data, int off, int len) throws IOException {
+            if (position + len > maxSize) throw new IOException("Off-heap state log full");
+
+            while (len > 0) {
+                int index = (int) (position / CHUNK);
+                if (index != currentIndex) {
+                    if (index == chunks.size()) chunks.add(ByteBuffer.allocateDirect(CHUNK));
+                    current = chunks.get(index).duplicate();
+                    currentIndex = index;
+                }
+
+                current.position((int) (position % CHUNK));
+                int n = Math.min(len, current.remaining());
+                current.put(data, off, n);
+                off += n;
+                len -= n;
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the chunks, without copying it first
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private long position;
+        private final long end;
+
+        ChunkInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) return -1;
+            int b = chunks.get((int) (position / CHUNK)).get((int) (position % CHUNK)) & 0xFF;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (position >= end) return -1;
+
+            ByteBuffer chunk = chunks.get((int) (position / CHUNK)).duplicate();
+            chunk.position((int) (position % CHUNK));
+            len = (int) Math.min(Math.min(len, end - position), chunk.remaining());
+            chunk.get(b, off, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.util.Arrays;
+
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.DefaultApplicationState;
 
@@ -184,16 +186,17 @@ public class StateLog {
     /**
      * Adds a message batch to the log. This batches should be added to the log
      * in the same order in which they are delivered to the application. Only
-     * the 'k' batches received after the last checkpoint are supposed to be kept
+     * the 'k' batches received after the last checkpoint are supposed to be kept,
+     * but more are kept if needed (e.g., after a checkpoint taken by another
+     * replica, with staggered checkpoints, is installed)
      * @param commands The batch of messages to be kept.
      * @param round the round in which the messages were ordered
      * @param leader the leader by the moment the messages were ordered
      */
     public void addMessageBatch(byte[][] commands, int round, int leader, int lastConsensusId) {
-        if (position < messageBatches.length) {
-            messageBatches[position] = new CommandsInfo(commands, round, leader);
-            position++;
-        }
+        ensureCapacity(position + 1);
+        messageBatches[position] = new CommandsInfo(commands, round, leader);
+        position++;
         setLastEid(lastConsensusId);
     }
 
@@ -263,6 +266,7 @@ public class StateLog {
 
         position = 0;
         if (transState.getMessageBatches() != null) {
+            ensureCapacity(transState.getMessageBatches().length);
             for (int i = 0; i < transState.getMessageBatches().length; i++, position = i) {
                 this.messageBatches[i] = transState.getMessageBatches()[i];
             }
@@ -277,4 +281,10 @@ public class StateLog {
         this.lastEid = transState.getLastEid();
     }
 
+    private void ensureCapacity(int batches) {
+        if (batches > messageBatches.length) {
+            messageBatches = Arrays.copyOf(messageBatches, Math.max(batches, 2 * messageBatches.length));
+        }
+    }
+
 }
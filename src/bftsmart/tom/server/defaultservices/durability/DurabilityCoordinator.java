@@ -15,11 +15,8 @@ limitations under the License.
  */
 package bftsmart.tom.server.defaultservices.durability;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 
 import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.statemanagement.ApplicationState;
@@ -50,13 +47,10 @@ import bftsmart.tom.util.TOMUtil;
 public abstract class DurabilityCoordinator implements Recoverable, BatchExecutable {
 
 	private ReentrantLock logLock = new ReentrantLock();
-	private ReentrantLock hashLock = new ReentrantLock();
 	private ReentrantLock stateLock = new ReentrantLock();
 
 	private TOMConfiguration config;
 
-	private MessageDigest md;
-
 	private DurableStateLog log;
 
 	private StateManager stateManager;
@@ -67,11 +61,6 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	private int replicaCkpIndex;
 
 	public DurabilityCoordinator() {
-		try {
-			md = MessageDigest.getInstance("MD5"); // TODO: shouldn't it be SHA?
-		} catch (NoSuchAlgorithmException ex) {
-			java.util.logging.Logger.getLogger(DurabilityCoordinator.class.getName()).log(Level.SEVERE, null, ex);
-		}
 	}
 
 	@Override
@@ -265,11 +254,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	}
 
 	private final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-		return ret;
+		return TOMUtil.computeHash(data);
 	}
 
 	private void saveState(byte[] snapshot, int lastEid, int decisionRound, int leader) {
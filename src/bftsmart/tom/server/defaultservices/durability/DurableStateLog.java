@@ -16,10 +16,10 @@ limitations under the License.
 package bftsmart.tom.server.defaultservices.durability;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -52,6 +52,7 @@ public class DurableStateLog extends StateLog {
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+	private ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
 	private FileRecoverer fr;
 	
 	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
@@ -96,22 +97,21 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
+			// [size][record][EOF][consensusId], the size being filled in after the record is written
+			recordBuffer.reset();
+			DataOutputStream dos = new DataOutputStream(recordBuffer);
+			dos.writeInt(0);
+			commandsInfo.write(dos, consensusId);
+			int size = recordBuffer.size() - INT_BYTE_SIZE;
+			dos.writeInt(EOF);
+			dos.writeInt(consensusId);
+			dos.flush();
 
-			byte[] batchBytes = bos.toByteArray();
+			byte[] bytes = recordBuffer.toByteArray();
+			ByteBuffer.wrap(bytes).putInt(0, size);
 
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
+			log.write(bytes);
 			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
 													// the EOF mark
 		} catch (IOException e) {
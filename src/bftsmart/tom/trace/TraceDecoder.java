@@ -0,0 +1,113 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Decodes a file written by Tracer.dump(), printing the events of all threads
+ * as a single timeline.
+ *
+ * Usage: java bftsmart.tom.trace.TraceDecoder &lt;file&gt;
+ */
+public class TraceDecoder {
+
+    static final int MAGIC = 0x42465454; // "BFTT"
+    static final short VERSION = 1;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java bftsmart.tom.trace.TraceDecoder <trace file>");
+            System.exit(-1);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+        ArrayList<Event> events = new ArrayList<Event>();
+        long wallClock;
+        long nanoTime;
+        try {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                System.out.println("Not a trace file (or written by an incompatible version): " + args[0]);
+                System.exit(-1);
+            }
+            wallClock = in.readLong();
+            nanoTime = in.readLong();
+
+            int threads = in.readInt();
+            for (int t = 0; t < threads; t++) {
+                String thread = in.readUTF();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    events.add(new Event(thread, in.readLong(), in.readInt(),
+                            in.readLong(), in.readLong(), in.readLong()));
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        Collections.sort(events, new Comparator<Event>() {
+
+            @Override
+            public int compare(Event e1, Event e2) {
+                return (e1.time < e2.time ? -1 : (e1.time == e2.time ? 0 : 1));
+            }
+        });
+
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (Event e : events) {
+            // nanoTime has no origin, so it is converted using the instant of the dump
+            long micros = wallClock * 1000 - (nanoTime - e.time) / 1000;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(format.format(new Date(micros / 1000))).append(String.format("%03d", micros % 1000));
+            sb.append(" [").append(e.thread).append("] ");
+
+            String[] description = TraceEvent.describe(e.event);
+            sb.append(description[0]);
+            long[] fields = {e.a, e.b, e.c};
+            for (int i = 1; i < description.length; i++) {
+                sb.append(' ').append(description[i]).append('=').append(fields[i - 1]);
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static class Event {
+
+        final String thread;
+        final long time;
+        final int event;
+        final long a, b, c;
+
+        Event(String thread, long time, int event, long a, long b, long c) {
+            this.thread = thread;
+            this.time = time;
+            this.event = event;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+    }
+}
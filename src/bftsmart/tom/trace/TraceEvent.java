@@ -0,0 +1,122 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.trace;
+
+/**
+ * Identifiers of the events recorded by the Tracer. The upper half of an
+ * identifier is the subsystem the event belongs to (so an event is only
+ * recorded if its subsystem is enabled), and the lower half distinguishes the
+ * events of the same subsystem. Each event carries up to three numeric fields,
+ * whose meaning is given by the field names below.
+ */
+public final class TraceEvent {
+
+    private TraceEvent() {
+    }
+
+    /* Subsystems */
+    public static final int COMMUNICATION = 1;
+    public static final int CONSENSUS = 1 << 1;
+    public static final int EXECUTION = 1 << 2;
+    public static final int PROPOSER = 1 << 3;
+    public static final int LEADER_CHANGE = 1 << 4;
+
+    static final String[] SUBSYSTEMS = {"communication", "consensus", "execution", "proposer", "leaderchange"};
+
+    /* Communication between replicas (ServerCommunicationSystem) */
+    public static final int MESSAGE_RECEIVED = COMMUNICATION << 16 | 1;
+    public static final int MESSAGE_SENT = COMMUNICATION << 16 | 2;
+    public static final int IN_QUEUE_SIZE = COMMUNICATION << 16 | 3;
+
+    /* Consensus protocol (Acceptor) */
+    public static final int PROPOSE_RECEIVED = CONSENSUS << 16 | 1;
+    public static final int PROPOSE_REJECTED = CONSENSUS << 16 | 2;
+    public static final int WRITE_SENT = CONSENSUS << 16 | 3;
+    public static final int WRITE_RECEIVED = CONSENSUS << 16 | 4;
+    public static final int ACCEPT_SENT = CONSENSUS << 16 | 5;
+    public static final int ACCEPT_RECEIVED = CONSENSUS << 16 | 6;
+    public static final int DECIDED = CONSENSUS << 16 | 7;
+
+    /* Execution manager */
+    public static final int IN_CONTEXT = EXECUTION << 16 | 1;
+    public static final int OUT_OF_CONTEXT = EXECUTION << 16 | 2;
+    public static final int STOPPED = EXECUTION << 16 | 3;
+    public static final int BEYOND_HIGH_MARK = EXECUTION << 16 | 4;
+    public static final int WAITING_STATE = EXECUTION << 16 | 5;
+
+    /* Proposer side of the TOM layer */
+    public static final int REQUEST_DISCARDED = PROPOSER << 16 | 1;
+    public static final int IN_EXEC = PROPOSER << 16 | 2;
+    public static final int WAITING_CONSENSUS = PROPOSER << 16 | 3;
+    public static final int WAITING_REQUESTS = PROPOSER << 16 | 4;
+    public static final int BATCH_WAIT = PROPOSER << 16 | 5;
+    public static final int PROPOSE_CREATED = PROPOSER << 16 | 6;
+    public static final int PROPOSE_INVALID = PROPOSER << 16 | 7;
+    public static final int REQUEST_FORWARDED = PROPOSER << 16 | 8;
+
+    /* Leader change protocol */
+    public static final int TIMEOUT = LEADER_CHANGE << 16 | 1;
+    public static final int STOP_SENT = LEADER_CHANGE << 16 | 2;
+    public static final int STOPDATA_SENT = LEADER_CHANGE << 16 | 3;
+    public static final int SYNC_SENT = LEADER_CHANGE << 16 | 4;
+    public static final int REGENCY_INSTALLED = LEADER_CHANGE << 16 | 5;
+
+    /**
+     * @param event an event identifier
+     * @return the subsystem the event belongs to
+     */
+    public static int subsystemOf(int event) {
+        return event >>> 16;
+    }
+
+    /**
+     * @param event an event identifier
+     * @return the name of the event followed by the names of its fields
+     */
+    public static String[] describe(int event) {
+        switch (event) {
+            case MESSAGE_RECEIVED: return new String[] {"MESSAGE_RECEIVED", "sender", "type", "id"};
+            case MESSAGE_SENT: return new String[] {"MESSAGE_SENT", "targets", "type", "id"};
+            case IN_QUEUE_SIZE: return new String[] {"IN_QUEUE_SIZE", "messages", "size"};
+            case PROPOSE_RECEIVED: return new String[] {"PROPOSE_RECEIVED", "eid", "round", "sender"};
+            case PROPOSE_REJECTED: return new String[] {"PROPOSE_REJECTED", "eid", "sender", "leader"};
+            case WRITE_SENT: return new String[] {"WRITE_SENT", "eid", "round"};
+            case WRITE_RECEIVED: return new String[] {"WRITE_RECEIVED", "eid", "round", "sender"};
+            case ACCEPT_SENT: return new String[] {"ACCEPT_SENT", "eid", "round"};
+            case ACCEPT_RECEIVED: return new String[] {"ACCEPT_RECEIVED", "eid", "round", "sender"};
+            case DECIDED: return new String[] {"DECIDED", "eid", "round"};
+            case IN_CONTEXT: return new String[] {"IN_CONTEXT", "eid", "sender", "lastExec"};
+            case OUT_OF_CONTEXT: return new String[] {"OUT_OF_CONTEXT", "eid", "sender", "lastExec"};
+            case STOPPED: return new String[] {"STOPPED", "eid", "sender"};
+            case BEYOND_HIGH_MARK: return new String[] {"BEYOND_HIGH_MARK", "eid", "sender", "lastExec"};
+            case WAITING_STATE: return new String[] {"WAITING_STATE", "eid", "sender"};
+            case REQUEST_DISCARDED: return new String[] {"REQUEST_DISCARDED", "sender", "sequence"};
+            case IN_EXEC: return new String[] {"IN_EXEC", "from", "to"};
+            case WAITING_CONSENSUS: return new String[] {"WAITING_CONSENSUS", "eid"};
+            case WAITING_REQUESTS: return new String[] {"WAITING_REQUESTS", "eid"};
+            case BATCH_WAIT: return new String[] {"BATCH_WAIT", "pending", "limit"};
+            case PROPOSE_CREATED: return new String[] {"PROPOSE_CREATED", "eid", "requests", "bytes"};
+            case PROPOSE_INVALID: return new String[] {"PROPOSE_INVALID", "request"};
+            case REQUEST_FORWARDED: return new String[] {"REQUEST_FORWARDED", "sender", "sequence", "leader"};
+            case TIMEOUT: return new String[] {"TIMEOUT", "regency"};
+            case STOP_SENT: return new String[] {"STOP_SENT", "regency"};
+            case STOPDATA_SENT: return new String[] {"STOPDATA_SENT", "regency", "leader"};
+            case SYNC_SENT: return new String[] {"SYNC_SENT", "regency"};
+            case REGENCY_INSTALLED: return new String[] {"REGENCY_INSTALLED", "regency", "leader"};
+            default: return new String[] {"EVENT_" + Integer.toHexString(event)};
+        }
+    }
+}
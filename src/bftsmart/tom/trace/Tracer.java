@@ -0,0 +1,263 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records protocol events (an identifier from TraceEvent plus three numeric
+ * fields) in per-thread ring buffers, to be dumped to a binary file and
+ * decoded offline with TraceDecoder.
+ *
+ * Recording an event does not allocate, lock or format anything: it writes
+ * five longs in the buffer of the calling thread. If the subsystem of the
+ * event is disabled, it costs a single volatile read. Subsystems are enabled
+ * with the system.trace.subsystems option and can be changed at runtime over
+ * JMX (bftsmart.trace:type=Tracer).
+ *
+ * At most MAX_BUFFERS buffers are kept. The buffers of threads that ended are
+ * dropped once they are dumped, or earlier (oldest first) when a new thread
+ * needs a buffer and the limit was reached; only then are the buffers of live
+ * threads dropped, so pools of short-lived (or virtual) threads do not make
+ * the tracer grow without bound.
+ */
+public final class Tracer implements TracerMBean {
+
+    private static final int FIELDS = 5; // time, event, a, b, c
+    private static final int MAX_BUFFERS = 128;
+
+    private static volatile int enabled = 0;
+    private static volatile int bufferSize = 16384; // events per thread
+    private static boolean registered = false;
+
+    private static final LinkedList<Buffer> buffers = new LinkedList<Buffer>(); // oldest first
+    private static final ThreadLocal<Buffer> localBuffer = new ThreadLocal<Buffer>() {
+
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer(Thread.currentThread(), bufferSize);
+            synchronized (buffers) {
+                if (buffers.size() >= MAX_BUFFERS) dropOne();
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    private Tracer() {
+    }
+
+    // drops the oldest buffer of a thread that ended or, if there is none,
+    // the oldest buffer (its thread keeps recording, but it is not dumped)
+    private static void dropOne() {
+        for (Iterator<Buffer> it = buffers.iterator(); it.hasNext();) {
+            if (!it.next().isAlive()) {
+                it.remove();
+                return;
+            }
+        }
+        buffers.removeFirst();
+    }
+
+    /**
+     * Records an event, if its subsystem is enabled
+     * @param event the event identifier (see TraceEvent)
+     * @param a first field of the event
+     * @param b second field of the event
+     * @param c third field of the event
+     */
+    public static void trace(int event, long a, long b, long c) {
+        if ((enabled & TraceEvent.subsystemOf(event)) == 0) return;
+        localBuffer.get().add(System.nanoTime(), event, a, b, c);
+    }
+
+    public static void trace(int event, long a, long b) {
+        trace(event, a, b, 0);
+    }
+
+    public static void trace(int event, long a) {
+        trace(event, a, 0, 0);
+    }
+
+    /**
+     * @param subsystems a mask of subsystems (see TraceEvent)
+     * @return true if any of the given subsystems is enabled
+     */
+    public static boolean isEnabled(int subsystems) {
+        return (enabled & subsystems) != 0;
+    }
+
+    /**
+     * Sets the subsystems whose events are recorded and the size of the
+     * buffers created from now on, and exports the tracer over JMX.
+     * @param subsystems comma separated names of the subsystems, "all" or "none"
+     * @param size number of events kept by each thread
+     */
+    public static synchronized void configure(String subsystems, int size) {
+        if (size > 0) bufferSize = size;
+        enabled = parse(subsystems);
+
+        if (!registered) {
+            registered = true;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("bftsmart.trace:type=Tracer");
+                if (!server.isRegistered(name)) server.registerMBean(new Tracer(), name);
+            } catch (Exception ex) {
+                System.out.println("(Tracer.configure) unable to export the tracer: " + ex.getMessage());
+            }
+        }
+    }
+
+    private static int parse(String subsystems) {
+        int mask = 0;
+        if (subsystems == null) return mask;
+        for (String s : subsystems.split(",")) {
+            s = s.trim().toLowerCase();
+            if (s.equals("all")) return -1;
+            for (int i = 0; i < TraceEvent.SUBSYSTEMS.length; i++) {
+                if (TraceEvent.SUBSYSTEMS[i].equals(s)) mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    private static String format(int mask) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < TraceEvent.SUBSYSTEMS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(TraceEvent.SUBSYSTEMS[i]);
+            }
+        }
+        return (sb.length() > 0 ? sb.toString() : "none");
+    }
+
+    /**
+     * Writes the events currently in the buffers of all threads to a file.
+     * Events recorded while the dump is taking place may or may not be in it.
+     * The buffers of threads that ended are dropped after being written.
+     * @param file the name of the file
+     * @throws IOException if the file could not be written
+     */
+    public static void dump(String file) throws IOException {
+        ArrayList<Buffer> dumped;
+        synchronized (buffers) {
+            dumped = new ArrayList<Buffer>(buffers);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(TraceDecoder.MAGIC);
+            out.writeShort(TraceDecoder.VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(System.nanoTime());
+            out.writeInt(dumped.size());
+            for (Buffer buffer : dumped) {
+                buffer.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+
+        synchronized (buffers) {
+            for (Buffer buffer : dumped) {
+                if (!buffer.isAlive()) buffers.remove(buffer);
+            }
+        }
+    }
+
+    @Override
+    public String getSubsystems() {
+        return format(enabled);
+    }
+
+    @Override
+    public void setSubsystems(String subsystems) {
+        enabled = parse(subsystems);
+    }
+
+    @Override
+    public void dumpTo(String file) throws IOException {
+        dump(file);
+    }
+
+    /**
+     * Ring of events of a single thread. Only that thread writes to it; the
+     * dumping thread reads the events up to the last published position.
+     */
+    private static class Buffer {
+
+        private final String thread;
+        private final WeakReference<Thread> owner;
+        private final long[] events;
+        private final int mask;
+        private volatile long count = 0; // events recorded so far
+
+        Buffer(Thread owner, int size) {
+            int capacity = 16;
+            while (capacity < size) capacity <<= 1;
+
+            this.thread = owner.getName();
+            this.owner = new WeakReference<Thread>(owner);
+            this.events = new long[capacity * FIELDS];
+            this.mask = capacity - 1;
+        }
+
+        boolean isAlive() {
+            Thread t = owner.get();
+            return t != null && t.isAlive();
+        }
+
+        void add(long time, int event, long a, long b, long c) {
+            long n = count;
+            int i = (int) (n & mask) * FIELDS;
+            events[i] = time;
+            events[i + 1] = event;
+            events[i + 2] = a;
+            events[i + 3] = b;
+            events[i + 4] = c;
+            count = n + 1;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            long last = count;
+            long first = Math.max(0, last - (mask + 1));
+
+            out.writeUTF(thread);
+            out.writeInt((int) (last - first));
+            for (long n = first; n < last; n++) {
+                int i = (int) (n & mask) * FIELDS;
+                out.writeLong(events[i]);
+                out.writeInt((int) events[i + 1]);
+                out.writeLong(events[i + 2]);
+                out.writeLong(events[i + 3]);
+                out.writeLong(events[i + 4]);
+            }
+        }
+    }
+}
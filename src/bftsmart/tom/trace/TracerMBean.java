@@ -0,0 +1,40 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.trace;
+
+import java.io.IOException;
+
+/**
+ * Management interface of the tracer, exported over JMX
+ */
+public interface TracerMBean {
+
+    /**
+     * @return comma separated names of the subsystems being traced
+     */
+    public String getSubsystems();
+
+    /**
+     * @param subsystems comma separated names of the subsystems to trace, "all" or "none"
+     */
+    public void setSubsystems(String subsystems);
+
+    /**
+     * Writes the recorded events to a file, to be read by TraceDecoder
+     * @param file the name of the file
+     */
+    public void dumpTo(String file) throws IOException;
+}
@@ -0,0 +1,86 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures the cost of the MAC and digest algorithms that can be used by
+ * the replicas, for a given message size. It was used to choose the defaults
+ * of DefaultCryptoProvider.
+ *
+ * Usage: CryptoBenchmark [<message size>] [<iterations>]
+ */
+public class CryptoBenchmark {
+
+    private static final String[] MACS = {"HmacMD5", "HmacSHA1", "HmacSHA256", "HmacSHA512"};
+    private static final String[] HASHES = {"MD5", "SHA-1", "SHA-256", "SHA-512"};
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+        byte[] data = new byte[size];
+        byte[] key = new byte[32];
+        long start, end;
+
+        for (String algorithm : MACS) {
+            Mac mac;
+            try {
+                mac = Mac.getInstance(algorithm);
+            } catch (Exception e) {
+                System.out.println(algorithm + " not available");
+                continue;
+            }
+            mac.init(new SecretKeySpec(key, algorithm));
+
+            for (int i = 0; i < iterations; i++) {
+                mac.doFinal(data);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                mac.doFinal(data);
+            }
+            end = System.nanoTime();
+            System.out.println(iterations + " " + algorithm + " of " + size + " bytes: "
+                    + ((end - start) / 1000000) + "ms (" + ((end - start) / iterations) + "ns/op)");
+        }
+
+        for (String algorithm : HASHES) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (Exception e) {
+                System.out.println(algorithm + " not available");
+                continue;
+            }
+
+            for (int i = 0; i < iterations; i++) {
+                md.digest(data);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                md.digest(data);
+            }
+            end = System.nanoTime();
+            System.out.println(iterations + " " + algorithm + " of " + size + " bytes: "
+                    + ((end - start) / 1000000) + "ms (" + ((end - start) / iterations) + "ns/op)");
+        }
+    }
+}
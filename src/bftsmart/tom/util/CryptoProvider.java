@@ -0,0 +1,92 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Source of the cryptographic engines (MAC, digest and signature) used by the
+ * replicas. Implementations must be thread safe: the engines returned by the
+ * get* methods are owned by the calling thread, so callers never need to
+ * synchronize on them.
+ *
+ * The implementation in use is chosen with the 'system.crypto.provider'
+ * parameter of system.config.
+ */
+public interface CryptoProvider {
+
+    /**
+     * Invoked once, right after instantiation, with the algorithms
+     * defined in the configuration
+     */
+    public void init(String macAlgorithm, String hashAlgorithm, String signatureAlgorithm);
+
+    public String getMacAlgorithm();
+
+    public String getHashAlgorithm();
+
+    public String getSignatureAlgorithm();
+
+    /**
+     * Creates a MAC engine that is owned by the caller (e.g., one per link direction)
+     */
+    public Mac newMac();
+
+    /**
+     * @return the MAC engine of the calling thread (it must be initialized by the caller)
+     */
+    public Mac getMac();
+
+    /**
+     * @return the message digest engine of the calling thread
+     */
+    public MessageDigest getDigest();
+
+    /**
+     * @return the signature engine of the calling thread
+     */
+    public Signature getSignature();
+
+    /**
+     * Computes the MAC of some data using the engine of the calling thread
+     */
+    public byte[] computeMac(SecretKey key, byte[] data);
+
+    /**
+     * Computes the hash of some data using the engine of the calling thread
+     */
+    public byte[] computeHash(byte[] data);
+
+    public byte[] sign(PrivateKey key, byte[] message);
+
+    public boolean verify(PublicKey key, byte[] message, byte[] signature);
+
+    /**
+     * Derives a MAC key from some shared secret (e.g., the result of the
+     * Diffie-Hellman exchange between two replicas)
+     *
+     * @param secret the shared secret
+     * @param label distinguishes different keys derived from the same secret
+     * @return a key suitable for the MAC engines of this provider
+     */
+    public SecretKey deriveKey(byte[] secret, String label);
+}
@@ -0,0 +1,173 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Crypto provider backed by the engines of the installed JCA providers.
+ *
+ * Each thread gets its own MAC, digest and signature engine, so no locking is
+ * needed to use them. The defaults (HmacSHA256, SHA-256 and SHA256withRSA) are
+ * the ones that performed best in CryptoBenchmark on JVMs with SHA intrinsics,
+ * while being considerably stronger than the old HmacMD5/MD5 pair.
+ */
+public class DefaultCryptoProvider implements CryptoProvider {
+
+    public static final String DEFAULT_MAC_ALGORITHM = "HmacSHA256";
+    public static final String DEFAULT_HASH_ALGORITHM = "SHA-256";
+    public static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    private String macAlgorithm = DEFAULT_MAC_ALGORITHM;
+    private String hashAlgorithm = DEFAULT_HASH_ALGORITHM;
+    private String signatureAlgorithm = DEFAULT_SIGNATURE_ALGORITHM;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            return newMac();
+        }
+    };
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(hashAlgorithm);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Hash algorithm " + hashAlgorithm + " not available", ex);
+            }
+        }
+    };
+
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("Signature algorithm " + signatureAlgorithm + " not available", ex);
+            }
+        }
+    };
+
+    @Override
+    public void init(String macAlgorithm, String hashAlgorithm, String signatureAlgorithm) {
+        if (macAlgorithm != null) this.macAlgorithm = macAlgorithm;
+        if (hashAlgorithm != null) this.hashAlgorithm = hashAlgorithm;
+        if (signatureAlgorithm != null) this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    @Override
+    public String getMacAlgorithm() {
+        return macAlgorithm;
+    }
+
+    @Override
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    @Override
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    @Override
+    public Mac newMac() {
+        try {
+            return Mac.getInstance(macAlgorithm);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("MAC algorithm " + macAlgorithm + " not available", ex);
+        }
+    }
+
+    @Override
+    public Mac getMac() {
+        return macs.get();
+    }
+
+    @Override
+    public MessageDigest getDigest() {
+        return digests.get();
+    }
+
+    @Override
+    public Signature getSignature() {
+        return signatures.get();
+    }
+
+    @Override
+    public byte[] computeMac(SecretKey key, byte[] data) {
+        Mac mac = macs.get();
+        try {
+            mac.init(key);
+        } catch (GeneralSecurityException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        return mac.doFinal(data);
+    }
+
+    @Override
+    public byte[] computeHash(byte[] data) {
+        return digests.get().digest(data);
+    }
+
+    @Override
+    public byte[] sign(PrivateKey key, byte[] message) {
+        Signature engine = signatures.get();
+        try {
+            engine.initSign(key);
+            engine.update(message);
+            return engine.sign();
+        } catch (GeneralSecurityException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        Signature engine = signatures.get();
+        try {
+            engine.initVerify(key);
+            engine.update(message);
+            return engine.verify(signature);
+        } catch (GeneralSecurityException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public SecretKey deriveKey(byte[] secret, String label) {
+        MessageDigest md = digests.get();
+        md.reset();
+        md.update(label.getBytes(Charset.forName("UTF-8")));
+        md.update(secret);
+        return new SecretKeySpec(md.digest(), macAlgorithm);
+    }
+}
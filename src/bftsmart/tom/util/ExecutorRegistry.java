@@ -0,0 +1,230 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * The threads of a replica that do not belong to a single pipeline stage:
+ * the loops that send and receive through the connections with the other
+ * replicas, the reply threads, the pools that authenticate connections, send
+ * states, verify leader change proofs and execute read-only requests, and the
+ * timers (also used by the metrics reporter).
+ *
+ * Components obtain the registry of their replica with getInstance(). The
+ * loops run in dedicated threads (see start()), which are virtual threads if
+ * so configured and supported by the JVM (Java 21 or later), so a replica
+ * with many peers does not need two platform threads per connection. The
+ * pools are bounded in threads and queued tasks, so a burst (e.g., of state
+ * requests) is rejected instead of creating threads without limit. Timeouts
+ * are scheduled in a single scheduled executor instead of a Timer each.
+ *
+ * The stages of the ordering pipeline (TOMLayer, DeliveryThread,
+ * ServerCommunicationSystem and ServersCommunicationLayer) keep their own
+ * platform threads, as there is one of each per replica and each has its own
+ * shutdown. The NetworkEmulator is shared by all the replicas of a JVM, so it
+ * keeps its own timer too.
+ */
+public class ExecutorRegistry {
+
+    /** Pool that authenticates the connections accepted from other replicas */
+    public static final String HANDSHAKES = "Handshake";
+    /** Pool that sends states to recovering replicas */
+    public static final String STATE_TRANSFERS = "State transfer";
+    /** Pool that verifies the signed collects of a leader change */
+    public static final String COLLECT_VERIFIERS = "Collect verifier";
+    /** Prefix of the single thread pools that execute read-only requests (one per client partition) */
+    public static final String READ_ONLY = "Read-only executor";
+
+    private static final long KEEP_ALIVE = 30; // seconds an idle pool thread is kept
+
+    private static final ConcurrentHashMap<Integer, ExecutorRegistry> registries =
+            new ConcurrentHashMap<Integer, ExecutorRegistry>();
+
+    private static final ThreadFactory virtualFactory = createVirtualFactory();
+
+    private final int id;
+    private boolean virtual = false;
+    private int timerThreads = 1;
+    private int queueSize = 1024;
+    private final Map<String, Integer> poolSizes = new HashMap<String, Integer>();
+    private final Map<String, ThreadPoolExecutor> pools = new HashMap<String, ThreadPoolExecutor>();
+    private ScheduledThreadPoolExecutor timer = null;
+
+    private ExecutorRegistry(int id) {
+        this.id = id;
+        poolSizes.put(HANDSHAKES, 4);
+        poolSizes.put(STATE_TRANSFERS, 2);
+    }
+
+    /**
+     * Returns the registry of a replica, creating it if it does not exist
+     * @param id the id of the replica
+     * @return the registry
+     */
+    public static ExecutorRegistry getInstance(int id) {
+        ExecutorRegistry registry = registries.get(id);
+        if (registry == null) {
+            registry = new ExecutorRegistry(id);
+            ExecutorRegistry previous = registries.putIfAbsent(id, registry);
+            if (previous != null) registry = previous;
+        }
+        return registry;
+    }
+
+    /**
+     * Applies the configuration of the replica. Must be invoked before its
+     * components are created, as the executors already created are kept.
+     * @param conf the configuration of the replica
+     */
+    public synchronized void configure(TOMConfiguration conf) {
+        virtual = conf.isVirtualThreads();
+        if (virtual && virtualFactory == null) {
+            System.out.println("Virtual threads are not supported by this JVM, using platform threads");
+            virtual = false;
+        }
+        timerThreads = conf.getTimerThreads();
+        queueSize = conf.getExecutorQueueSize();
+        poolSizes.put(HANDSHAKES, conf.getHandshakeThreads());
+        poolSizes.put(STATE_TRANSFERS, conf.getStateTransferThreads());
+        poolSizes.put(COLLECT_VERIFIERS, Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), conf.getN())));
+    }
+
+    /**
+     * @return true if the loops and pools of this replica run in virtual threads
+     */
+    public synchronized boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Starts a task that runs for the lifetime of some component (e.g., the
+     * loop that receives from a connection) in a thread of its own
+     *
+     * @param name the name of the thread
+     * @param task the task
+     * @return the thread, already started
+     */
+    public Thread start(String name, Runnable task) {
+        Thread t = newThread(name, task, isVirtual(), false);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Returns a named pool, creating it if it does not exist. The pool
+     * rejects tasks (with a RejectedExecutionException) when all its threads
+     * are busy and its queue is full.
+     *
+     * @param name the name of the pool (e.g., HANDSHAKES)
+     * @return the pool
+     */
+    public synchronized ExecutorService pool(final String name) {
+        ThreadPoolExecutor pool = pools.get(name);
+        if (pool == null) {
+            Integer size = poolSizes.get(name);
+            int threads = (size != null ? size : 1); // e.g., each READ_ONLY pool
+            final boolean virtualThreads = virtual;
+            pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return ExecutorRegistry.this.newThread(name + " " + count.incrementAndGet() + " of " + id, r, virtualThreads, true);
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            pools.put(name, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * @return the executor where the timeouts of this replica are scheduled
+     */
+    public synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(timerThreads, new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return ExecutorRegistry.this.newThread("Timer " + count.incrementAndGet() + " of " + id, r, false, true);
+                }
+            });
+            // cancelled timeouts (the common case) are removed right away
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Stops the pools and the timer, and forgets this registry, so that a
+     * replica with the same id started later gets a fresh one. The threads
+     * started with start() end with their components.
+     */
+    public synchronized void close() {
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdownNow();
+        }
+        pools.clear();
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        registries.remove(id, this);
+    }
+
+    // virtual threads are always daemon threads
+    private Thread newThread(String name, Runnable task, boolean virtualThread, boolean daemon) {
+        Thread t;
+        if (virtualThread) {
+            t = virtualFactory.newThread(task);
+            t.setName(name);
+        } else {
+            t = new Thread(task, name);
+            t.setDaemon(daemon);
+        }
+        return t;
+    }
+
+    // Thread.ofVirtual().factory(), which is only available in Java 21 or later
+    private static ThreadFactory createVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            return null;
+        } catch (LinkageError err) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue used to hand messages from one stage of a replica to the
+ * next (e.g., from the connections to the communication system thread).
+ *
+ * The slots are allocated once, when the buffer is created, and positions
+ * are claimed with compare-and-set on two counters, so neither adding nor
+ * removing an element takes locks or allocates. Several threads can add
+ * elements; they are meant to be taken by a single thread (taking them from
+ * more than one is safe, only slower), which can claim all the elements
+ * available with a single compare-and-set (see drainTo()).
+ *
+ * How a thread waits for an element (or, in put(), for space) is given by
+ * the wait strategy: spinning has the lowest latency but keeps a core busy,
+ * yielding gives the core to other threads between checks, and parking
+ * (the default) blocks the thread after a few yields, until a producer
+ * wakes it up. Producers only unpark the consumer if it is parked.
+ */
+public class RingBuffer<E> {
+
+    /** How threads wait for the buffer to have elements (or space) */
+    public enum WaitStrategy {
+        SPIN, YIELD, PARK;
+
+        /**
+         * @param name name of the strategy (spin, yield or park)
+         * @return the strategy with the given name, or PARK if there is none
+         */
+        public static WaitStrategy parse(String name) {
+            for (WaitStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name.trim())) return strategy;
+            }
+            return PARK;
+        }
+    }
+
+    // yields before parking (none with a single core, where they only delay the producer)
+    private static final int YIELDS = (Runtime.getRuntime().availableProcessors() > 1 ? 16 : 0);
+    private static final long PUT_BACKOFF = 100000; // in nanoseconds, time a parked producer waits for space
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final int capacity;
+    private final WaitStrategy strategy;
+
+    private final AtomicLong tail = new AtomicLong(0); // next position to be claimed by a producer
+    private final AtomicLong head = new AtomicLong(0); // next position to be claimed by the consumer
+    private final AtomicReference<Thread> waiter = new AtomicReference<Thread>(); // parked consumer, if any
+    private volatile boolean woken = false;
+
+    /**
+     * Creates a new instance of RingBuffer
+     * @param capacity maximum number of elements in the buffer
+     * @param strategy how threads wait for elements or space
+     */
+    public RingBuffer(int capacity, WaitStrategy strategy) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.mask = size - 1;
+        this.capacity = capacity;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Adds an element to the buffer, if there is space for it
+     * @param e the element (not null)
+     * @return true if the element was added, false if the buffer is full
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() >= capacity) return false;
+        } while (!tail.compareAndSet(t, t + 1));
+
+        int i = (int) t & mask;
+        // the consumer that claimed the previous element of the slot may
+        // still be taking it
+        while (slots.get(i) != null) Thread.yield();
+        slots.set(i, e);
+
+        if (waiter.get() != null) {
+            Thread w = waiter.getAndSet(null);
+            if (w != null) LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an element to the buffer, waiting for space if it is full
+     * @param e the element (not null)
+     */
+    public void put(E e) throws InterruptedException {
+        int tries = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (strategy == WaitStrategy.YIELD || (strategy == WaitStrategy.PARK && tries++ < YIELDS)) {
+                Thread.yield();
+            } else if (strategy == WaitStrategy.PARK) {
+                LockSupport.parkNanos(this, PUT_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element of the buffer
+     * @return the element, or null if the buffer is empty
+     */
+    public E poll() {
+        long h;
+        do {
+            h = head.get();
+            if (h >= tail.get()) return null;
+        } while (!head.compareAndSet(h, h + 1));
+
+        return take(h);
+    }
+
+    /**
+     * Removes the oldest element of the buffer, waiting for one if it is empty
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return the element, or null if none was added before the timeout (or
+     *         if the consumer was woken up, see wakeUp())
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || !await(left, TimeUnit.NANOSECONDS)) return null;
+        }
+        return e;
+    }
+
+    /**
+     * Removes the oldest element of the buffer, waiting for as long as needed
+     * @return the element
+     */
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            await(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return e;
+    }
+
+    /**
+     * Removes all the elements of the buffer (up to a maximum), in order,
+     * adding them to a collection
+     * @param c collection to which the elements are added
+     * @param max maximum number of elements to remove
+     * @return the number of elements removed
+     */
+    public int drainTo(Collection<? super E> c, int max) {
+        long h, n;
+        do {
+            h = head.get();
+            n = Math.min(tail.get() - h, max);
+            if (n <= 0) return 0;
+        } while (!head.compareAndSet(h, h + n));
+
+        for (long p = h; p < h + n; p++) {
+            c.add(take(p));
+        }
+        return (int) n;
+    }
+
+    /**
+     * Removes all the elements of the buffer, in order, adding them to a
+     * collection
+     * @param c collection to which the elements are added
+     * @return the number of elements removed
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    // takes the element at a position claimed by this thread
+    private E take(long position) {
+        int i = (int) position & mask;
+        E e;
+        // the producer that claimed the position may still be adding it
+        while ((e = slots.get(i)) == null) Thread.yield();
+        slots.set(i, null);
+        return e;
+    }
+
+    /**
+     * Waits until the buffer has an element, the timeout expires or the
+     * consumer is woken up (see wakeUp())
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if the buffer has an element
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = (nanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + nanos);
+        int tries = 0;
+
+        while (isEmpty()) {
+            if (woken) {
+                woken = false;
+                return false;
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            long left = (deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime());
+            if (left <= 0) return false;
+
+            if (strategy == WaitStrategy.YIELD || (strategy == WaitStrategy.PARK && tries++ < YIELDS)) {
+                Thread.yield();
+            } else if (strategy == WaitStrategy.PARK) {
+                Thread current = Thread.currentThread();
+                waiter.set(current);
+                // checked again after registering, so an element added in
+                // the meantime is not missed
+                if (isEmpty() && !woken) {
+                    if (left == Long.MAX_VALUE) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, left);
+                    }
+                }
+                waiter.compareAndSet(current, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the consumer return from the wait it is in (or from the next one,
+     * if it is not waiting), even if the buffer is empty
+     */
+    public void wakeUp() {
+        woken = true;
+        Thread w = waiter.getAndSet(null);
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    /**
+     * Removes all the elements of the buffer
+     */
+    public void clear() {
+        while (poll() != null);
+    }
+
+    /**
+     * @return the number of elements in the buffer
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * @return the maximum number of elements in the buffer
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "RingBuffer[" + size() + "/" + capacity + ", " + strategy.name().toLowerCase() + "]";
+    }
+}
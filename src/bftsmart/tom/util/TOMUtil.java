@@ -20,14 +20,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Arrays;
-import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ViewController;
 
@@ -50,17 +47,30 @@ public class TOMUtil {
     public static final int TRIGGER_LC_LOCALLY = 8;
     public static final int TRIGGER_SM_LOCALLY = 9;
     
-    //the signature engine used in the system and the signatureSize
-    private static Signature signatureEngine;
+    //the provider of the crypto engines used in the system and the signatureSize
+    private static CryptoProvider cryptoProvider = new DefaultCryptoProvider();
     private static int signatureSize = -1;
 
-    //lock to make signMessage and verifySignature reentrant
-    private static ReentrantLock lock = new ReentrantLock();
-
     //private static Semaphore sem = new Semaphore(10, true);
 
     //private static Storage st = new Storage(BENCHMARK_PERIOD);
     //private static int count=0;
+
+    /**
+     * Defines the crypto provider used by this class (and by the components that
+     * get their engines from it). Invoked by TOMConfiguration.
+     *
+     * @param provider the crypto provider
+     */
+    public static void setCryptoProvider(CryptoProvider provider) {
+        cryptoProvider = provider;
+        signatureSize = -1;
+    }
+
+    public static CryptoProvider getCryptoProvider() {
+        return cryptoProvider;
+    }
+
     public static int getSignatureSize(ViewController controller) {
         if (signatureSize > 0) {
             return signatureSize;
@@ -121,24 +131,7 @@ public class TOMUtil {
      * @return the signature
      */
     public static byte[] signMessage(PrivateKey key, byte[] message) {
-        lock.lock();
-        byte[] result = null;
-        try {
-            if (signatureEngine == null) {
-                signatureEngine = Signature.getInstance("SHA1withRSA");
-            }
-
-            signatureEngine.initSign(key);
-
-            signatureEngine.update(message);
-
-            result = signatureEngine.sign();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        lock.unlock();
-        return result;
+        return cryptoProvider.sign(key, message);
     }
 
     /**
@@ -150,39 +143,7 @@ public class TOMUtil {
      * @return true if the signature is valid, false otherwise
      */
     public static boolean verifySignature(PublicKey key, byte[] message, byte[] signature) {
-        lock.lock();
-        boolean result = false;
-        //long startTime = System.nanoTime();
-        try {
-            if (signatureEngine == null) {
-                signatureEngine = Signature.getInstance("SHA1withRSA");
-            }
-
-            signatureEngine.initVerify(key);
-
-            result = verifySignature(signatureEngine, message, signature);
-            /*
-            st.store(System.nanoTime()-startTime);
-            //statistics about signature execution time
-            count++;
-            if (count%BENCHMARK_PERIOD==0){                
-            System.out.println("#-- (TOMUtil) Signature verification benchmark:--");
-            System.out.println("#Average time for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getAverage(true) / 1000 + " us ");
-            System.out.println("#Standard desviation for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getDP(true) / 1000 + " us ");
-            System.out.println("#Average time for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getAverage(false) / 1000 + " us ");
-            System.out.println("#Standard desviation for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getDP(false) / 1000 + " us ");
-            System.out.println("#Maximum time for " + BENCHMARK_PERIOD + " signature verifications (-10%) = " + st.getMax(true) / 1000 + " us ");
-            System.out.println("#Maximum time for " + BENCHMARK_PERIOD + " signature verifications (all samples) = " + st.getMax(false) / 1000 + " us ");
-            count = 0;
-            st = new Storage(BENCHMARK_PERIOD);
-            }
-         */
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        lock.unlock();
-        return result;
+        return cryptoProvider.verify(key, message, signature);
     }
 
     /**
@@ -218,14 +179,7 @@ public class TOMUtil {
     }
 
 	public static final byte[] computeHash(byte[] data) {
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} // TODO: shouldn't it be SHA?
-		return md.digest(data);
+		return cryptoProvider.computeHash(data);
 	}
 
 }